@@ -0,0 +1,215 @@
+/*
+ * Batched multi-get
+ * =================
+ *
+ * Loads users, profile rows and neighbor lists for many user ids with one
+ * statement per shard instead of one per id.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a request-scoped loader: a handler creates one, names the
+ * operation it serves, and asks it for whole key sets. Keys are
+ * de-duplicated, answers are memoized for the life of the loader, and the
+ * keys still missing are fetched with a single userId IN (...) statement
+ * per shard (chunked at MAX_KEYS). Ids the user filter rules out are
+ * answered without a query. When that takes several statements, e.g.
+ * one per shard, they run at the same time on pooled connections.
+ *
+ * The bundled 7.3 driver cannot bind arrays, so the keys are inlined as
+ * quoted literals rather than passed to "userId = ANY(?)".
+ *
+ * For every operation the class counts the lookups a per-id loop would
+ * have issued and the statements actually issued; {@link #report} prints
+ * the round trips saved.
+ *
+ */
+
+public class BatchLoader {
+
+   static final int MAX_KEYS = 1000;
+
+   // operation -> {lookups a per-id loop would issue, statements issued}
+   private static final Map<String, AtomicLong[]> stats = new ConcurrentHashMap<String, AtomicLong[]>();
+
+   private final ProfNetwork esql;
+   private final AtomicLong[] counters;
+   // statements issued by this loader.
+   private long issued = 0;
+   private final Map<String, List<String>> users = new HashMap<String, List<String>>();
+   private final Map<String, List<List<String>>> work = new HashMap<String, List<List<String>>>();
+   private final Map<String, List<List<String>>> education = new HashMap<String, List<List<String>>>();
+   private final Map<String, List<String>> neighbors = new HashMap<String, List<String>>();
+
+   /**
+    * @param esql the database, sharded or not
+    * @param operation name the saved round trips are reported under
+    */
+   public BatchLoader (ProfNetwork esql, String operation) {
+      this.esql = esql;
+      this.counters = stats.computeIfAbsent(operation, k -> new AtomicLong[]{new AtomicLong(), new AtomicLong()});
+   }//end BatchLoader
+
+   private static String trim (String v) {
+      return v == null ? null : v.trim();
+   }//end trim
+
+   // keys not yet in the memo, trimmed and de-duplicated in input order.
+   private static List<String> missing (Collection<String> keys, Map<String, ?> memo) {
+      Set<String> out = new LinkedHashSet<String>();
+      for (String k : keys)
+         if (k != null && !memo.containsKey(k.trim())) out.add(k.trim());
+      return new ArrayList<String>(out);
+   }//end missing
+
+   /**
+    * Runs a statement for every shard and chunk of the keys. The format
+    * gets the quoted key list for each %s it contains.
+    */
+   private List<List<String>> fetch (List<String> keys, String format) throws Exception {
+      counters[0].addAndGet(keys.size());
+      Map<ProfNetwork, List<String>> byShard = new LinkedHashMap<ProfNetwork, List<String>>();
+      for (String k : keys)
+         byShard.computeIfAbsent(esql.shard(k), s -> new ArrayList<String>()).add(k);
+      List<ProfNetwork> targets = new ArrayList<ProfNetwork>();
+      List<String> statements = new ArrayList<String>();
+      for (Map.Entry<ProfNetwork, List<String>> e : byShard.entrySet()) {
+         List<String> part = e.getValue();
+         for (int from = 0; from < part.size(); from += MAX_KEYS) {
+            StringBuilder in = new StringBuilder();
+            for (String k : part.subList(from, Math.min(part.size(), from + MAX_KEYS)))
+               in.append(in.length() == 0 ? "'" : ",'").append(PostgresStore.q(k)).append('\'');
+            targets.add(e.getKey());
+            statements.add(format.replace("%s", in.toString()));
+         }
+      }
+      counters[1].addAndGet(statements.size());
+      issued += statements.size();
+      if (statements.size() == 1)
+         return targets.get(0).executeQueryAndReturnResult(statements.get(0));
+      // independent statements: start them all, then collect in order.
+      List<CompletableFuture<List<List<String>>>> parts = new ArrayList<CompletableFuture<List<List<String>>>>();
+      for (int i = 0; i < statements.size(); ++i)
+         parts.add(targets.get(i).executeQueryAsync(statements.get(i)));
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (CompletableFuture<List<List<String>>> f : parts)
+         rows.addAll(QueryPool.join(f));
+      return rows;
+   }//end fetch
+
+   /**
+    * @return userId, email, name, dateOfBirth of each existing user, by id
+    */
+   public Map<String, List<String>> users (Collection<String> userIds) throws Exception {
+      List<String> keys = new ArrayList<String>();
+      for (String k : missing(userIds, users)) {
+         if (esql.mightExist(k)) keys.add(k);
+         else users.put(k, null);
+      }
+      for (String k : keys) users.put(k, null);
+      if (!keys.isEmpty())
+         for (List<String> row : PostgresStore.trim(fetch(keys,
+               "SELECT userId, email, name, dateOfBirth FROM USR WHERE userId IN (%s)")))
+            users.put(row.get(0), row);
+      return pick(userIds, users, false);
+   }//end users
+
+   /**
+    * @return company, role, location, startDate, endDate rows by user id;
+    *         every requested id is present
+    */
+   public Map<String, List<List<String>>> work (Collection<String> userIds) throws Exception {
+      return rows(userIds, work, Dimensions.WORK,
+         "SELECT userId,%s,startDate,endDate FROM WORK_EXPR WHERE userId IN (%%s) ORDER BY startDate");
+   }//end work
+
+   /**
+    * @return instituitionName, major, degree, startdate, enddate rows by
+    *         user id; every requested id is present
+    */
+   public Map<String, List<List<String>>> education (Collection<String> userIds) throws Exception {
+      return rows(userIds, education, Dimensions.EDUCATION,
+         "SELECT userId,%s,startdate,enddate FROM EDUCATIONAL_DETAILS WHERE userId IN (%%s) ORDER BY startdate");
+   }//end education
+
+   // the format names the attribute columns with %s and the keys with %%s.
+   private Map<String, List<List<String>>> rows (Collection<String> userIds, Map<String, List<List<String>>> memo,
+                                                 String[][] group, String format) throws Exception {
+      List<String> keys = missing(userIds, memo);
+      for (String k : keys) memo.put(k, new ArrayList<List<String>>());
+      Dimensions d = esql.dimensions();
+      if (!keys.isEmpty())
+         for (List<String> row : d.decode(PostgresStore.trim(fetch(keys, String.format(format, d.columns(group)))), group, 1))
+            memo.get(row.get(0)).add(row.subList(1, row.size()));
+      return pick(userIds, memo, true);
+   }//end rows
+
+   /**
+    * @return ids with an accepted connection in either direction, by user
+    *         id; every requested id is present
+    */
+   public Map<String, List<String>> neighbors (Collection<String> userIds) throws Exception {
+      List<String> keys = missing(userIds, neighbors);
+      for (String k : keys) neighbors.put(k, new ArrayList<String>());
+      if (!keys.isEmpty()) {
+         Set<String> wanted = new HashSet<String>(keys);
+         Map<String, Set<String>> seen = new HashMap<String, Set<String>>();
+         for (List<String> row : fetch(keys,
+               "SELECT userId, connectionId FROM CONNECTION_USR WHERE status='Accept' AND (userId IN (%s) OR connectionId IN (%s))")) {
+            String u = trim(row.get(0)), c = trim(row.get(1));
+            // sharded, an edge between two requested users comes back twice.
+            if (wanted.contains(u) && seen.computeIfAbsent(u, x -> new HashSet<String>()).add(c))
+               neighbors.get(u).add(c);
+            if (wanted.contains(c) && seen.computeIfAbsent(c, x -> new HashSet<String>()).add(u))
+               neighbors.get(c).add(u);
+         }
+      }
+      return pick(userIds, neighbors, true);
+   }//end neighbors
+
+   /**
+    * @return the statements this loader has issued so far
+    */
+   public long statements () {
+      return issued;
+   }//end statements
+
+   private static <V> Map<String, V> pick (Collection<String> keys, Map<String, V> memo, boolean keepEmpty) {
+      Map<String, V> out = new LinkedHashMap<String, V>();
+      for (String k : keys) {
+         if (k == null) continue;
+         V v = memo.get(k.trim());
+         if (v != null || keepEmpty) out.put(k.trim(), v);
+      }
+      return out;
+   }//end pick
+
+   /**
+    * @return lookups, statements and round trips saved per operation
+    */
+   public static String report () {
+      StringBuilder sb = new StringBuilder("Batched lookups:");
+      for (Map.Entry<String, AtomicLong[]> e : new TreeMap<String, AtomicLong[]>(stats).entrySet()) {
+         long lookups = e.getValue()[0].get(), queries = e.getValue()[1].get();
+         sb.append(String.format("%n   %-18s %d keys in %d statements, %d round trips saved",
+            e.getKey(), lookups, queries, lookups - queries));
+      }
+      return sb.toString();
+   }//end report
+
+}//end BatchLoader
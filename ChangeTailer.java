@@ -0,0 +1,350 @@
+/*
+ * Change-log tailer
+ * =================
+ *
+ * Follows the CHANGE_LOG table filled by the triggers of change_log.sql
+ * and keeps the in-process caches coherent with writes made by other
+ * ProfNetwork processes.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs one background thread per process that reads new
+ * CHANGE_LOG rows of every database (every shard) every POLL_MS, at most
+ * BATCH rows per database and round, and hands the changed keys to
+ * {@link ProfNetwork#applyChanges} as one batch. It reads on connections
+ * of its own, one per database, so its statements never run inside the
+ * session's open transaction, commit the pruning on their own, and see
+ * the server's current time. Each row names the table
+ * (U: USR, W: WORK_EXPR, E: EDUCATIONAL_DETAILS, C: CONNECTION_USR,
+ * M: a new MESSAGE) and the user ids it touched; a message row also
+ * carries its msgId.
+ *
+ * Sequence values are handed out in statement order but committed in
+ * transaction order, so a row with a lower seq can appear after a higher
+ * one. The tailer therefore keeps a horizon below which every seq has
+ * been applied and remembers the seqs applied above it. While seqs are
+ * missing, new rows are read from the highest applied seq up and only
+ * the missing ranges are read again.
+ *
+ * A missing seq is given up only once its transaction has ended without
+ * it: when it lies below a seq that was already visible before the
+ * oldest transaction still running began, by pg_stat_activity.xact_start
+ * (PostgreSQL 8.3 and later). However long a writer runs, its seqs stay
+ * missing, not lost. Other sessions' xact_start is visible to the same
+ * role only, so all processes should connect as one role.
+ *
+ * The lag of a change is the time from the start of the writing
+ * transaction to the moment the caches were updated. It is kept as the
+ * staleness metric, see {@link #lagMillis} and {@link #report}.
+ *
+ */
+
+public class ChangeTailer implements AutoCloseable {
+
+   static final long POLL_MS = 250;
+   static final int BATCH = 1000;
+   // missing ranges read again per database and round.
+   static final int MAX_HOLES = 64;
+   // rows older than this are deleted, by whichever process gets there.
+   static final String RETAIN = "1 day";
+   static final long PRUNE_MS = 10 * 60 * 1000;
+   // refreshed users after which the discovery indexes are rebuilt.
+   static final int REBUILD_AFTER = 1000;
+
+   /**
+    * Keys changed since the previous batch, by table
+    */
+   public static final class Batch {
+      public final Set<String> users = new HashSet<String>();
+      public final Set<String> work = new HashSet<String>();
+      public final Set<String> education = new HashSet<String>();
+      public final Set<String> connections = new HashSet<String>();
+      // new messages: {senderId, receiverId} by msgId.
+      public final Map<Integer, String[]> messages = new HashMap<Integer, String[]>();
+
+      boolean isEmpty () {
+         return users.isEmpty() && work.isEmpty() && education.isEmpty() && connections.isEmpty()
+            && messages.isEmpty();
+      }//end isEmpty
+   }//end Batch
+
+   /**
+    * Read position in the log of one database
+    */
+   static final class Cursor {
+      final ProfNetwork db;
+      long horizon;
+      // seqs above the horizon already applied.
+      final TreeSet<Long> applied = new TreeSet<Long>();
+      // while seqs are missing: the highest applied seq after a round, and
+      // the server time by which it was first visible, in epoch seconds.
+      final TreeMap<Long, Double> seen = new TreeMap<Long, Double>();
+      // start of the oldest transaction running at the end of the
+      // previous round, null if unknown.
+      Double oldest = null;
+      // same, at the end of this round.
+      Double oldestNow = null;
+      // whether this round read every missing range completely.
+      boolean complete = true;
+      long givenUp = 0;
+
+      Cursor (ProfNetwork db, long horizon) {
+         this.db = db;
+         this.horizon = horizon;
+      }//end Cursor
+
+      // the seq new rows are read above.
+      long next () {
+         return applied.isEmpty() ? horizon : applied.last();
+      }//end next
+
+      /**
+       * @return the missing seqs between the horizon and the highest
+       *         applied one as a condition, at most MAX_HOLES ranges,
+       *         null if none is missing
+       */
+      String holes () {
+         StringBuilder sb = new StringBuilder();
+         long from = horizon + 1;
+         int n = 0;
+         for (long seq : applied) {
+            if (seq > from) {
+               if (n++ == MAX_HOLES) {
+                  complete = false;
+                  break;
+               }
+               sb.append(sb.length() == 0 ? "" : " OR ").append(String.format("seq BETWEEN %d AND %d", from, seq - 1));
+            }
+            from = seq + 1;
+         }
+         return sb.length() == 0 ? null : sb.toString();
+      }//end holes
+
+      void advance () {
+         while (!applied.isEmpty() && applied.first() == horizon + 1)
+            horizon = applied.pollFirst();
+         // a seq still missing below one visible before the oldest running
+         // transaction began belongs to a transaction that has ended: it
+         // rolled back, or this round's read of the holes would have
+         // found it.
+         Long bound = null;
+         if (oldest != null && complete)
+            for (Map.Entry<Long, Double> e : seen.entrySet()) {
+               if (e.getValue() >= oldest) break;
+               bound = e.getKey();
+            }
+         if (bound != null) {
+            seen.headMap(bound, true).clear();
+            if (bound > horizon) {
+               givenUp += bound - horizon - applied.headSet(bound, true).size();
+               applied.headSet(bound, true).clear();
+               horizon = bound;
+               while (!applied.isEmpty() && applied.first() == horizon + 1)
+                  horizon = applied.pollFirst();
+            }
+         }//end if
+         if (applied.isEmpty())
+            seen.clear();
+         oldest = oldestNow;
+         complete = true;
+      }//end advance
+   }//end Cursor
+
+   private final ProfNetwork esql;
+   private final Cursor[] cursors;
+   private final Thread thread;
+   private volatile boolean running = true;
+   private long prunedAt = System.currentTimeMillis();
+
+   private final AtomicLong changes = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final AtomicLong lagSum = new AtomicLong();
+   private volatile long lastLag = 0;
+   private volatile long maxLag = 0;
+
+   private ChangeTailer (ProfNetwork esql, Cursor[] cursors) {
+      this.esql = esql;
+      this.cursors = cursors;
+      this.thread = new Thread(this::run, "change-tailer");
+      this.thread.setDaemon(true);
+   }//end ChangeTailer
+
+   /**
+    * Starts following the log from its current end
+    *
+    * @throws java.sql.SQLException when the database has no change log
+    */
+   public static ChangeTailer start (ProfNetwork esql) throws SQLException {
+      ProfNetwork[] dbs = esql.databases();
+      Cursor[] cursors = new Cursor[dbs.length];
+      try (ReplicaSet.Scope primary = ReplicaSet.onPrimary()) {
+         for (int i = 0; i < dbs.length; ++i) {
+            ProfNetwork own = dbs[i].openAnother();
+            cursors[i] = new Cursor(own, 0);
+            String max = own.executeQueryAndReturnResult("SELECT max(seq) FROM CHANGE_LOG").get(0).get(0);
+            cursors[i].horizon = max == null ? 0 : Long.parseLong(max.trim());
+         }
+      } catch (SQLException | RuntimeException e) {
+         for (Cursor c : cursors)
+            if (c != null) c.db.cleanup();
+         throw e;
+      }//end try
+      ChangeTailer t = new ChangeTailer(esql, cursors);
+      t.thread.start();
+      return t;
+   }//end start
+
+   /**
+    * @return {organization, startDate, endDate} of profile rows as the
+    *         discovery indexes take them
+    */
+   static List<String[]> stints (List<List<String>> rows) {
+      List<String[]> out = new ArrayList<String[]>(rows.size());
+      for (List<String> r : rows)
+         out.add(new String[]{r.get(0), r.get(3), r.get(4)});
+      return out;
+   }//end stints
+
+   private void run () {
+      while (running) {
+         try {
+            Thread.sleep(POLL_MS);
+            poll();
+         } catch (InterruptedException e) {
+            return;
+         } catch (Exception e) {
+            // closing the connections ends a round in progress.
+            if (!running) return;
+            failures.incrementAndGet();
+            System.err.println ("change tailer: " + e.getMessage ());
+         }//end try
+      }
+   }//end run
+
+   // one round over every database.
+   void poll () throws Exception {
+      Batch batch = new Batch();
+      List<Double> changed = new ArrayList<Double>();
+      List<Cursor> touched = new ArrayList<Cursor>();
+      try (QueryGuard.Scope op = QueryGuard.as(QueryGuard.OFFLINE);
+           ReplicaSet.Scope primary = ReplicaSet.onPrimary()) {
+         for (Cursor c : cursors) {
+            String select = "SELECT seq, tbl, userId, otherId, extract(epoch from changed), msgId FROM CHANGE_LOG WHERE %s ORDER BY seq LIMIT %d";
+            List<List<String>> rows = new ArrayList<List<String>>();
+            String holes = c.holes();
+            if (holes != null) {
+               rows.addAll(c.db.executeQueryAndReturnResult(String.format(select, holes, BATCH)));
+               if (rows.size() == BATCH) c.complete = false;
+            }//end if
+            rows.addAll(c.db.executeQueryAndReturnResult(String.format(select, "seq > " + c.next(), BATCH)));
+            for (List<String> r : rows) {
+               long seq = Long.parseLong(r.get(0).trim());
+               if (!c.applied.add(seq)) continue;
+               String user = r.get(2).trim();
+               switch (r.get(1).trim().charAt(0)) {
+                  case 'U': batch.users.add(user); break;
+                  case 'W': batch.work.add(user); break;
+                  case 'E': batch.education.add(user); break;
+                  case 'C':
+                     batch.connections.add(user);
+                     if (r.get(3) != null) batch.connections.add(r.get(3).trim());
+                     break;
+                  case 'M':
+                     batch.messages.put(Integer.parseInt(r.get(5).trim()), new String[]{user, r.get(3).trim()});
+                     break;
+                  default: break;
+               }//end switch
+               changed.add(Double.parseDouble(r.get(4).trim()));
+            }
+            c.oldestNow = null;
+            if (!c.applied.isEmpty()) {
+               // read after the rows, so every applied seq was visible by then.
+               List<String> t = c.db.executeQueryAndReturnResult(
+                  "SELECT extract(epoch from now()), extract(epoch from min(xact_start)) FROM pg_stat_activity").get(0);
+               c.seen.putIfAbsent(c.applied.last(), Double.parseDouble(t.get(0).trim()));
+               c.oldestNow = t.get(1) == null ? null : Double.parseDouble(t.get(1).trim());
+            }//end if
+            touched.add(c);
+         }
+         if (!batch.isEmpty()) {
+            esql.applyChanges(batch);
+            long now = System.currentTimeMillis();
+            long worst = 0;
+            for (double t : changed) {
+               long lag = Math.max(0, now - (long) (t * 1000));
+               lagSum.addAndGet(lag);
+               worst = Math.max(worst, lag);
+            }
+            changes.addAndGet(changed.size());
+            batches.incrementAndGet();
+            lastLag = worst;
+            maxLag = Math.max(maxLag, worst);
+         }//end if
+         // only now are the seqs of this round applied to the caches.
+         long now = System.currentTimeMillis();
+         for (Cursor c : touched)
+            c.advance();
+         if (now - prunedAt > PRUNE_MS) {
+            prunedAt = now;
+            for (Cursor c : cursors)
+               c.db.executeUpdate("DELETE FROM CHANGE_LOG WHERE changed < now() - interval '" + RETAIN + "'");
+         }//end if
+      } catch (Exception e) {
+         // re-read everything above the horizon next time; applying a
+         // change twice only refreshes the same keys again.
+         for (Cursor c : cursors) {
+            c.applied.removeIf(seq -> seq > c.horizon);
+            c.complete = true;
+         }
+         throw e;
+      }//end try
+   }//end poll
+
+   /**
+    * @return the largest lag of the latest batch in milliseconds
+    */
+   public long lagMillis () {
+      return lastLag;
+   }//end lagMillis
+
+   /**
+    * @return changes applied and their lag
+    */
+   public String report () {
+      long n = changes.get(), givenUp = 0;
+      for (Cursor c : cursors)
+         givenUp += c.givenUp;
+      return String.format("Change log: %d changes in %d batches, lag avg %.0f ms, last %d ms, max %d ms, %d failed rounds, %d seqs of ended transactions given up",
+         n, batches.get(), n == 0 ? 0.0 : lagSum.get() / (double) n, lastLag, maxLag, failures.get(), givenUp);
+   }//end report
+
+   /**
+    * Stops the background thread and closes its connections
+    */
+   public void close () {
+      running = false;
+      thread.interrupt();
+      try {
+         thread.join(4 * POLL_MS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+      for (Cursor c : cursors)
+         c.db.cleanup();
+   }//end close
+
+}//end ChangeTailer
@@ -0,0 +1,366 @@
+/*
+ * Synthetic data generator for ProfNetwork
+ * =========================================
+ *
+ * Writes USR.csv, Work_Ex.csv, Edu_Det.csv, Connection.csv and Message.csv
+ * in the column layouts load_data.sql expects, at any scale.
+ *
+ *    javac DataGenerator.java
+ *    java DataGenerator <outdir> <users> [seed] [threads]
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates a synthetic social graph for scale testing.
+ *
+ * Users are split into fixed-size chunks. Every chunk is generated by one
+ * worker into its own part files, which are concatenated in chunk order once
+ * all workers finish, so memory stays bounded by a single user's rows.
+ * All randomness is derived from (seed, userIndex), which keeps the output
+ * identical for a given seed regardless of the thread count.
+ *
+ */
+
+public class DataGenerator {
+
+   // users generated by one worker task.
+   static final int CHUNK = 100000;
+
+   // power-law exponent and bounds for the connection out-degree.
+   static final double DEGREE_ALPHA = 2.1;
+   static final int DEGREE_MIN = 1;
+   static final int DEGREE_MAX = 5000;
+
+   // connection status mix, cumulative: Accept, Request, Reject.
+   static final double P_ACCEPT = 0.55;
+   static final double P_REQUEST = 0.85;
+
+   // mean messages sent per user (log-normal around this value).
+   static final double MESSAGES_MEAN = 4.0;
+
+   // share of work and education rows whose endDate precedes startDate,
+   // matching the bad rows found in the bundled CSVs.
+   static final double BAD_DATE_RATE = 0.05;
+
+   // first msgId handed out; create_db.sh starts msgId_seq right after.
+   static final int FIRST_MSG_ID = 1;
+
+   static final String[] FIRST = {"Giovani","Kallie","Magnus","Lorine","Makenna","Aida","Forrest","Krystina",
+      "Jazmyn","Luis","Arjun","Harrison","Ayden","Jordane","Mireya","Talon","Oren","Priya","Wendell","Yusuf"};
+   static final String[] LAST = {"Terry","Johns","Klein","Hickle","Zboncak","Ortiz","Heathcote","Feil",
+      "Toy","Weimann","Schumm","Verner","Kuhic","Bauch","Lind","Okuneva","Rath","Sauer","Yost","Haag"};
+   static final String[] COMPANY = {"Skimia","Katz","Eadel","Yodo","Realmix","Quatz","Voomm","Mynte",
+      "Thoughtstorm","Realcube","Dynabox","Jabbersphere","Nlounge","Jayo","Quinu","Rhybox","Kwinu","Babbleopia"};
+   static final String[] ROLE = {"Staff Scientist","Nuclear Power Engineer","Legal Assistant",
+      "Senior Financial Analyst","GIS Technical Architect","Project Manager","Structural Engineer",
+      "Librarian","Teacher","Pharmacist","Editor","Social Worker","Registered Nurse","Senior Developer",
+      "Financial Advisor"};
+   static final String[] LOCATION = {"Jintun","Cihaladan","Yasynuvata","Turba","Tyoply Stan","Methven",
+      "Bureng","Xiaohekou","Las Minas","La Soledad","Sigiriya","Aginskoye","Xishaqiao"};
+   static final String[] INSTITUTION = {"Twitterbridge","Oba","Livetube","Youspan","Photobug","Meevee",
+      "Quatz","Voomm","Mynte","Thoughtstorm","Dynabox","Jayo"};
+   static final String[] MAJOR = {"agriculture","biology","chemistry","civil","computer science","economics",
+      "eletrical","english","history","law","mathematics","mbbs","mechanical","medicine","philosophy","physics"};
+   static final String[] DEGREE = {"bachelor","master","doctrate"};
+   static final String[] MSG_STATUS = {"sent","delivered","read"};
+
+   static final String[] TABLES = {"USR","Work_Ex","Edu_Det","Connection","Message"};
+   static final String[] HEADERS = {
+      "userId,password,email,name,dateOfBirth",
+      "userId,company,role,location,startDate,endDate",
+      "userid,instituitionName,major,degree,startdate,enddate",
+      "userid,connectionid,status",
+      "msgId,senderId,receiverId,contents,sendTime,deleteStatus,status"};
+
+   private final File outdir;
+   private final long users;
+   private final long seed;
+
+   /**
+    * Creates a new generator
+    *
+    * @param outdir directory receiving the CSV files
+    * @param users number of users to generate
+    * @param seed seed that fully determines the output
+    */
+   public DataGenerator (File outdir, long users, long seed) {
+      this.outdir = outdir;
+      this.users = users;
+      this.seed = seed;
+   }//end DataGenerator
+
+   /**
+    * Returns the user id for a user index. Ids embed the index so they are
+    * unique and fit the varchar(30) column.
+    */
+   String userId (long idx) {
+      SplittableRandom r = rng(idx, 0);
+      return FIRST[r.nextInt(FIRST.length)] + "_" + LAST[r.nextInt(LAST.length)] + "_" + Long.toString(idx, 36);
+   }//end userId
+
+   /**
+    * Returns a random source private to one user and one table
+    */
+   SplittableRandom rng (long idx, int stream) {
+      long h = seed * 0x9E3779B97F4A7C15L + idx * 0xBF58476D1CE4E5B9L + stream * 0x94D049BB133111EBL;
+      return new SplittableRandom(h);
+   }//end rng
+
+   /**
+    * Picks a connection target. Low ranks are picked far more often and are
+    * then scattered over the id space, which gives a heavy-tailed in-degree.
+    */
+   long pickTarget (SplittableRandom r) {
+      long rank = (long) (users * Math.pow(r.nextDouble(), 3.0));
+      if (rank >= users) rank = users - 1;
+      // multiplicative scramble with an odd constant is a bijection mod 2^64;
+      // the remainder keeps hubs spread over the whole range.
+      return Math.floorMod(rank * 0x2545F4914F6CDD1DL + seed, users);
+   }//end pickTarget
+
+   /**
+    * Samples a Pareto-distributed out-degree
+    */
+   int degree (SplittableRandom r) {
+      double d = DEGREE_MIN * Math.pow(1.0 - r.nextDouble(), -1.0 / (DEGREE_ALPHA - 1.0));
+      return (int) Math.min(DEGREE_MAX, Math.min(users - 1, (long) d));
+   }//end degree
+
+   /**
+    * Returns how many messages a user sends. Depends only on the seed and
+    * user index so message ids can be assigned before generating contents.
+    */
+   int messageCount (long idx) {
+      SplittableRandom r = rng(idx, 5);
+      double g = Math.sqrt(-2.0 * Math.log(1.0 - r.nextDouble())) * Math.cos(2.0 * Math.PI * r.nextDouble());
+      return (int) Math.min(10000, Math.floor(Math.exp(Math.log(MESSAGES_MEAN) - 0.5 + g)));
+   }//end messageCount
+
+   /**
+    * Generates every chunk in parallel and concatenates the part files
+    *
+    * @param threads number of worker threads
+    */
+   public void run (int threads) throws Exception {
+      outdir.mkdirs();
+      int chunks = (int) ((users + CHUNK - 1) / CHUNK);
+
+      // first pass: per-chunk message totals, so msgIds are dense and stable.
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      List<Future<Long>> counts = new ArrayList<Future<Long>>();
+      for (int c = 0; c < chunks; ++c) {
+         final long from = (long) c * CHUNK, to = Math.min(users, from + CHUNK);
+         counts.add(pool.submit(() -> {
+            long n = 0;
+            for (long u = from; u < to; ++u) n += messageCount(u);
+            return n;
+         }));
+      }
+      long[] firstMsg = new long[chunks];
+      long next = FIRST_MSG_ID;
+      for (int c = 0; c < chunks; ++c) {
+         firstMsg[c] = next;
+         next += counts.get(c).get();
+      }
+      if (next - 1 > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("MESSAGE.msgId is an integer; " + (next - FIRST_MSG_ID)
+            + " messages do not fit, lower MESSAGES_MEAN or the user count");
+
+      // second pass: write part files.
+      List<Future<?>> parts = new ArrayList<Future<?>>();
+      for (int c = 0; c < chunks; ++c) {
+         final int chunk = c;
+         parts.add(pool.submit(() -> { writeChunk(chunk, firstMsg[chunk]); return null; }));
+      }
+      for (Future<?> f : parts) f.get();
+      pool.shutdown();
+
+      for (int t = 0; t < TABLES.length; ++t)
+         concat(t, chunks);
+      System.out.println("Generated " + users + " users and " + (next - FIRST_MSG_ID) + " messages in " + outdir);
+      System.out.println("Start msgId_seq WITH " + next + " in create_db.sh");
+   }//end run
+
+   /**
+    * Writes the part files of one chunk
+    */
+   void writeChunk (int chunk, long msgId) throws IOException {
+      long from = (long) chunk * CHUNK, to = Math.min(users, from + CHUNK);
+      BufferedWriter[] out = new BufferedWriter[TABLES.length];
+      for (int t = 0; t < TABLES.length; ++t)
+         out[t] = writer(part(t, chunk));
+      try {
+         StringBuilder sb = new StringBuilder(256);
+         Set<Long> seen = new HashSet<Long>();
+         List<Long> accepted = new ArrayList<Long>();
+         for (long u = from; u < to; ++u) {
+            String id = userId(u);
+
+            // USR
+            SplittableRandom r = rng(u, 1);
+            sb.setLength(0);
+            sb.append(id).append(',').append(LAST[r.nextInt(LAST.length)]).append(',')
+              .append(id).append("@example.com,")
+              .append(FIRST[r.nextInt(FIRST.length)]).append(' ').append(LAST[r.nextInt(LAST.length)]).append(',')
+              .append(1 + r.nextInt(12)).append('/').append(1 + r.nextInt(28)).append('/').append(1930 + r.nextInt(75))
+              .append('\n');
+            out[0].write(sb.toString());
+
+            // Work_Ex: consecutive jobs whose start years strictly increase, so
+            // (userId,company,role,startDate) stays unique. A bad row starts in
+            // its end year, so the next job starts the year after.
+            r = rng(u, 2);
+            int jobs = r.nextInt(4);
+            int year = 1970 + r.nextInt(40);
+            for (int j = 0; j < jobs; ++j) {
+               int end = year + 1 + r.nextInt(8);
+               boolean bad = r.nextDouble() < BAD_DATE_RATE;
+               sb.setLength(0);
+               sb.append(id).append(',').append(COMPANY[skewed(r, COMPANY.length)]).append(',')
+                 .append(ROLE[r.nextInt(ROLE.length)]).append(',').append(LOCATION[r.nextInt(LOCATION.length)]).append(',');
+               date(sb, bad ? end : year, r, '/').append(',');
+               date(sb, bad ? year - 1 : end, r, '/').append('\n');
+               out[1].write(sb.toString());
+               year = bad ? end + 1 : end;
+            }
+
+            // Edu_Det: one row per degree level, so (userId,major,degree) stays
+            // unique; start years strictly increase as for Work_Ex.
+            r = rng(u, 3);
+            int degrees = r.nextInt(DEGREE.length + 1);
+            year = 1950 + r.nextInt(50);
+            for (int d = 0; d < degrees; ++d) {
+               int end = year + 2 + r.nextInt(4);
+               boolean bad = r.nextDouble() < BAD_DATE_RATE;
+               sb.setLength(0);
+               sb.append(id).append(',').append(INSTITUTION[skewed(r, INSTITUTION.length)]).append(',')
+                 .append(MAJOR[r.nextInt(MAJOR.length)]).append(',').append(DEGREE[d]).append(',');
+               date(sb, bad ? end : year, r, '-').append(',');
+               date(sb, bad ? year - 1 : end, r, '-').append('\n');
+               out[2].write(sb.toString());
+               year = bad ? end + 1 : end;
+            }
+
+            // Connection: power-law out-degree, no self or duplicate edges.
+            r = rng(u, 4);
+            int deg = degree(r);
+            seen.clear();
+            accepted.clear();
+            for (int k = 0; k < deg * 2 && seen.size() < deg; ++k) {
+               long v = pickTarget(r);
+               if (v == u || !seen.add(v)) continue;
+               double p = r.nextDouble();
+               String status = p < P_ACCEPT ? "Accept" : p < P_REQUEST ? "Request" : "Reject";
+               if (p < P_ACCEPT) accepted.add(v);
+               sb.setLength(0);
+               sb.append(id).append(',').append(userId(v)).append(',').append(status).append('\n');
+               out[3].write(sb.toString());
+            }
+
+            // Message: mostly to accepted friends, the rest anywhere.
+            r = rng(u, 6);
+            int msgs = messageCount(u);
+            for (int m = 0; m < msgs; ++m) {
+               long v = !accepted.isEmpty() && r.nextDouble() < 0.8
+                  ? accepted.get(r.nextInt(accepted.size())) : pickTarget(r);
+               double p = r.nextDouble();
+               int deleteStatus = p < 0.85 ? 0 : 1 + r.nextInt(3);
+               sb.setLength(0);
+               sb.append(msgId++).append(',').append(id).append(',').append(userId(v)).append(',')
+                 .append("message ").append(m).append(" from ").append(id).append(',');
+               date(sb, 2005 + r.nextInt(15), r, '-')
+                 .append(' ').append(pad(r.nextInt(24))).append(':').append(pad(r.nextInt(60)))
+                 .append(':').append(pad(r.nextInt(60))).append(',')
+                 .append(deleteStatus).append(',').append(MSG_STATUS[r.nextInt(MSG_STATUS.length)]).append('\n');
+               out[4].write(sb.toString());
+            }
+         }
+      } finally {
+         for (BufferedWriter w : out) w.close();
+      }
+   }//end writeChunk
+
+   /**
+    * Returns an index biased towards the start of the pool, so a few
+    * companies and institutions dominate as in the bundled data.
+    */
+   static int skewed (SplittableRandom r, int n) {
+      return (int) (n * r.nextDouble() * r.nextDouble());
+   }//end skewed
+
+   static StringBuilder date (StringBuilder sb, int year, SplittableRandom r, char sep) {
+      return sb.append(year).append(sep).append(pad(1 + r.nextInt(12))).append(sep).append(pad(1 + r.nextInt(28)));
+   }//end date
+
+   static String pad (int v) {
+      return v < 10 ? "0" + v : Integer.toString(v);
+   }//end pad
+
+   File part (int table, int chunk) {
+      return new File(outdir, TABLES[table] + ".part" + chunk);
+   }//end part
+
+   static BufferedWriter writer (File f) throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8), 1 << 16);
+   }//end writer
+
+   /**
+    * Concatenates the part files of one table behind its header and
+    * removes them
+    */
+   void concat (int table, int chunks) throws IOException {
+      File target = new File(outdir, TABLES[table] + ".csv");
+      try (FileOutputStream fos = new FileOutputStream(target)) {
+         fos.write((HEADERS[table] + "\n").getBytes(StandardCharsets.UTF_8));
+         FileChannel dst = fos.getChannel();
+         for (int c = 0; c < chunks; ++c) {
+            File p = part(table, c);
+            try (FileInputStream fis = new FileInputStream(p)) {
+               FileChannel src = fis.getChannel();
+               long pos = 0, size = src.size();
+               while (pos < size)
+                  pos += src.transferTo(pos, size - pos, dst);
+            }
+            p.delete();
+         }
+      }
+   }//end concat
+
+   /**
+    * The main execution method
+    *
+    * @param args <outdir> <users> [seed] [threads]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println ("Usage: java " + DataGenerator.class.getName () + " <outdir> <users> [seed] [threads]");
+         return;
+      }//end if
+      long users = Long.parseLong(args[1]);
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 166L;
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+      long start = System.nanoTime();
+      new DataGenerator(new File(args[0]), users, seed).run(threads);
+      System.out.println("Took " + (System.nanoTime() - start) / 1000000 + " ms");
+   }//end main
+
+}//end DataGenerator
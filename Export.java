@@ -0,0 +1,323 @@
+/*
+ * Data export
+ * ===========
+ *
+ * Streams the rows of one user, or of the whole database, to gzip
+ * compressed CSV or JSON lines files, one file per table.
+ *
+ *    java Export <dbname> <port[,port...]> <user> <outdir> [--user=ID]
+ *         [--format=csv|jsonl] [--threads=N]
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class writes each table through
+ * {@link ProfNetwork#executeQueryAndStream}, which declares a cursor for
+ * the table's query and reads it with FETCH FETCH_SIZE at a time, so
+ * memory stays constant whatever the table size. Every row is formatted
+ * and written to the compressed file as it arrives.
+ *
+ * The bundled 7.3 driver has no COPY support: it has no CopyManager and
+ * cannot read the COPY OUT data the server would send. Nor does it
+ * implement a statement fetch size, so the explicit cursor is the
+ * streaming path here. The per-table MB/s is measured on each run.
+ *
+ * A user's export holds the user, the profile rows, the connections in
+ * both directions and the messages still visible to the user. A full
+ * dump writes every row of every table; the tables run in parallel, each
+ * on its own connection. Sharded, a user's shard holds a copy of every
+ * row that concerns the user; for a full dump, rows stored on two shards
+ * are written once, from the shard of their first user column.
+ *
+ * Dimension ids are written as the names they stand for, so an export
+ * looks the same before and after the dimension migration.
+ *
+ */
+
+public class Export {
+
+   static final int FETCH_SIZE = 5000;
+
+   /**
+    * One exported table
+    */
+   static final class Table {
+      final String name;
+      final String[] columns;
+      // select list, %s standing for the dimension columns if any.
+      final String select;
+      final String[][] group;
+      // the row condition for one user, %1$s standing for the user id.
+      final String ofUser;
+      // column whose shard keeps the copy written by a full dump.
+      final int owner;
+
+      Table (String name, String[] columns, String select, String[][] group, String ofUser, int owner) {
+         this.name = name;
+         this.columns = columns;
+         this.select = select;
+         this.group = group;
+         this.ofUser = ofUser;
+         this.owner = owner;
+      }//end Table
+   }//end Table
+
+   static final Table[] TABLES = {
+      new Table("USR", new String[]{"userId", "password", "email", "name", "dateOfBirth"},
+         "userId,password,email,name,dateOfBirth", null, "userId='%1$s'", 0),
+      new Table("WORK_EXPR", new String[]{"userId", "company", "role", "location", "startDate", "endDate"},
+         "userId,%s,startDate,endDate", Dimensions.WORK, "userId='%1$s'", 0),
+      new Table("EDUCATIONAL_DETAILS", new String[]{"userId", "instituitionName", "major", "degree", "startdate", "enddate"},
+         "userId,%s,startdate,enddate", Dimensions.EDUCATION, "userId='%1$s'", 0),
+      new Table("CONNECTION_USR", new String[]{"userId", "connectionId", "status"},
+         "userId,connectionId,status", null, "(userId='%1$s' OR connectionId='%1$s')", 0),
+      new Table("MESSAGE", new String[]{"msgId", "senderId", "receiverId", "contents", "sendTime", "deleteStatus", "status"},
+         "msgId,senderId,receiverId,contents,sendTime,deleteStatus,status", null,
+         "((senderId='%1$s' AND deleteStatus IN (0,2)) OR (receiverId='%1$s' AND deleteStatus IN (0,1)))", 1)};
+
+   /**
+    * What one table export wrote
+    */
+   static final class Result {
+      final String table;
+      final File file;
+      long rows;
+      long bytes;
+      long compressed;
+      double seconds;
+
+      Result (String table, File file) {
+         this.table = table;
+         this.file = file;
+      }//end Result
+
+      public String toString () {
+         return String.format("   %-20s %10d rows %9.1f MB %8.1f MB gz %7.2f s %7.1f MB/s",
+            table, rows, bytes / 1e6, compressed / 1e6, seconds, seconds > 0 ? bytes / 1e6 / seconds : 0.0);
+      }//end toString
+   }//end Result
+
+   // counts the uncompressed bytes on their way into the gzip stream.
+   private static final class Counting extends FilterOutputStream {
+      long count = 0;
+
+      Counting (OutputStream out) {
+         super(out);
+      }//end Counting
+
+      public void write (int b) throws IOException {
+         out.write(b);
+         ++count;
+      }//end write
+
+      public void write (byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+         count += len;
+      }//end write
+   }//end Counting
+
+   static String csv (String v) {
+      if (v == null) return "";
+      if (v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0 && v.indexOf('\r') < 0) return v;
+      return '"' + v.replace("\"", "\"\"") + '"';
+   }//end csv
+
+   static String json (String v) {
+      if (v == null) return "null";
+      StringBuilder sb = new StringBuilder(v.length() + 2).append('"');
+      for (int i = 0; i < v.length(); ++i) {
+         char c = v.charAt(i);
+         switch (c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+               if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+               else sb.append(c);
+         }//end switch
+      }
+      return sb.append('"').toString();
+   }//end json
+
+   /**
+    * @return one line of the file for a row, without the line break
+    */
+   static String line (String[] columns, String[] row, boolean jsonl) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < row.length; ++i) {
+         if (i > 0) sb.append(',');
+         if (jsonl) sb.append(json(columns[i])).append(':').append(json(row[i]));
+         else sb.append(csv(row[i]));
+      }
+      return jsonl ? "{" + sb + "}" : sb.toString();
+   }//end line
+
+   /**
+    * Streams one table to dir/TABLE.csv.gz or dir/TABLE.jsonl.gz
+    *
+    * @param esql the database, sharded or not
+    * @param t the table
+    * @param userId the user whose rows are exported, or null for all rows
+    */
+   static Result table (ProfNetwork esql, Table t, String userId, File dir, boolean jsonl) throws Exception {
+      Dimensions d = esql.dimensions();
+      String query = "SELECT " + (t.group == null ? t.select : String.format(t.select, d.columns(t.group)))
+         + " FROM " + t.name + (userId == null ? "" : " WHERE " + String.format(t.ofUser, PostgresStore.q(userId)));
+      Result r = new Result(t.name, new File(dir, t.name + (jsonl ? ".jsonl.gz" : ".csv.gz")));
+      long t0 = System.nanoTime();
+      Counting raw;
+      try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+            raw = new Counting(new GZIPOutputStream(new FileOutputStream(r.file), 1 << 16)), StandardCharsets.UTF_8), 1 << 16)) {
+         if (!jsonl) {
+            w.write(String.join(",", t.columns));
+            w.newLine();
+         }//end if
+         ProfNetwork[] dbs = userId == null ? esql.databases() : new ProfNetwork[]{esql.shard(userId)};
+         boolean dedupe = userId == null && dbs.length > 1;
+         long[] written = {0};
+         for (int s = 0; s < dbs.length; ++s) {
+            int shard = s;
+            dbs[s].executeQueryAndStream(query, FETCH_SIZE, row -> {
+               if (dedupe && ShardRouter.shardOf(row[t.owner], dbs.length) != shard) return;
+               try {
+                  for (int i = 0; i < row.length; ++i)
+                     if (row[i] != null) row[i] = row[i].trim();
+                  if (t.group != null)
+                     for (int i = 0; i < t.group.length; ++i)
+                        row[1 + i] = d.name(t.group[i], row[1 + i]);
+                  w.write(line(t.columns, row, jsonl));
+                  w.newLine();
+                  ++written[0];
+               } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+               } catch (java.sql.SQLException e) {
+                  throw new RuntimeException(e);
+               }//end try
+            });
+         }
+         r.rows = written[0];
+      }//end try
+      r.seconds = (System.nanoTime() - t0) / 1e9;
+      r.bytes = raw.count;
+      r.compressed = r.file.length();
+      return r;
+   }//end table
+
+   /**
+    * Exports everything that concerns one user, table after table, on
+    * the caller's connection
+    */
+   public static List<Result> user (ProfNetwork esql, String userId, File dir, boolean jsonl) throws Exception {
+      dir.mkdirs();
+      List<Result> out = new ArrayList<Result>();
+      for (Table t : TABLES)
+         out.add(table(esql, t, userId.trim(), dir, jsonl));
+      return out;
+   }//end user
+
+   /**
+    * Exports every table, up to threads tables at once, each on a
+    * connection of its own
+    */
+   public static List<Result> all (String dbname, String ports, String user, File dir, boolean jsonl, int threads)
+         throws Exception {
+      dir.mkdirs();
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, TABLES.length)));
+      List<Future<Result>> parts = new ArrayList<Future<Result>>();
+      for (Table t : TABLES)
+         parts.add(pool.submit(() -> {
+            ProfNetwork esql = new ProfNetwork (dbname, ports, user, "");
+            try (QueryGuard.Scope op = QueryGuard.as(QueryGuard.OFFLINE)) {
+               return table(esql, t, null, dir, jsonl);
+            } finally {
+               esql.cleanup();
+            }//end try
+         }));
+      pool.shutdown();
+      List<Result> out = new ArrayList<Result>();
+      for (Future<Result> f : parts)
+         out.add(f.get());
+      return out;
+   }//end all
+
+   /**
+    * @return one line per table and the total throughput
+    */
+   static String report (List<Result> results, double seconds) {
+      StringBuilder sb = new StringBuilder();
+      long bytes = 0, compressed = 0;
+      for (Result r : results) {
+         sb.append(r).append(String.format("%n"));
+         bytes += r.bytes;
+         compressed += r.compressed;
+      }
+      sb.append(String.format("   %-20s %10s      %9.1f MB %8.1f MB gz %7.2f s %7.1f MB/s (%.1f MB/s compressed)",
+         "total", "", bytes / 1e6, compressed / 1e6, seconds, bytes / 1e6 / seconds, compressed / 1e6 / seconds));
+      return sb.toString();
+   }//end report
+
+   private static String option (String[] args, String name, String fallback) {
+      for (String a : args)
+         if (a.startsWith("--" + name + "=")) return a.substring(name.length() + 3);
+      return fallback;
+   }//end option
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port[,port...]> <user> <outdir> [options]
+    */
+   public static void main (String[] args) throws Exception {
+      List<String> positional = new ArrayList<String>();
+      for (String a : args)
+         if (!a.startsWith("--")) positional.add(a);
+      if (positional.size() != 4) {
+         System.err.println ("Usage: java " + Export.class.getName () + " <dbname> <port[,port...]> <user> <outdir>"
+            + " [--user=ID] [--format=csv|jsonl] [--threads=N]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      String userId = option(args, "user", null);
+      boolean jsonl = option(args, "format", "csv").equals("jsonl");
+      int threads = Integer.parseInt(option(args, "threads", Integer.toString(TABLES.length)));
+      File dir = new File(positional.get(3));
+
+      long t0 = System.nanoTime();
+      List<Result> results;
+      if (userId != null) {
+         ProfNetwork esql = new ProfNetwork (positional.get(0), positional.get(1), positional.get(2), "");
+         try (QueryGuard.Scope op = QueryGuard.as(QueryGuard.OFFLINE)) {
+            results = user(esql, userId, dir, jsonl);
+         } finally {
+            esql.cleanup();
+         }//end try
+      } else {
+         results = all(positional.get(0), positional.get(1), positional.get(2), dir, jsonl, threads);
+      }//end if
+      double seconds = (System.nanoTime() - t0) / 1e9;
+      System.out.printf("Exported %s to %s (%s, %d table(s) at once):%n",
+         userId == null ? "every table" : "user " + userId, dir, jsonl ? "JSON lines" : "CSV",
+         userId == null ? Math.min(threads, TABLES.length) : 1);
+      System.out.println(report(results, seconds));
+   }//end main
+
+}//end Export
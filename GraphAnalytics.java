@@ -0,0 +1,432 @@
+/*
+ * Offline graph analytics
+ * =======================
+ *
+ * Connected components, degree distribution, top hubs and clustering
+ * coefficients of the accepted-connection graph.
+ *
+ *    java GraphAnalytics <Connection.csv> <outdir> [topK]
+ *    java GraphAnalytics <dbname> <port> <user> <outdir> [topK]
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class loads the accepted edges of CONNECTION_USR, from the
+ * database or from the CSV it is loaded from, into a compressed sparse
+ * row graph: user ids are interned to 0..n-1 and every undirected edge
+ * appears once in the sorted, de-duplicated adjacency of each endpoint.
+ * Edge direction and duplicate rows (both users accepting, or the two
+ * shard copies of one edge) do not matter.
+ *
+ * The stages run on the common fork-join pool:
+ *
+ *    - components: lock-free union-find over an AtomicIntegerArray,
+ *      linking roots by CAS and compressing paths by halving;
+ *    - degrees: histogram and top-K hubs from per-range heaps;
+ *    - clustering: triangles counted once each by orienting every edge
+ *      from the lower to the higher (degree, id) endpoint and
+ *      intersecting the sorted forward lists, so hubs do not make the
+ *      count quadratic in their degree.
+ *
+ * Results go to CSV files in the output directory, and the wall time of
+ * each stage is printed and written to summary.csv.
+ *
+ */
+
+public class GraphAnalytics {
+
+   // nodes per fork-join leaf.
+   static final int LEAF = 2048;
+
+   final String[] names;
+   final int n;
+   // adjacency of node u is adj[off[u] .. off[u+1]), sorted ascending.
+   final int[] off;
+   final int[] adj;
+
+   GraphAnalytics (String[] names, int[] off, int[] adj) {
+      this.names = names;
+      this.n = names.length;
+      this.off = off;
+      this.adj = adj;
+   }//end GraphAnalytics
+
+   int degree (int u) {
+      return off[u + 1] - off[u];
+   }//end degree
+
+   /**
+    * Collects edges as interned id pairs
+    */
+   static final class EdgeList {
+      final Map<String, Integer> ids = new HashMap<String, Integer>();
+      final List<String> names = new ArrayList<String>();
+      int[] src = new int[1 << 16], dst = new int[1 << 16];
+      int m = 0;
+
+      int id (String userId) {
+         String k = userId.trim();
+         Integer i = ids.get(k);
+         if (i == null) {
+            i = names.size();
+            ids.put(k, i);
+            names.add(k);
+         }
+         return i;
+      }//end id
+
+      void add (String a, String b) {
+         int u = id(a), v = id(b);
+         if (u == v) return;
+         if (m == src.length) {
+            src = Arrays.copyOf(src, m * 2);
+            dst = Arrays.copyOf(dst, m * 2);
+         }
+         src[m] = u;
+         dst[m++] = v;
+      }//end add
+   }//end EdgeList
+
+   /**
+    * Builds the sorted, de-duplicated undirected adjacency
+    */
+   static GraphAnalytics build (EdgeList e) {
+      int n = e.names.size();
+      int[] raw = new int[n + 1];
+      for (int i = 0; i < e.m; ++i) {
+         ++raw[e.src[i] + 1];
+         ++raw[e.dst[i] + 1];
+      }
+      for (int u = 0; u < n; ++u) raw[u + 1] += raw[u];
+      int[] rawAdj = new int[raw[n]];
+      int[] fill = Arrays.copyOf(raw, n);
+      for (int i = 0; i < e.m; ++i) {
+         rawAdj[fill[e.src[i]]++] = e.dst[i];
+         rawAdj[fill[e.dst[i]]++] = e.src[i];
+      }
+      // sort and de-duplicate every list in place, then compact.
+      int[] deg = new int[n];
+      IntStream.range(0, n).parallel().forEach(u -> {
+         int from = raw[u], to = raw[u + 1];
+         Arrays.sort(rawAdj, from, to);
+         int k = from;
+         for (int i = from; i < to; ++i)
+            if (k == from || rawAdj[k - 1] != rawAdj[i]) rawAdj[k++] = rawAdj[i];
+         deg[u] = k - from;
+      });
+      int[] off = new int[n + 1];
+      for (int u = 0; u < n; ++u) off[u + 1] = off[u] + deg[u];
+      int[] adj = new int[off[n]];
+      IntStream.range(0, n).parallel().forEach(u -> System.arraycopy(rawAdj, raw[u], adj, off[u], deg[u]));
+      return new GraphAnalytics(e.names.toArray(new String[0]), off, adj);
+   }//end build
+
+   // ---- connected components ----
+
+   static int find (AtomicIntegerArray parent, int x) {
+      while (true) {
+         int p = parent.get(x);
+         if (p == x) return x;
+         int g = parent.get(p);
+         if (p != g) parent.compareAndSet(x, p, g);
+         x = g;
+      }
+   }//end find
+
+   static void union (AtomicIntegerArray parent, int a, int b) {
+      while (true) {
+         int ra = find(parent, a), rb = find(parent, b);
+         if (ra == rb) return;
+         // the larger root goes under the smaller one, so links never cycle.
+         if (ra < rb) { int t = ra; ra = rb; rb = t; }
+         if (parent.compareAndSet(ra, ra, rb)) return;
+      }
+   }//end union
+
+   /**
+    * @return the component label of every node: the smallest node id in it
+    */
+   int[] components () {
+      AtomicIntegerArray parent = new AtomicIntegerArray(n);
+      for (int u = 0; u < n; ++u) parent.set(u, u);
+      ForkJoinPool.commonPool().invoke(new Nodes(0, n) {
+         void leaf (int from, int to) {
+            for (int u = from; u < to; ++u)
+               for (int i = off[u]; i < off[u + 1]; ++i)
+                  if (adj[i] > u) union(parent, u, adj[i]);
+         }
+      });
+      int[] comp = new int[n];
+      IntStream.range(0, n).parallel().forEach(u -> comp[u] = find(parent, u));
+      return comp;
+   }//end components
+
+   /**
+    * Splits a node range across the fork-join pool
+    */
+   abstract class Nodes extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      final int from, to;
+
+      Nodes (int from, int to) {
+         this.from = from;
+         this.to = to;
+      }//end Nodes
+
+      abstract void leaf (int from, int to);
+
+      protected void compute () {
+         // split by adjacency volume rather than node count, so a range
+         // holding hubs is divided further.
+         if (to - from <= 1 || off[to] - off[from] <= LEAF * 8 && to - from <= LEAF) {
+            leaf(from, to);
+            return;
+         }
+         int mid = (from + to) >>> 1;
+         Nodes outer = this;
+         invokeAll(new Nodes(from, mid) {
+            void leaf (int a, int b) { outer.leaf(a, b); }
+         }, new Nodes(mid, to) {
+            void leaf (int a, int b) { outer.leaf(a, b); }
+         });
+      }//end compute
+   }//end Nodes
+
+   // ---- degrees ----
+
+   /**
+    * @return the k nodes of highest degree, highest first
+    */
+   int[] topK (int k) {
+      int chunks = Math.max(1, Math.min(64, n / LEAF));
+      List<int[]> partial = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+         PriorityQueue<Integer> heap = new PriorityQueue<Integer>((a, b) -> Integer.compare(degree(a), degree(b)));
+         for (int u = (int) ((long) n * c / chunks); u < (long) n * (c + 1) / chunks; ++u) {
+            if (heap.size() < k) heap.add(u);
+            else if (degree(u) > degree(heap.peek())) { heap.poll(); heap.add(u); }
+         }
+         return heap.stream().mapToInt(Integer::intValue).toArray();
+      }).collect(Collectors.toList());
+      return partial.stream().flatMapToInt(Arrays::stream).boxed()
+         .sorted((a, b) -> degree(b) != degree(a) ? Integer.compare(degree(b), degree(a)) : Integer.compare(a, b))
+         .limit(k).mapToInt(Integer::intValue).toArray();
+   }//end topK
+
+   // ---- clustering ----
+
+   // the orientation order: by degree, ties by id.
+   boolean before (int u, int v) {
+      int du = degree(u), dv = degree(v);
+      return du < dv || du == dv && u < v;
+   }//end before
+
+   /**
+    * @return the number of triangles through every node
+    */
+   int[] triangles () {
+      // forward lists: neighbors later in the orientation order, sorted by id.
+      int[] fOff = new int[n + 1];
+      for (int u = 0; u < n; ++u) {
+         int c = 0;
+         for (int i = off[u]; i < off[u + 1]; ++i)
+            if (before(u, adj[i])) ++c;
+         fOff[u + 1] = fOff[u] + c;
+      }
+      int[] fwd = new int[fOff[n]];
+      IntStream.range(0, n).parallel().forEach(u -> {
+         int k = fOff[u];
+         for (int i = off[u]; i < off[u + 1]; ++i)
+            if (before(u, adj[i])) fwd[k++] = adj[i];
+      });
+      AtomicIntegerArray tri = new AtomicIntegerArray(n);
+      ForkJoinPool.commonPool().invoke(new Nodes(0, n) {
+         void leaf (int from, int to) {
+            for (int u = from; u < to; ++u)
+               for (int i = fOff[u]; i < fOff[u + 1]; ++i) {
+                  int v = fwd[i];
+                  // merge-intersect fwd(u) and fwd(v).
+                  int a = fOff[u], ae = fOff[u + 1], b = fOff[v], be = fOff[v + 1];
+                  while (a < ae && b < be) {
+                     if (fwd[a] < fwd[b]) ++a;
+                     else if (fwd[a] > fwd[b]) ++b;
+                     else {
+                        tri.incrementAndGet(u);
+                        tri.incrementAndGet(v);
+                        tri.incrementAndGet(fwd[a]);
+                        ++a;
+                        ++b;
+                     }
+                  }
+               }
+         }
+      });
+      int[] t = new int[n];
+      for (int u = 0; u < n; ++u) t[u] = tri.get(u);
+      return t;
+   }//end triangles
+
+   double clustering (int u, int triangles) {
+      long d = degree(u);
+      return d < 2 ? 0.0 : 2.0 * triangles / (d * (d - 1));
+   }//end clustering
+
+   // ---- loading ----
+
+   static EdgeList fromCsv (String path) throws Exception {
+      EdgeList e = new EdgeList();
+      BufferedReader r = new BufferedReader(new FileReader(path));
+      r.readLine();
+      for (String line; (line = r.readLine()) != null; ) {
+         String[] f = line.split(",");
+         if (f.length >= 3 && f[2].trim().equals("Accept")) e.add(f[0], f[1]);
+      }
+      r.close();
+      return e;
+   }//end fromCsv
+
+   static EdgeList fromDatabase (ProfNetwork esql) throws Exception {
+      EdgeList e = new EdgeList();
+      esql.executeQueryAndStream("SELECT userId, connectionId FROM CONNECTION_USR WHERE status='Accept'",
+         10000, row -> e.add(row[0], row[1]));
+      return e;
+   }//end fromDatabase
+
+   /**
+    * The main execution method
+    *
+    * @param args <Connection.csv> <outdir> [topK] or
+    *             <dbname> <port> <user> <outdir> [topK]
+    */
+   public static void main (String[] args) throws Exception {
+      boolean db = args.length >= 4;
+      if (args.length < 2) {
+         System.err.println ("Usage: java " + GraphAnalytics.class.getName () + " <Connection.csv> <outdir> [topK]");
+         System.err.println ("       java " + GraphAnalytics.class.getName () + " <dbname> <port> <user> <outdir> [topK]");
+         return;
+      }//end if
+      File out = new File(args[db ? 3 : 1]);
+      int k = args.length > (db ? 4 : 2) ? Integer.parseInt(args[db ? 4 : 2]) : 100;
+      out.mkdirs();
+      List<String[]> times = new ArrayList<String[]>();
+
+      long t = System.nanoTime();
+      EdgeList edges;
+      if (db) {
+         Class.forName ("org.postgresql.Driver");
+         ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+         edges = fromDatabase(esql);
+         esql.cleanup();
+      } else {
+         edges = fromCsv(args[0]);
+      }
+      t = stage(times, "load", t);
+      GraphAnalytics g = build(edges);
+      edges = null;
+      t = stage(times, "build", t);
+
+      int[] comp = g.components();
+      int[] compSize = new int[g.n];
+      for (int c : comp) ++compSize[c];
+      t = stage(times, "components", t);
+
+      int maxDegree = 0;
+      for (int u = 0; u < g.n; ++u) maxDegree = Math.max(maxDegree, g.degree(u));
+      long[] degreeHist = new long[maxDegree + 1];
+      for (int u = 0; u < g.n; ++u) ++degreeHist[g.degree(u)];
+      int[] hubs = g.topK(k);
+      t = stage(times, "degrees", t);
+
+      int[] tri = g.triangles();
+      long triangles = 0, triads = 0;
+      double clusteringSum = 0;
+      int clusteringNodes = 0;
+      for (int u = 0; u < g.n; ++u) {
+         long d = g.degree(u);
+         triangles += tri[u];
+         triads += d * (d - 1) / 2;
+         if (d >= 2) {
+            clusteringSum += g.clustering(u, tri[u]);
+            ++clusteringNodes;
+         }
+      }
+      triangles /= 3;
+      t = stage(times, "clustering", t);
+
+      long components = 0;
+      int largest = 0;
+      Map<Integer, Integer> sizeHist = new TreeMap<Integer, Integer>();
+      for (int s : compSize)
+         if (s > 0) {
+            ++components;
+            largest = Math.max(largest, s);
+            sizeHist.merge(s, 1, Integer::sum);
+         }
+      PrintWriter w = new PrintWriter(new File(out, "nodes.csv"));
+      w.println("userId,component,degree,triangles,clustering");
+      for (int u = 0; u < g.n; ++u)
+         w.printf("%s,%s,%d,%d,%.6f%n", g.names[u], g.names[comp[u]], g.degree(u), tri[u], g.clustering(u, tri[u]));
+      w.close();
+      w = new PrintWriter(new File(out, "component_sizes.csv"));
+      w.println("size,components");
+      for (Map.Entry<Integer, Integer> e : sizeHist.entrySet()) w.println(e.getKey() + "," + e.getValue());
+      w.close();
+      w = new PrintWriter(new File(out, "degree_histogram.csv"));
+      w.println("degree,users");
+      for (int d = 0; d <= maxDegree; ++d)
+         if (degreeHist[d] > 0) w.println(d + "," + degreeHist[d]);
+      w.close();
+      w = new PrintWriter(new File(out, "top_hubs.csv"));
+      w.println("rank,userId,degree,clustering");
+      for (int i = 0; i < hubs.length; ++i)
+         w.printf("%d,%s,%d,%.6f%n", i + 1, g.names[hubs[i]], g.degree(hubs[i]), g.clustering(hubs[i], tri[hubs[i]]));
+      w.close();
+      t = stage(times, "write", t);
+
+      w = new PrintWriter(new File(out, "summary.csv"));
+      w.println("metric,value");
+      String[][] summary = {
+         {"users", Integer.toString(g.n)},
+         {"edges", Integer.toString(g.adj.length / 2)},
+         {"components", Long.toString(components)},
+         {"largest_component", Integer.toString(largest)},
+         {"max_degree", Integer.toString(maxDegree)},
+         {"triangles", Long.toString(triangles)},
+         {"average_clustering", String.format("%.6f", clusteringNodes == 0 ? 0.0 : clusteringSum / clusteringNodes)},
+         {"transitivity", String.format("%.6f", triads == 0 ? 0.0 : 3.0 * triangles / triads)},
+         {"threads", Integer.toString(ForkJoinPool.commonPool().getParallelism())}};
+      for (String[] s : summary) {
+         w.println(s[0] + "," + s[1]);
+         System.out.printf("%-20s %s%n", s[0], s[1]);
+      }
+      for (String[] s : times) w.println("stage_ms_" + s[0] + "," + s[1]);
+      w.close();
+   }//end main
+
+   private static long stage (List<String[]> times, String name, long start) {
+      long now = System.nanoTime();
+      String ms = String.format("%.1f", (now - start) / 1e6);
+      times.add(new String[]{name, ms});
+      System.out.printf("stage %-12s %10s ms%n", name, ms);
+      return now;
+   }//end stage
+
+}//end GraphAnalytics
@@ -0,0 +1,355 @@
+/*
+ * Hub neighborhood cache
+ * ======================
+ *
+ * Keeps the accepted-connection sets of high-degree users in memory so
+ * traversals through them do not re-run the CONNECTION_USR union query.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class interns user ids to ints and caches the neighbor set of
+ * every user whose degree reaches the threshold. A set is a sorted int
+ * array, or a bitset over the interned id space when it covers more than
+ * 1/32 of that space, where the bitset is the smaller of the two.
+ *
+ * Sets are immutable; an accepted connection replaces the cached sets of
+ * its endpoints with a copy that includes the new edge, so readers never
+ * lock. A user whose freshly queried neighborhood reaches the threshold
+ * is admitted on the spot.
+ *
+ */
+
+public class HubCache {
+
+   static final int DEFAULT_THRESHOLD = 100;
+
+   /**
+    * An immutable set of interned user ids
+    */
+   public static final class Neighbors {
+      // sorted, distinct; null when the set is a bitset.
+      private final int[] ids;
+      private final BitSet bits;
+      private final int size;
+
+      private Neighbors (int[] ids, BitSet bits, int size) {
+         this.ids = ids;
+         this.bits = bits;
+         this.size = size;
+      }//end Neighbors
+
+      /**
+       * @param ids interned ids in any order, duplicates allowed
+       * @param universe number of interned ids so far
+       */
+      static Neighbors of (int[] ids, int n, int universe) {
+         int[] sorted = Arrays.copyOf(ids, n);
+         Arrays.sort(sorted);
+         int k = 0;
+         for (int i = 0; i < n; ++i)
+            if (k == 0 || sorted[k - 1] != sorted[i]) sorted[k++] = sorted[i];
+         if ((long) k * 32 > universe) {
+            BitSet bits = new BitSet(universe);
+            for (int i = 0; i < k; ++i) bits.set(sorted[i]);
+            return new Neighbors(null, bits, k);
+         }
+         return new Neighbors(Arrays.copyOf(sorted, k), null, k);
+      }//end of
+
+      public int size () {
+         return size;
+      }//end size
+
+      public boolean contains (int id) {
+         if (bits != null) return bits.get(id);
+         return Arrays.binarySearch(ids, id) >= 0;
+      }//end contains
+
+      /**
+       * @return true if the two sets share an id; probes the smaller set
+       *         against the larger one
+       */
+      public boolean intersects (Neighbors other) {
+         Neighbors small = size <= other.size ? this : other, large = small == this ? other : this;
+         if (small.bits != null && large.bits != null) return small.bits.intersects(large.bits);
+         if (small.bits != null) {
+            // the larger set is an array: it is the one to walk.
+            for (int id : large.ids)
+               if (small.bits.get(id)) return true;
+            return false;
+         }
+         for (int id : small.ids)
+            if (large.contains(id)) return true;
+         return false;
+      }//end intersects
+
+      /**
+       * @return the ids of the set in ascending order
+       */
+      public int[] toArray () {
+         if (bits == null) return ids;
+         return bits.stream().toArray();
+      }//end toArray
+
+      Neighbors with (int id, int universe) {
+         if (contains(id)) return this;
+         int[] all = new int[size + 1];
+         int n = 0;
+         if (bits != null)
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) all[n++] = i;
+         else
+            for (int i : ids) all[n++] = i;
+         all[n++] = id;
+         return of(all, n, universe);
+      }//end with
+   }//end Neighbors
+
+   final int threshold;
+   private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+   private final ConcurrentHashMap<Integer, String> userIds = new ConcurrentHashMap<Integer, String>();
+   private final AtomicInteger nextId = new AtomicInteger();
+   private final ConcurrentHashMap<Integer, Neighbors> hubs = new ConcurrentHashMap<Integer, Neighbors>();
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong rowsSaved = new AtomicLong();
+   private final AtomicLong updates = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+   public HubCache (int threshold) {
+      this.threshold = threshold;
+   }//end HubCache
+
+   /**
+    * @return the interned id of a user, assigned on first sight
+    */
+   public int id (String userId) {
+      return ids.computeIfAbsent(userId.trim(), k -> {
+         int id = nextId.getAndIncrement();
+         userIds.put(id, k);
+         return id;
+      });
+   }//end id
+
+   /**
+    * @return the user id an interned id stands for
+    */
+   public String userId (int id) {
+      return userIds.get(id);
+   }//end userId
+
+   /**
+    * @return one set holding the ids of all given sets
+    */
+   public Neighbors union (Collection<Neighbors> sets) {
+      int total = 0;
+      for (Neighbors n : sets) total += n.size();
+      int[] a = new int[total];
+      int k = 0;
+      for (Neighbors n : sets)
+         for (int id : n.toArray()) a[k++] = id;
+      return Neighbors.of(a, k, nextId.get());
+   }//end union
+
+   /**
+    * @return a neighbor set over interned ids of the given users
+    */
+   public Neighbors of (Collection<String> userIds) {
+      int[] a = new int[userIds.size()];
+      int n = 0;
+      for (String u : userIds) a[n++] = id(u);
+      return Neighbors.of(a, n, nextId.get());
+   }//end of
+
+   /**
+    * @return the cached set of a hub, or null (counted as a miss) when the
+    *         caller has to query the database
+    */
+   public Neighbors get (String userId) {
+      Neighbors n = hubs.get(id(userId));
+      if (n == null) {
+         misses.incrementAndGet();
+         return null;
+      }
+      hits.incrementAndGet();
+      rowsSaved.addAndGet(n.size());
+      return n;
+   }//end get
+
+   /**
+    * Offers a freshly queried neighborhood; kept if it reaches the
+    * threshold
+    */
+   public void offer (String userId, Neighbors n) {
+      if (n.size() >= threshold) hubs.put(id(userId), n);
+   }//end offer
+
+   /**
+    * Adds an accepted connection to the cached sets of its endpoints
+    */
+   public void onAccept (String a, String b) {
+      int ia = id(a), ib = id(b);
+      if (hubs.computeIfPresent(ia, (k, n) -> n.with(ib, nextId.get())) != null) updates.incrementAndGet();
+      if (hubs.computeIfPresent(ib, (k, n) -> n.with(ia, nextId.get())) != null) updates.incrementAndGet();
+   }//end onAccept
+
+   /**
+    * Drops the cached set of a user changed by another process; the
+    * next traversal re-reads it and offers it again
+    *
+    * @return true if the user was cached
+    */
+   public boolean evict (String userId) {
+      Integer id = ids.get(userId.trim());
+      if (id == null || hubs.remove(id) == null) return false;
+      evictions.incrementAndGet();
+      return true;
+   }//end evict
+
+   public int hubCount () {
+      return hubs.size();
+   }//end hubCount
+
+   private static String q (String v) {
+      return PostgresStore.q(v);
+   }//end q
+
+   /**
+    * Finds the users at or above the threshold and loads their accepted
+    * connections. Degrees are counted by the server; only hub edges are
+    * transferred.
+    */
+   public static HubCache load (ProfNetwork esql, int threshold) throws Exception {
+      HubCache cache = new HubCache(threshold);
+      List<String> hubIds = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResultAll(String.format(
+            "SELECT id FROM (SELECT userId AS id FROM CONNECTION_USR WHERE status='Accept' "
+            + "UNION ALL SELECT connectionId FROM CONNECTION_USR WHERE status='Accept') d "
+            + "GROUP BY id HAVING count(*) >= %d", threshold)))
+         hubIds.add(row.get(0).trim());
+
+      Map<String, List<String>> adj = new HashMap<String, List<String>>();
+      for (String h : hubIds) adj.put(h, new ArrayList<String>());
+      for (int from = 0; from < hubIds.size(); from += 500) {
+         StringBuilder in = new StringBuilder();
+         for (String h : hubIds.subList(from, Math.min(hubIds.size(), from + 500)))
+            in.append(in.length() == 0 ? "'" : ",'").append(q(h)).append('\'');
+         for (List<String> row : esql.executeQueryAndReturnResultAll(String.format(
+               "SELECT userId, connectionId FROM CONNECTION_USR WHERE status='Accept' "
+               + "AND (userId IN (%s) OR connectionId IN (%s))", in, in))) {
+            String u = row.get(0).trim(), c = row.get(1).trim();
+            if (adj.containsKey(u)) adj.get(u).add(c);
+            if (adj.containsKey(c)) adj.get(c).add(u);
+         }
+      }
+      for (Map.Entry<String, List<String>> e : adj.entrySet())
+         cache.hubs.put(cache.id(e.getKey()), cache.of(e.getValue()));
+      return cache;
+   }//end load
+
+   /**
+    * @return hit rate and size counters
+    */
+   public String report () {
+      long h = hits.get(), m = misses.get();
+      return String.format("Hub cache: %d hubs (degree >= %d), %d hits, %d misses (%.1f%% hit rate), "
+         + "%d neighbor rows not re-read, %d incremental updates, %d evictions",
+         hubs.size(), threshold, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), rowsSaved.get(), updates.get(),
+         evictions.get());
+   }//end report
+
+   /**
+    * Compares the three-level reachability check of Connection_Request
+    * done by nested expansion with the set-intersection form on an
+    * accepted-edge CSV. Each neighbor list the expansion reads stands for
+    * one union query.
+    *
+    * @param args <Connection.csv> [threshold]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println ("Usage: java " + HubCache.class.getName () + " <Connection.csv> [threshold]");
+         return;
+      }//end if
+      int threshold = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THRESHOLD;
+      Map<String, List<String>> adj = new HashMap<String, List<String>>();
+      BufferedReader r = new BufferedReader(new FileReader(args[0]));
+      r.readLine();
+      for (String line; (line = r.readLine()) != null; ) {
+         String[] f = line.split(",");
+         if (f.length < 3 || !f[2].trim().equals("Accept")) continue;
+         adj.computeIfAbsent(f[0].trim(), k -> new ArrayList<String>()).add(f[1].trim());
+         adj.computeIfAbsent(f[1].trim(), k -> new ArrayList<String>()).add(f[0].trim());
+      }
+      r.close();
+      List<String> users = new ArrayList<String>(adj.keySet());
+      int maxDegree = 0;
+      for (List<String> n : adj.values()) maxDegree = Math.max(maxDegree, n.size());
+
+      HubCache cache = new HubCache(threshold);
+      for (String u : users) cache.id(u);
+      for (Map.Entry<String, List<String>> e : adj.entrySet())
+         if (e.getValue().size() >= threshold) cache.offer(e.getKey(), cache.of(e.getValue()));
+
+      SplittableRandom rnd = new SplittableRandom(42);
+      int pairs = Math.min(2000, users.size());
+      String[][] sample = new String[pairs][];
+      for (int i = 0; i < pairs; ++i)
+         sample[i] = new String[]{users.get(rnd.nextInt(users.size())), users.get(rnd.nextInt(users.size()))};
+
+      long t0 = System.nanoTime(), nestedReads = 0;
+      int nestedFound = 0;
+      for (String[] p : sample) {
+         boolean found = false;
+         for (String b : adj.get(p[0])) {
+            List<String> nb = adj.get(b);
+            ++nestedReads;
+            if (nb.contains(p[1])) { found = true; break; }
+            for (String c : nb) {
+               ++nestedReads;
+               if (adj.get(c).contains(p[1])) { found = true; break; }
+            }
+            if (found) break;
+         }
+         if (found) ++nestedFound;
+      }
+      long t1 = System.nanoTime(), setReads = 0;
+      int setFound = 0;
+      for (String[] p : sample) {
+         Neighbors target = cache.get(p[1]);
+         if (target == null) { target = cache.of(adj.get(p[1])); ++setReads; }
+         int id = cache.id(p[1]);
+         for (String b : adj.get(p[0])) {
+            Neighbors nb = cache.get(b);
+            if (nb == null) { nb = cache.of(adj.get(b)); ++setReads; }
+            if (nb.contains(id) || nb.intersects(target)) { ++setFound; break; }
+         }
+      }
+      long t2 = System.nanoTime();
+      System.out.printf("%d users with accepted connections, max degree %d%n", users.size(), maxDegree);
+      System.out.printf("  nested expansion: %d reachable of %d, %d neighbor lists read, %.1f ms%n",
+         nestedFound, pairs, nestedReads, (t1 - t0) / 1e6);
+      System.out.printf("  set intersection: %d reachable of %d, %d neighbor lists read, %.1f ms%n",
+         setFound, pairs, setReads, (t2 - t1) / 1e6);
+      System.out.println("  " + cache.report());
+      if (nestedFound != setFound)
+         System.out.println("  MISMATCH between nested expansion and set intersection");
+   }//end main
+
+}//end HubCache
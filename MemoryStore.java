@@ -0,0 +1,821 @@
+/*
+ * In-memory storage backend
+ * =========================
+ *
+ * ProfileStore kept entirely in the JVM, for functional and performance
+ * testing without a PostgreSQL server. State can be built from the CSV
+ * files load_data.sql reads, snapshotted to a file and restored in
+ * milliseconds.
+ *
+ *    java MemoryStore <csvdir> <snapshot>
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * This class implements ProfileStore on in-memory structures. Every user
+ * id is interned to a dense int; users and messages live in lock-striped
+ * int-keyed hash maps, and every user owns primitive adjacency maps of
+ * outgoing and incoming connection edges (target to status). Per-user
+ * state is guarded by the user's own monitor, so unrelated users never
+ * contend.
+ *
+ * There are no summaries: the organization statistics and the overlap
+ * indexes scan every user when asked.
+ *
+ */
+
+public class MemoryStore implements ProfileStore {
+
+   static final byte REQUEST = 0, ACCEPT = 1, REJECT = 2;
+   static final String[] STATUS = {"Request", "Accept", "Reject"};
+   static final int SNAPSHOT_VERSION = 1;
+
+   /**
+    * Open-addressing int to int map; callers synchronize
+    */
+   static final class IntIntMap {
+      int[] keys = new int[8];
+      int[] vals = new int[8];
+      boolean[] used = new boolean[8];
+      int size = 0;
+
+      private int slot (int k) {
+         int mask = keys.length - 1, i = (k * 0x9E3779B9) >>> 7 & mask;
+         while (used[i] && keys[i] != k) i = (i + 1) & mask;
+         return i;
+      }//end slot
+
+      int get (int k, int missing) {
+         int i = slot(k);
+         return used[i] ? vals[i] : missing;
+      }//end get
+
+      void put (int k, int v) {
+         int i = slot(k);
+         if (!used[i]) {
+            if ((size + 1) * 4 > keys.length * 3) {
+               grow();
+               i = slot(k);
+            }
+            used[i] = true;
+            keys[i] = k;
+            ++size;
+         }
+         vals[i] = v;
+      }//end put
+
+      private void grow () {
+         int[] k = keys, v = vals;
+         boolean[] u = used;
+         keys = new int[k.length * 2];
+         vals = new int[k.length * 2];
+         used = new boolean[k.length * 2];
+         size = 0;
+         for (int i = 0; i < k.length; ++i)
+            if (u[i]) put(k[i], v[i]);
+      }//end grow
+   }//end IntIntMap
+
+   /**
+    * Lock-striped int to object map
+    */
+   static final class IntObjectMap<V> {
+      static final int STRIPES = 64;
+      private final Object[] locks = new Object[STRIPES];
+      private final int[][] ikeys = new int[STRIPES][];
+      private final Object[][] vals = new Object[STRIPES][];
+      private final int[] sizes = new int[STRIPES];
+
+      IntObjectMap () {
+         for (int s = 0; s < STRIPES; ++s) {
+            locks[s] = new Object();
+            ikeys[s] = new int[16];
+            vals[s] = new Object[16];
+         }
+      }//end IntObjectMap
+
+      private static int mix (int k) {
+         int h = k * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }//end mix
+
+      @SuppressWarnings("unchecked")
+      V get (int k) {
+         int h = mix(k), s = h & (STRIPES - 1);
+         synchronized (locks[s]) {
+            int[] ks = ikeys[s];
+            Object[] vs = vals[s];
+            int mask = ks.length - 1;
+            for (int i = (h >>> 6) & mask; vs[i] != null; i = (i + 1) & mask)
+               if (ks[i] == k) return (V) vs[i];
+            return null;
+         }
+      }//end get
+
+      void put (int k, V v) {
+         int h = mix(k), s = h & (STRIPES - 1);
+         synchronized (locks[s]) {
+            if ((sizes[s] + 1) * 4 > ikeys[s].length * 3) grow(s);
+            int[] ks = ikeys[s];
+            Object[] vs = vals[s];
+            int mask = ks.length - 1, i = (h >>> 6) & mask;
+            while (vs[i] != null && ks[i] != k) i = (i + 1) & mask;
+            if (vs[i] == null) ++sizes[s];
+            ks[i] = k;
+            vs[i] = v;
+         }
+      }//end put
+
+      // callers hold the stripe lock.
+      private void grow (int s) {
+         int[] ks = ikeys[s];
+         Object[] vs = vals[s];
+         int[] nk = new int[ks.length * 2];
+         Object[] nv = new Object[ks.length * 2];
+         int mask = nk.length - 1;
+         for (int j = 0; j < ks.length; ++j) {
+            if (vs[j] == null) continue;
+            int i = (mix(ks[j]) >>> 6) & mask;
+            while (nv[i] != null) i = (i + 1) & mask;
+            nk[i] = ks[j];
+            nv[i] = vs[j];
+         }
+         ikeys[s] = nk;
+         vals[s] = nv;
+      }//end grow
+   }//end IntObjectMap
+
+   /**
+    * One user with profile rows and adjacency
+    */
+   static final class User {
+      final int id;
+      final String userId;
+      String password, email, name, dateOfBirth;
+      final List<String[]> work = new ArrayList<String[]>(2);
+      final List<String[]> education = new ArrayList<String[]>(2);
+      // edges stored under this user (userId side) and pointing at it.
+      final IntIntMap out = new IntIntMap();
+      final IntIntMap in = new IntIntMap();
+      int[] sent = new int[0];
+      int[] received = new int[0];
+
+      User (int id, String userId) {
+         this.id = id;
+         this.userId = userId;
+      }//end User
+   }//end User
+
+   /**
+    * One message; deleteStatus is guarded by the message monitor
+    */
+   static final class Message {
+      final int msgId;
+      final int sender, receiver;
+      final String contents, sendTime, status;
+      int deleteStatus;
+
+      Message (int msgId, int sender, int receiver, String contents, String sendTime, int deleteStatus, String status) {
+         this.msgId = msgId;
+         this.sender = sender;
+         this.receiver = receiver;
+         this.contents = contents;
+         this.sendTime = sendTime;
+         this.deleteStatus = deleteStatus;
+         this.status = status;
+      }//end Message
+   }//end Message
+
+   private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+   private final AtomicInteger nextUser = new AtomicInteger();
+   private final IntObjectMap<User> users = new IntObjectMap<User>();
+   private final IntObjectMap<Message> messages = new IntObjectMap<Message>();
+   private final AtomicInteger nextMsgId;
+
+   /**
+    * Creates an empty store
+    *
+    * @param firstMsgId first message id handed out, 27812 to mirror msgId_seq
+    */
+   public MemoryStore (int firstMsgId) {
+      this.nextMsgId = new AtomicInteger(firstMsgId);
+   }//end MemoryStore
+
+   public MemoryStore () {
+      this(27812);
+   }//end MemoryStore
+
+   private User user (String userId) {
+      Integer id = userId == null ? null : ids.get(userId.trim());
+      return id == null ? null : users.get(id);
+   }//end user
+
+   private User require (String userId) {
+      User u = user(userId);
+      if (u == null) throw new IllegalArgumentException("user " + userId + " does not exist");
+      return u;
+   }//end require
+
+   public boolean createUser (String userId, String password, String email, String name, String dateOfBirth) {
+      String key = userId.trim();
+      synchronized (ids) {
+         if (ids.containsKey(key)) return false;
+         User u = new User(nextUser.getAndIncrement(), key);
+         u.password = password;
+         u.email = email;
+         u.name = name;
+         u.dateOfBirth = dateOfBirth;
+         users.put(u.id, u);
+         ids.put(key, u.id);
+      }
+      return true;
+   }//end createUser
+
+   public boolean userExists (String userId) {
+      return user(userId) != null;
+   }//end userExists
+
+   public boolean checkLogin (String userId, String password) {
+      User u = user(userId);
+      if (u == null) return false;
+      synchronized (u) {
+         return u.password.equals(password);
+      }
+   }//end checkLogin
+
+   public void changePassword (String userId, String password) {
+      User u = require(userId);
+      synchronized (u) {
+         u.password = password;
+      }
+   }//end changePassword
+
+   public List<List<String>> findByName (String name) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int id = 0; id < nextUser.get(); ++id) {
+         User u = users.get(id);
+         if (u == null) continue;
+         synchronized (u) {
+            if (name.equals(u.name))
+               rows.add(Arrays.asList(u.userId, u.email, u.name, u.dateOfBirth));
+         }
+      }
+      return rows;
+   }//end findByName
+
+   public Map<String, List<String>> users (Collection<String> userIds) {
+      Map<String, List<String>> found = new LinkedHashMap<String, List<String>>();
+      for (String id : userIds) {
+         User u = user(id);
+         if (u == null) continue;
+         synchronized (u) {
+            found.put(u.userId, Arrays.asList(u.userId, u.email, u.name, u.dateOfBirth));
+         }
+      }
+      return found;
+   }//end users
+
+   public void addWork (String userId, String company, String role, String location, String startDate, String endDate) {
+      User u = require(userId);
+      synchronized (u) {
+         u.work.add(new String[]{company, role, location, startDate, endDate});
+      }
+   }//end addWork
+
+   public void addEducation (String userId, String institution, String major, String degree, String startDate, String endDate) {
+      User u = require(userId);
+      synchronized (u) {
+         u.education.add(new String[]{institution, major, degree, startDate, endDate});
+      }
+   }//end addEducation
+
+   private static List<List<String>> rows (List<String[]> list) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (String[] r : list) rows.add(new ArrayList<String>(Arrays.asList(r)));
+      // ordered by start date like the SQL backend.
+      rows.sort((a, b) -> String.valueOf(a.get(3)).compareTo(String.valueOf(b.get(3))));
+      return rows;
+   }//end rows
+
+   public List<List<String>> work (String userId) {
+      User u = require(userId);
+      synchronized (u) {
+         return rows(u.work);
+      }
+   }//end work
+
+   public List<List<String>> education (String userId) {
+      User u = require(userId);
+      synchronized (u) {
+         return rows(u.education);
+      }
+   }//end education
+
+   public Map<String, List<List<String>>> work (Collection<String> userIds) {
+      Map<String, List<List<String>>> found = new LinkedHashMap<String, List<List<String>>>();
+      for (String id : userIds)
+         found.put(id.trim(), userExists(id) ? work(id) : new ArrayList<List<String>>());
+      return found;
+   }//end work
+
+   public Map<String, List<List<String>>> education (Collection<String> userIds) {
+      Map<String, List<List<String>>> found = new LinkedHashMap<String, List<List<String>>>();
+      for (String id : userIds)
+         found.put(id.trim(), userExists(id) ? education(id) : new ArrayList<List<String>>());
+      return found;
+   }//end education
+
+   public OverlapIndex[] overlapIndexes () {
+      OverlapIndex[] index = {new OverlapIndex("company"), new OverlapIndex("school")};
+      for (int id = 0; id < nextUser.get(); ++id) {
+         User u = users.get(id);
+         if (u == null) continue;
+         synchronized (u) {
+            for (String[] w : u.work) index[0].add(u.userId, w[0], w[3], w[4]);
+            for (String[] e : u.education) index[1].add(u.userId, e[0], e[3], e[4]);
+         }
+      }
+      index[0].build();
+      index[1].build();
+      return index;
+   }//end overlapIndexes
+
+   public void applyProfile (String userId, ProfileDiff diff) {
+      User u = require(userId);
+      synchronized (u) {
+         diff.applyTo(u.work, u.education);
+      }
+   }//end applyProfile
+
+   // locks two users in id order so concurrent edge updates cannot deadlock.
+   private void setEdge (User a, User b, byte status, boolean create) {
+      User first = a.id < b.id ? a : b, second = a.id < b.id ? b : a;
+      synchronized (first) {
+         synchronized (second) {
+            if (create) {
+               if (a.out.get(b.id, -1) >= 0)
+                  throw new IllegalStateException("connection " + a.userId + " -> " + b.userId + " already exists");
+            } else if (a.out.get(b.id, -1) < 0) {
+               return;
+            }
+            a.out.put(b.id, status);
+            b.in.put(a.id, status);
+         }
+      }
+   }//end setEdge
+
+   public void request (String userId, String connectionId) {
+      setEdge(require(userId), require(connectionId), REQUEST, true);
+   }//end request
+
+   public void setStatus (String userId, String connectionId, String status) {
+      int s = Arrays.asList(STATUS).indexOf(status);
+      if (s < 0) throw new IllegalArgumentException("unknown status " + status);
+      setEdge(require(userId), require(connectionId), (byte) s, false);
+   }//end setStatus
+
+   public List<String> friends (String userId) {
+      User u = require(userId);
+      int[] found;
+      int n = 0;
+      synchronized (u) {
+         found = new int[u.out.size + u.in.size];
+         for (IntIntMap m : new IntIntMap[]{u.out, u.in})
+            for (int i = 0; i < m.keys.length; ++i)
+               if (m.used[i] && m.vals[i] == ACCEPT) found[n++] = m.keys[i];
+      }
+      Arrays.sort(found, 0, n);
+      List<String> result = new ArrayList<String>();
+      for (int i = 0; i < n; ++i)
+         if (i == 0 || found[i] != found[i - 1]) result.add(users.get(found[i]).userId);
+      return result;
+   }//end friends
+
+   public Map<String, List<String>> friends (Collection<String> userIds) {
+      Map<String, List<String>> found = new LinkedHashMap<String, List<String>>();
+      for (String id : userIds)
+         found.put(id.trim(), userExists(id) ? friends(id) : new ArrayList<String>());
+      return found;
+   }//end friends
+
+   public int[] connectionCounts (String userId) {
+      User u = require(userId);
+      int[] counts = new int[3];
+      synchronized (u) {
+         for (int i = 0; i < u.out.keys.length; ++i)
+            if (u.out.used[i]) {
+               if (u.out.vals[i] == ACCEPT) ++counts[0];
+               else if (u.out.vals[i] == REQUEST) ++counts[1];
+            }
+         for (int i = 0; i < u.in.keys.length; ++i)
+            if (u.in.used[i]) {
+               if (u.in.vals[i] == ACCEPT) ++counts[0];
+               else if (u.in.vals[i] == REQUEST) ++counts[2];
+            }
+      }
+      return counts;
+   }//end connectionCounts
+
+   public List<List<String>> pendingRequests (String userId) {
+      User u = require(userId);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      synchronized (u) {
+         for (int i = 0; i < u.out.keys.length; ++i)
+            if (u.out.used[i] && u.out.vals[i] == REQUEST)
+               rows.add(Arrays.asList(u.userId, users.get(u.out.keys[i]).userId, STATUS[REQUEST]));
+      }
+      return rows;
+   }//end pendingRequests
+
+   private static int[] append (int[] a, int v) {
+      int[] b = Arrays.copyOf(a, a.length + 1);
+      b[a.length] = v;
+      return b;
+   }//end append
+
+   public int send (String senderId, String receiverId, String contents, String sendTime) {
+      return store(require(senderId), require(receiverId), nextMsgId.getAndIncrement(), contents, sendTime, 0, "sent");
+   }//end send
+
+   private int store (User s, User r, int msgId, String contents, String sendTime, int deleteStatus, String status) {
+      messages.put(msgId, new Message(msgId, s.id, r.id, contents, sendTime, deleteStatus, status));
+      synchronized (s) {
+         s.sent = append(s.sent, msgId);
+      }
+      synchronized (r) {
+         r.received = append(r.received, msgId);
+      }
+      return msgId;
+   }//end store
+
+   private List<List<String>> inbox (int[] msgIds, int hiddenStatus) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int id : msgIds) {
+         Message m = messages.get(id);
+         synchronized (m) {
+            if (m.deleteStatus == hiddenStatus || m.deleteStatus == 3) continue;
+            rows.add(row(m));
+         }
+      }
+      return rows;
+   }//end inbox
+
+   // callers hold the message monitor.
+   private List<String> row (Message m) {
+      return Arrays.asList(Integer.toString(m.msgId), users.get(m.sender).userId,
+         users.get(m.receiver).userId, m.contents, m.sendTime,
+         Integer.toString(m.deleteStatus), m.status);
+   }//end row
+
+   public List<List<String>> sent (String userId) {
+      User u = require(userId);
+      int[] ids;
+      synchronized (u) {
+         ids = u.sent;
+      }
+      return inbox(ids, 1);
+   }//end sent
+
+   public List<List<String>> received (String userId) {
+      User u = require(userId);
+      int[] ids;
+      synchronized (u) {
+         ids = u.received;
+      }
+      return inbox(ids, 2);
+   }//end received
+
+   // the newest visible messages below before; a restored store does not
+   // keep a user's ids in msgId order, so they are sorted first.
+   private List<List<String>> page (int[] ids, int hiddenStatus, int before, int n) {
+      int[] msgIds = ids.clone();
+      Arrays.sort(msgIds);
+      int from = msgIds.length;
+      while (from > 0 && msgIds[from - 1] >= before) --from;
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int to = from; to > 0 && rows.size() < n; to = from) {
+         from = Math.max(0, to - (n - rows.size()));
+         List<List<String>> chunk = inbox(Arrays.copyOfRange(msgIds, from, to), hiddenStatus);
+         for (int i = chunk.size() - 1; i >= 0 && rows.size() < n; --i)
+            rows.add(chunk.get(i));
+      }
+      return rows;
+   }//end page
+
+   public List<List<String>> sent (String userId, int before, int n) {
+      User u = require(userId);
+      int[] ids;
+      synchronized (u) {
+         ids = u.sent;
+      }
+      return page(ids, 1, before, n);
+   }//end sent
+
+   /**
+    * @return every message the user sent, deleted ones included, in
+    *         msgId order
+    */
+   List<List<String>> sentAll (String userId) {
+      User u = require(userId);
+      int[] ids;
+      synchronized (u) {
+         ids = u.sent.clone();
+      }
+      Arrays.sort(ids);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int id : ids) {
+         Message m = messages.get(id);
+         synchronized (m) {
+            rows.add(row(m));
+         }
+      }
+      return rows;
+   }//end sentAll
+
+   public List<List<String>> received (String userId, int before, int n) {
+      User u = require(userId);
+      int[] ids;
+      synchronized (u) {
+         ids = u.received;
+      }
+      return page(ids, 2, before, n);
+   }//end received
+
+   public void setDeleteStatus (int msgId, int deleteStatus) {
+      Message m = messages.get(msgId);
+      if (m == null) return;
+      synchronized (m) {
+         m.deleteStatus = deleteStatus;
+      }
+   }//end setDeleteStatus
+
+   public int deleteMessages (String userId, String condition, Predicate<List<String>> match) {
+      if (match == null)
+         throw new IllegalArgumentException("selection not understood: " + condition);
+      User u = require(userId);
+      Set<Integer> mine = new LinkedHashSet<Integer>();
+      synchronized (u) {
+         for (int id : u.sent) mine.add(id);
+         for (int id : u.received) mine.add(id);
+      }
+      int count = 0;
+      for (int id : mine) {
+         Message m = messages.get(id);
+         synchronized (m) {
+            boolean sender = m.sender == u.id, receiver = m.receiver == u.id;
+            int s = m.deleteStatus;
+            if (!((sender && (s == 0 || s == 2)) || (receiver && (s == 0 || s == 1))) || !match.test(row(m)))
+               continue;
+            m.deleteStatus = sender && receiver ? 3 : sender ? (s == 2 || s == 3 ? 3 : 1) : (s == 1 || s == 3 ? 3 : 2);
+            ++count;
+         }
+      }
+      return count;
+   }//end deleteMessages
+
+   // the trimmed names of the organizations a user has profile rows at.
+   private static Set<String> organizations (User u, String kind) {
+      Set<String> names = new LinkedHashSet<String>();
+      synchronized (u) {
+         for (String[] r : kind.equals("C") ? u.work : u.education)
+            if (r[0] != null) names.add(r[0].trim());
+      }
+      return names;
+   }//end organizations
+
+   public Map<String, Integer> members (String kind, Collection<String> names) {
+      Map<String, Integer> out = new HashMap<String, Integer>();
+      for (String n : names) out.put(n.trim(), 0);
+      for (int id = 0; id < nextUser.get(); ++id) {
+         User u = users.get(id);
+         if (u == null) continue;
+         for (String n : organizations(u, kind))
+            if (out.containsKey(n)) out.put(n, out.get(n) + 1);
+      }
+      return out;
+   }//end members
+
+   public List<String[]> largest (String kind, int n) {
+      Map<String, Integer> sum = new HashMap<String, Integer>();
+      for (int id = 0; id < nextUser.get(); ++id) {
+         User u = users.get(id);
+         if (u == null) continue;
+         for (String name : organizations(u, kind))
+            sum.merge(name, 1, Integer::sum);
+      }
+      List<Map.Entry<String, Integer>> all = new ArrayList<Map.Entry<String, Integer>>(sum.entrySet());
+      all.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : b.getValue() - a.getValue());
+      List<String[]> out = new ArrayList<String[]>();
+      for (Map.Entry<String, Integer> e : all.subList(0, Math.min(n, all.size())))
+         out.add(new String[]{e.getKey(), e.getValue().toString()});
+      return out;
+   }//end largest
+
+   /**
+    * Writes the whole store to a file: first every user's scalar fields,
+    * then per user the profile rows, outgoing edges and sent messages.
+    * Callers should quiesce writers first; concurrent updates may or may
+    * not be included.
+    */
+   public void snapshot (File file) throws IOException {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+         out.writeInt(SNAPSHOT_VERSION);
+         int n = nextUser.get();
+         out.writeInt(n);
+         out.writeInt(nextMsgId.get());
+         for (int id = 0; id < n; ++id) {
+            User u = users.get(id);
+            synchronized (u) {
+               out.writeUTF(u.userId);
+               writeStrings(out, u.password, u.email, u.name, u.dateOfBirth);
+            }
+         }
+         for (int id = 0; id < n; ++id) {
+            User u = users.get(id);
+            synchronized (u) {
+               out.writeInt(u.work.size());
+               for (String[] w : u.work) writeStrings(out, w);
+               out.writeInt(u.education.size());
+               for (String[] e : u.education) writeStrings(out, e);
+               out.writeInt(u.out.size);
+               for (int i = 0; i < u.out.keys.length; ++i)
+                  if (u.out.used[i]) {
+                     out.writeInt(u.out.keys[i]);
+                     out.writeByte(u.out.vals[i]);
+                  }
+               out.writeInt(u.sent.length);
+               for (int msgId : u.sent) {
+                  Message m = messages.get(msgId);
+                  synchronized (m) {
+                     out.writeInt(m.msgId);
+                     out.writeInt(m.receiver);
+                     writeStrings(out, m.contents, m.sendTime, m.status);
+                     out.writeByte(m.deleteStatus);
+                  }
+               }
+            }
+         }
+      }
+   }//end snapshot
+
+   /**
+    * Loads a store written by {@link #snapshot}
+    */
+   public static MemoryStore restore (File file) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+         if (in.readInt() != SNAPSHOT_VERSION) throw new IOException("unsupported snapshot version");
+         int n = in.readInt();
+         MemoryStore store = new MemoryStore(in.readInt());
+         User[] all = new User[n];
+         for (int id = 0; id < n; ++id) {
+            User u = new User(id, in.readUTF());
+            String[] f = readStrings(in, 4);
+            u.password = f[0];
+            u.email = f[1];
+            u.name = f[2];
+            u.dateOfBirth = f[3];
+            all[id] = u;
+            store.users.put(id, u);
+            store.ids.put(u.userId, id);
+         }
+         store.nextUser.set(n);
+         for (int id = 0; id < n; ++id) {
+            User u = all[id];
+            for (int k = in.readInt(); k > 0; --k) u.work.add(readStrings(in, 5));
+            for (int k = in.readInt(); k > 0; --k) u.education.add(readStrings(in, 5));
+            for (int k = in.readInt(); k > 0; --k) {
+               int target = in.readInt();
+               byte status = in.readByte();
+               u.out.put(target, status);
+               all[target].in.put(id, status);
+            }
+            for (int k = in.readInt(); k > 0; --k) {
+               int msgId = in.readInt();
+               int receiver = in.readInt();
+               String[] f = readStrings(in, 3);
+               store.store(u, all[receiver], msgId, f[0], f[1], in.readByte(), f[2]);
+            }
+         }
+         return store;
+      }
+   }//end restore
+
+   /**
+    * One data line of a CSV file
+    */
+   private interface Line {
+      void accept (String[] f) throws Exception;
+   }//end Line
+
+   // feeds the data lines of dir/name with the expected column count to
+   // a line handler; rows it cannot store are counted as skipped.
+   private static int csv (File dir, String name, int columns, Line line) throws Exception {
+      int skipped = 0;
+      try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, name)))) {
+         String s = br.readLine();
+         while ((s = br.readLine()) != null) {
+            String[] f = s.split(",", -1);
+            try {
+               if (f.length != columns) throw new IllegalArgumentException("expected " + columns + " columns");
+               line.accept(f);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+               ++skipped;
+            }//end try
+         }
+      }
+      if (skipped > 0)
+         System.err.println (name + ": skipped " + skipped + " row(s)");
+      return skipped;
+   }//end csv
+
+   /**
+    * Builds a store from the CSV files load_data.sql reads, as the bundled
+    * ones or DataGenerator writes them: USR, Work_Ex, Edu_Det and
+    * Connection, and Message when present. Rows the database would
+    * reject, e.g. a second copy of an edge, are skipped.
+    *
+    * @param dir the directory holding the files
+    */
+   public static MemoryStore fromCsv (File dir) throws Exception {
+      MemoryStore store = new MemoryStore();
+      csv(dir, "USR.csv", 5, f -> {
+         if (!store.createUser(f[0], f[1], f[2], f[3], f[4])) throw new IllegalStateException("duplicate user");
+      });
+      csv(dir, "Work_Ex.csv", 6, f -> store.addWork(f[0], f[1], f[2], f[3], f[4], f[5]));
+      csv(dir, "Edu_Det.csv", 6, f -> store.addEducation(f[0], f[1], f[2], f[3], f[4], f[5]));
+      csv(dir, "Connection.csv", 3, f -> {
+         store.request(f[0], f[1]);
+         if (!f[2].trim().equals(STATUS[REQUEST])) store.setStatus(f[0], f[1], f[2].trim());
+      });
+      if (new File(dir, "Message.csv").exists())
+         csv(dir, "Message.csv", 7, f -> {
+            int msgId = Integer.parseInt(f[0].trim());
+            if (store.messages.get(msgId) != null) throw new IllegalStateException("duplicate message");
+            store.store(store.require(f[1]), store.require(f[2]), msgId, f[3], f[4], Integer.parseInt(f[5].trim()), f[6]);
+            store.nextMsgId.accumulateAndGet(msgId + 1, Math::max);
+         });
+      return store;
+   }//end fromCsv
+
+   private static void writeStrings (DataOutputStream out, String... values) throws IOException {
+      for (String v : values) {
+         out.writeBoolean(v != null);
+         if (v != null) out.writeUTF(v);
+      }
+   }//end writeStrings
+
+   private static String[] readStrings (DataInputStream in, int n) throws IOException {
+      String[] v = new String[n];
+      for (int i = 0; i < n; ++i)
+         v[i] = in.readBoolean() ? in.readUTF() : null;
+      return v;
+   }//end readStrings
+
+   /**
+    * Builds a store from CSV files, writes its snapshot and times both
+    * against a restore of the snapshot
+    *
+    * @param args <csvdir> <snapshot>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length != 2) {
+         System.err.println ("Usage: java " + MemoryStore.class.getName () + " <csvdir> <snapshot>");
+         return;
+      }//end if
+      long t0 = System.nanoTime();
+      MemoryStore store = fromCsv(new File(args[0]));
+      long t1 = System.nanoTime();
+      File snap = new File(args[1]);
+      store.snapshot(snap);
+      long t2 = System.nanoTime();
+      MemoryStore restored = restore(snap);
+      long t3 = System.nanoTime();
+      System.out.printf("%d users from %s in %.1f ms; snapshot %d bytes written in %.1f ms, restored in %.1f ms%n",
+         restored.nextUser.get(), args[0], (t1 - t0) / 1e6, snap.length(), (t2 - t1) / 1e6, (t3 - t2) / 1e6);
+   }//end main
+
+}//end MemoryStore
@@ -0,0 +1,338 @@
+/*
+ * Recent-message cache
+ * ====================
+ *
+ * The newest sent and received messages of the logged-in users, so the
+ * first page of the inbox view is served from memory.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * This class keeps, per user and per side (sent, received), a ring of
+ * the RECENT messages with the highest msgIds, as MESSAGE rows. Users are
+ * spread over STRIPES least-recently-used maps, each with its own lock,
+ * and at most MAX_USERS are kept.
+ *
+ * A ring answers for every message of its side with a msgId at or above
+ * its floor: it is filled with the newest RECENT visible messages, and
+ * when it overflows the oldest drops out and the floor moves up. A ring
+ * filled with all of them has no floor. A page is served from the ring
+ * when it holds a full page of visible messages below the requested
+ * msgId, or has no floor; otherwise the page is read from the database.
+ *
+ * Writes of this process go through: {@link #sent} adds a new message to
+ * the sender's and the receiver's rings, and deleteStatus changes are
+ * applied to the cached rows in place. Both scan only the cached users.
+ * Messages sent by other processes arrive through the change log and
+ * empty the sender's sent ring and the receiver's received ring, see
+ * {@link #stored}; the change log also returns this process's own
+ * messages, which are recognized by msgId and left alone. A fill that
+ * overlaps a write of its stripe is not kept.
+ *
+ */
+
+public class MessageCache {
+
+   // messages per user and side.
+   static final int RECENT = 50;
+   static final int MAX_USERS = 10000;
+   static final int STRIPES = 16;
+   // msgIds of messages sent by this process, remembered until the
+   // change log has returned them.
+   static final int OWN = 10000;
+
+   public static final int SENT = 0;
+   public static final int RECEIVED = 1;
+
+   // MESSAGE columns.
+   private static final int MSGID = 0, SENDER = 1, RECEIVER = 2, DELETE_STATUS = 5;
+
+   /**
+    * The newest messages of one side of one user, oldest first
+    */
+   static final class Ring {
+      final List<List<String>> rows = new ArrayList<List<String>>(Collections.nCopies(RECENT, (List<String>) null));
+      int head = 0, size = 0;
+      // every message from this msgId up is held; 0 when all are.
+      int floor;
+
+      Ring (List<List<String>> newestFirst, boolean all) {
+         for (int i = Math.min(RECENT, newestFirst.size()) - 1; i >= 0; --i)
+            add(newestFirst.get(i));
+         floor = all || size == 0 ? 0 : id(get(0));
+      }//end Ring
+
+      List<String> get (int i) {
+         return rows.get((head + i) % RECENT);
+      }//end get
+
+      // keeps msgId order: appends, or shifts the few newer rows up.
+      void add (List<String> row) {
+         int id = id(row), at = size;
+         while (at > 0 && id(get(at - 1)) > id) --at;
+         if (at > 0 && id(get(at - 1)) == id) return;
+         if (size == RECENT) {
+            if (at == 0) return;
+            head = (head + 1) % RECENT;
+            --size;
+            --at;
+            floor = id(get(0));
+         }//end if
+         for (int i = size; i > at; --i)
+            rows.set((head + i) % RECENT, get(i - 1));
+         rows.set((head + at) % RECENT, row);
+         ++size;
+      }//end add
+   }//end Ring
+
+   /**
+    * The rings of one user
+    */
+   static final class Recent {
+      final Ring[] sides = new Ring[2];
+   }//end Recent
+
+   /**
+    * One lock and the users hashed to it
+    */
+   static final class Stripe {
+      final LinkedHashMap<String, Recent> users = new LinkedHashMap<String, Recent>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Recent> eldest) {
+            return size() > MAX_USERS / STRIPES;
+         }
+      };
+      // writes and invalidations so far; a fill that saw another value
+      // when it started may have missed one.
+      long writes = 0;
+   }//end Stripe
+
+   // where pages the rings do not hold are read.
+   private final PostgresStore store;
+   private final Stripe[] stripes = new Stripe[STRIPES];
+   private final Map<Integer, Boolean> own = new LinkedHashMap<Integer, Boolean>() {
+      protected boolean removeEldestEntry (Map.Entry<Integer, Boolean> eldest) {
+         return size() > OWN;
+      }
+   };
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong fills = new AtomicLong();
+   private final AtomicLong writes = new AtomicLong();
+
+   public MessageCache (ProfNetwork esql) {
+      this.store = new PostgresStore(esql);
+      for (int i = 0; i < STRIPES; ++i)
+         stripes[i] = new Stripe();
+   }//end MessageCache
+
+   static int id (List<String> row) {
+      return Integer.parseInt(row.get(MSGID).trim());
+   }//end id
+
+   static boolean visible (List<String> row, int side) {
+      String s = row.get(DELETE_STATUS);
+      if (s == null) return false;
+      int status = Integer.parseInt(s.trim());
+      return status == 0 || status == (side == SENT ? 2 : 1);
+   }//end visible
+
+   private Stripe stripe (String userId) {
+      return stripes[(userId.hashCode() & 0x7fffffff) % STRIPES];
+   }//end stripe
+
+   /**
+    * @param before the msgId the page ends below, Integer.MAX_VALUE for
+    *        the newest page
+    * @return the visible messages of one side with a msgId below before,
+    *         newest first, at most n
+    */
+   public CompletableFuture<List<List<String>>> page (String userId, int side, int before, int n) {
+      String user = userId.trim();
+      Stripe s = stripe(user);
+      long seen;
+      synchronized (s) {
+         Recent r = s.users.get(user);
+         Ring ring = r == null ? null : r.sides[side];
+         if (ring != null) {
+            List<List<String>> out = new ArrayList<List<String>>();
+            for (int i = ring.size - 1; i >= 0 && out.size() < n; --i) {
+               List<String> row = ring.get(i);
+               if (id(row) < before && visible(row, side))
+                  out.add(new ArrayList<String>(row));
+            }
+            if (out.size() == n || ring.floor == 0) {
+               hits.incrementAndGet();
+               return CompletableFuture.completedFuture(out);
+            }
+            misses.incrementAndGet();
+            return store.pageAsync(user, side, before, n);
+         }//end if
+         seen = s.writes;
+      }
+      misses.incrementAndGet();
+      if (before != Integer.MAX_VALUE || n > RECENT)
+         return store.pageAsync(user, side, before, n);
+      // the newest page of a side not held: load the ring with it.
+      return store.pageAsync(user, side, before, RECENT + 1).thenApply(rows -> {
+         fill(s, seen, user, side, rows);
+         List<List<String>> out = new ArrayList<List<String>>();
+         for (List<String> row : rows.subList(0, Math.min(n, rows.size())))
+            out.add(new ArrayList<String>(row));
+         return out;
+      });
+   }//end page
+
+   private void fill (Stripe s, long seen, String user, int side, List<List<String>> newestFirst) {
+      synchronized (s) {
+         if (s.writes != seen) return;
+         Recent r = s.users.get(user);
+         if (r == null) {
+            r = new Recent();
+            s.users.put(user, r);
+         }
+         if (r.sides[side] == null) {
+            r.sides[side] = new Ring(newestFirst, newestFirst.size() <= RECENT);
+            fills.incrementAndGet();
+         }
+      }
+   }//end fill
+
+   // adds a row to one side of a user, if that side is held.
+   private void add (String user, int side, List<String> row) {
+      Stripe s = stripe(user);
+      synchronized (s) {
+         ++s.writes;
+         Recent r = s.users.get(user);
+         if (r != null && r.sides[side] != null)
+            r.sides[side].add(row);
+      }
+   }//end add
+
+   /**
+    * Writes a message just stored through to its sender and receiver
+    */
+   public void sent (int msgId, String senderId, String receiverId, String contents, String sendTime) {
+      String sender = senderId.trim(), receiver = receiverId.trim();
+      synchronized (own) {
+         own.put(msgId, Boolean.TRUE);
+      }
+      for (int side = SENT; side <= RECEIVED; ++side) {
+         List<String> row = new ArrayList<String>();
+         row.add(Integer.toString(msgId));
+         row.add(sender);
+         row.add(receiver);
+         row.add(contents.trim());
+         row.add(sendTime);
+         row.add("0");
+         row.add("sent");
+         add(side == SENT ? sender : receiver, side, row);
+      }
+      writes.incrementAndGet();
+   }//end sent
+
+   // sets deleteStatus on every cached row match picks, to status(row).
+   private void update (Predicate<List<String>> match, java.util.function.ToIntFunction<List<String>> status) {
+      for (Stripe s : stripes) {
+         synchronized (s) {
+            ++s.writes;
+            for (Recent r : s.users.values())
+               for (Ring ring : r.sides)
+                  if (ring != null)
+                     for (int i = 0; i < ring.size; ++i) {
+                        List<String> row = ring.get(i);
+                        if (match.test(row))
+                           row.set(DELETE_STATUS, Integer.toString(status.applyAsInt(row)));
+                     }
+         }
+      }
+      writes.incrementAndGet();
+   }//end update
+
+   /**
+    * Applies a deleteStatus change of one message
+    */
+   public void setDeleteStatus (int msgId, int deleteStatus) {
+      update(row -> id(row) == msgId, row -> deleteStatus);
+   }//end setDeleteStatus
+
+   /**
+    * Applies a delete by a user: of each visible message match picks, the
+    * sender's deletion sets bit 1 of deleteStatus and the receiver's bit 2
+    *
+    * @param match the deleted messages, or null when they cannot be told
+    *        apart here, which drops the user's rings instead
+    */
+   public void deleted (String userId, Predicate<List<String>> match) {
+      String me = userId.trim();
+      if (match == null) {
+         // other users' rows may keep an old deleteStatus, but only this
+         // user's visibility changed.
+         drop(me);
+         return;
+      }//end if
+      update(row -> {
+         boolean sender = row.get(SENDER).equals(me), receiver = row.get(RECEIVER).equals(me);
+         return match.test(row) && ((sender && visible(row, SENT)) || (receiver && visible(row, RECEIVED)));
+      }, row -> {
+         int status = Integer.parseInt(row.get(DELETE_STATUS).trim());
+         if (row.get(SENDER).equals(me) && row.get(RECEIVER).equals(me)) return 3;
+         if (row.get(SENDER).equals(me)) return status == 2 || status == 3 ? 3 : 1;
+         return status == 1 || status == 3 ? 3 : 2;
+      });
+   }//end deleted
+
+   /**
+    * Applies a message the change log reports: unless this process sent
+    * it, forgets the sender's sent and the receiver's received messages
+    */
+   public void stored (int msgId, String senderId, String receiverId) {
+      synchronized (own) {
+         // a sharded message is logged on both shards, so it stays known.
+         if (own.containsKey(msgId)) return;
+      }
+      forget(senderId.trim(), SENT);
+      forget(receiverId.trim(), RECEIVED);
+   }//end stored
+
+   private void forget (String user, int side) {
+      Stripe s = stripe(user);
+      synchronized (s) {
+         ++s.writes;
+         Recent r = s.users.get(user);
+         if (r != null) r.sides[side] = null;
+      }
+   }//end forget
+
+   /**
+    * Forgets a user, e.g. on log out
+    */
+   public void drop (String userId) {
+      String user = userId.trim();
+      Stripe s = stripe(user);
+      synchronized (s) {
+         ++s.writes;
+         s.users.remove(user);
+      }
+   }//end drop
+
+   /**
+    * @return pages served from memory and from the database
+    */
+   public String report () {
+      long h = hits.get(), m = misses.get();
+      return String.format("Message cache: %d pages from memory, %d from the database (%.1f%% hit rate), %d rings filled, %d writes applied",
+         h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), fills.get(), writes.get());
+   }//end report
+
+}//end MessageCache
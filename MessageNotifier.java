@@ -0,0 +1,262 @@
+/*
+ * New-message notifications
+ * =========================
+ *
+ * Fans PostgreSQL NOTIFY events raised by the notifyReceiver trigger on
+ * MESSAGE out to the logged-in sessions of this process.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps one listening connection per database (one per shard
+ * when sharded) and a background thread that drains its notifications.
+ * Every logged-in user LISTENs on the channel msg_&lt;userId&gt;; a
+ * notification bumps the pending counter of that user's sessions, and the
+ * menu then fetches only messages newer than the last one it showed.
+ *
+ * The bundled 7.3 driver only hands out notifications after a round
+ * trip, so the thread sends a trivial query every POLL_MS on the
+ * listening connection. That is one trivial statement per interval for
+ * the whole process, not per session, and no inbox query runs until
+ * something actually arrives.
+ *
+ * A listener that fails is closed and reopened in the background, first
+ * after POLL_MS and then with the wait doubling up to MAX_BACKOFF_MS, so
+ * a database that is down costs one attempt per interval and one line
+ * on stderr. Once reopened it LISTENs again for its users, and their
+ * sessions look for new messages, since notifications raised while it
+ * was down are lost.
+ *
+ */
+
+public class MessageNotifier {
+
+   static final long POLL_MS = 250;
+   // longest wait between attempts to reopen a listener.
+   static final long MAX_BACKOFF_MS = 30000;
+
+   /**
+    * One logged-in user's view of the notification stream
+    */
+   public static class Session {
+      public final String userId;
+      // notifications not yet shown to the user.
+      public final AtomicInteger pending = new AtomicInteger();
+      // newest msgId already shown; later messages are fetched incrementally.
+      public volatile int lastSeen;
+
+      Session (String userId, int lastSeen) {
+         this.userId = userId;
+         this.lastSeen = lastSeen;
+      }//end Session
+   }//end Session
+
+   private final String[] urls;
+   private final String user, passwd;
+   // null while a listener is down; guarded by this, as are retryAt and
+   // backoff: when to try to reopen it next, and the wait after that.
+   private final Connection[] listeners;
+   private final long[] retryAt, backoff;
+   private final Map<String, List<Session>> sessions = new HashMap<String, List<Session>>();
+   private final Thread poller;
+   private volatile boolean running = true;
+
+   /**
+    * Opens the listening connections and starts the background thread
+    *
+    * @param dbname the name of the database
+    * @param dbport one port, or a comma-separated port per shard; replica
+    *        ports after a '+' are ignored, LISTEN needs the primary
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public MessageNotifier (String dbname, String dbport, String user, String passwd) throws SQLException {
+      String[] ports = dbport.split(",");
+      this.urls = new String[ports.length];
+      this.user = user;
+      this.passwd = passwd;
+      this.listeners = new Connection[ports.length];
+      this.retryAt = new long[ports.length];
+      this.backoff = new long[ports.length];
+      for (int i = 0; i < ports.length; ++i) {
+         this.urls[i] = "jdbc:postgresql://localhost:" + ports[i].split("\\+")[0].trim() + "/" + dbname;
+         this.listeners[i] = DriverManager.getConnection(this.urls[i], user, passwd);
+      }
+      this.poller = new Thread(this::poll, "message-notifier");
+      this.poller.setDaemon(true);
+      this.poller.start();
+   }//end MessageNotifier
+
+   /**
+    * @return the channel name notifyReceiver uses for a user
+    */
+   static String channel (String userId) {
+      return "\"msg_" + userId.trim().replace("\"", "\"\"") + "\"";
+   }//end channel
+
+   private int listenerFor (String userId) {
+      return listeners.length == 1 ? 0 : ShardRouter.shardOf(userId, listeners.length);
+   }//end listenerFor
+
+   // (UN)LISTEN on a listener unless it is down; callers hold this.
+   private void listen (int i, String sql) {
+      if (listeners[i] == null) return;
+      try {
+         execute(listeners[i], sql);
+      } catch (SQLException | RuntimeException e) {
+         drop(i, e);
+      }//end try
+   }//end listen
+
+   /**
+    * Starts receiving notifications for a user
+    *
+    * @param userId the logged-in user
+    * @param lastSeen newest msgId the user has already seen
+    */
+   public Session subscribe (String userId, int lastSeen) {
+      Session s = new Session(userId.trim(), lastSeen);
+      synchronized (this) {
+         List<Session> list = sessions.get(s.userId);
+         if (list == null) {
+            list = new ArrayList<Session>();
+            sessions.put(s.userId, list);
+            listen(listenerFor(s.userId), "LISTEN " + channel(s.userId));
+         }
+         list.add(s);
+      }
+      return s;
+   }//end subscribe
+
+   /**
+    * Stops notifications for a session, e.g. on log out
+    */
+   public void unsubscribe (Session s) {
+      synchronized (this) {
+         List<Session> list = sessions.get(s.userId);
+         if (list == null || !list.remove(s) || !list.isEmpty()) return;
+         sessions.remove(s.userId);
+         listen(listenerFor(s.userId), "UNLISTEN " + channel(s.userId));
+      }
+   }//end unsubscribe
+
+   private void poll () {
+      while (running) {
+         for (int i = 0; i < listeners.length; ++i) {
+            try {
+               if (!poll(i))
+                  reopen(i);
+            } catch (SQLException | RuntimeException e) {
+               drop(i, e);
+            }//end try
+         }
+         try {
+            Thread.sleep(POLL_MS);
+         } catch (InterruptedException e) {
+            return;
+         }//end try
+      }
+   }//end poll
+
+   // one round trip on listener i, false if it is down.
+   private boolean poll (int i) throws SQLException {
+      PGNotification[] events;
+      synchronized (this) {
+         if (listeners[i] == null) return false;
+         execute(listeners[i], "SELECT 1");
+         events = ((PGConnection) listeners[i]).getNotifications();
+      }
+      if (events != null)
+         for (PGNotification n : events)
+            deliver(n.getName());
+      return true;
+   }//end poll
+
+   // closes a failed listener and schedules its reopening.
+   private synchronized void drop (int i, Exception e) {
+      if (!running || listeners[i] == null) return;
+      System.err.println ("notifier: " + e + "; reconnecting");
+      try {
+         listeners[i].close();
+      } catch (SQLException ignored) {
+         // it is gone anyway.
+      }//end try
+      listeners[i] = null;
+      backoff[i] = POLL_MS;
+      retryAt[i] = System.currentTimeMillis() + POLL_MS;
+   }//end drop
+
+   // tries to reopen a listener that is down once its wait is over.
+   private void reopen (int i) {
+      synchronized (this) {
+         if (System.currentTimeMillis() < retryAt[i]) return;
+      }
+      Connection c;
+      try {
+         c = DriverManager.getConnection(urls[i], user, passwd);
+      } catch (SQLException | RuntimeException e) {
+         synchronized (this) {
+            backoff[i] = Math.min(2 * backoff[i], MAX_BACKOFF_MS);
+            retryAt[i] = System.currentTimeMillis() + backoff[i];
+         }
+         return;
+      }//end try
+      synchronized (this) {
+         listeners[i] = c;
+         for (Map.Entry<String, List<Session>> e : sessions.entrySet()) {
+            if (listenerFor(e.getKey()) != i) continue;
+            listen(i, "LISTEN " + channel(e.getKey()));
+            for (Session s : e.getValue())
+               s.pending.incrementAndGet();
+         }
+         if (listeners[i] != null)
+            System.err.println ("notifier: reconnected");
+      }
+   }//end reopen
+
+   private synchronized void deliver (String name) {
+      if (!name.startsWith("msg_")) return;
+      List<Session> list = sessions.get(name.substring(4));
+      if (list == null) return;
+      for (Session s : list)
+         s.pending.incrementAndGet();
+   }//end deliver
+
+   private static void execute (Connection c, String sql) throws SQLException {
+      Statement stmt = c.createStatement ();
+      stmt.execute (sql);
+      stmt.close ();
+   }//end execute
+
+   /**
+    * Stops the background thread and closes the listening connections
+    */
+   public void close () {
+      running = false;
+      poller.interrupt();
+      synchronized (this) {
+         for (Connection c : listeners) {
+            if (c == null) continue;
+            try {
+               c.close();
+            } catch (SQLException e) {
+               // ignored.
+            }//end try
+         }
+      }
+   }//end close
+
+}//end MessageNotifier
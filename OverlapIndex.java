@@ -0,0 +1,511 @@
+/*
+ * Coworker and classmate discovery
+ * ================================
+ *
+ * Per-organization interval trees over WORK_EXPR and EDUCATIONAL_DETAILS
+ * answering "who was at the same company or school at the same time".
+ *
+ *    java OverlapIndex Work_Ex.csv Edu_Det.csv     (benchmark)
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class defines an in-memory overlap index. Every organization owns a
+ * static interval tree: intervals sorted by start date, laid out as an
+ * implicit balanced tree over the sorted array and augmented with the
+ * maximum end date of each subtree. A stabbing query costs
+ * O(log n + matches) instead of the quadratic self-join on the date
+ * columns.
+ *
+ * A user whose rows changed after the build is refreshed with
+ * {@link #replace}: the user's tree entries are retired and the new
+ * stints go to a small per-organization list that queries scan
+ * linearly, until the owner rebuilds the index.
+ *
+ * Dates are stored as epoch days. Rows whose endDate precedes startDate
+ * (common in the bundled CSVs) are taken to have the dates swapped, and a
+ * missing endDate means the stint is ongoing.
+ *
+ */
+
+public class OverlapIndex {
+
+   /**
+    * One overlapping stint returned by {@link #find}
+    */
+   public static class Match {
+      public final String userId;
+      public final String organization;
+      // overlap as epoch days; to is Integer.MAX_VALUE while ongoing.
+      final int from;
+      final int to;
+
+      Match (String userId, String organization, int from, int to) {
+         this.userId = userId;
+         this.organization = organization;
+         this.from = from;
+         this.to = to;
+      }//end Match
+
+      public LocalDate from () {
+         return LocalDate.ofEpochDay(from);
+      }//end from
+
+      public LocalDate to () {
+         return to == Integer.MAX_VALUE ? null : LocalDate.ofEpochDay(to);
+      }//end to
+
+      public String toString () {
+         return userId + "\t" + organization + "\t" + from() + "\t" + (to == Integer.MAX_VALUE ? "present" : to().toString());
+      }//end toString
+   }//end Match
+
+   // trees up to this size are scanned instead of descended.
+   static final int LINEAR_SCAN = 32;
+
+   /**
+    * Growable int buffer of tree positions, reused across queries
+    */
+   static class Hits {
+      int[] pos = new int[16];
+      int n = 0;
+
+      void add (int i) {
+         if (n == pos.length) pos = Arrays.copyOf(pos, n * 2);
+         pos[n++] = i;
+      }//end add
+   }//end Hits
+
+   /**
+    * Interval tree of a single organization
+    */
+   static class Tree {
+      int size = 0;
+      int[] start = new int[4];
+      int[] end = new int[4];
+      int[] user = new int[4];
+      int[] maxEnd;
+      // end dates in ascending order, for counting without a descent.
+      int[] sortedEnd;
+
+      void add (int s, int e, int u) {
+         if (size == start.length) {
+            start = Arrays.copyOf(start, size * 2);
+            end = Arrays.copyOf(end, size * 2);
+            user = Arrays.copyOf(user, size * 2);
+         }
+         start[size] = s;
+         end[size] = e;
+         user[size] = u;
+         ++size;
+      }//end add
+
+      void build () {
+         Integer[] order = new Integer[size];
+         for (int i = 0; i < size; ++i) order[i] = i;
+         final int[] s0 = start;
+         Arrays.sort(order, (a, b) -> Integer.compare(s0[a], s0[b]));
+         int[] s = new int[size], e = new int[size], u = new int[size];
+         for (int i = 0; i < size; ++i) {
+            s[i] = start[order[i]];
+            e[i] = end[order[i]];
+            u[i] = user[order[i]];
+         }
+         start = s;
+         end = e;
+         user = u;
+         maxEnd = new int[size];
+         fill(0, size - 1);
+         sortedEnd = Arrays.copyOf(end, size);
+         Arrays.sort(sortedEnd);
+      }//end build
+
+      /**
+       * Counts intervals overlapping [qs, qe] with two binary searches:
+       * every interval starting after qe misses, and so does every
+       * interval ending before qs, and no interval does both.
+       */
+      int count (int qs, int qe) {
+         return firstAbove(start, qe) - firstAbove(sortedEnd, qs - 1);
+      }//end count
+
+      // index of the first element greater than key in a sorted array.
+      private int firstAbove (int[] a, int key) {
+         int lo = 0, hi = size;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= key) lo = mid + 1; else hi = mid;
+         }
+         return lo;
+      }//end firstAbove
+
+      // maxEnd[mid] holds the largest end date in the range [lo, hi].
+      private int fill (int lo, int hi) {
+         if (lo > hi) return Integer.MIN_VALUE;
+         int mid = (lo + hi) >>> 1;
+         int m = Math.max(end[mid], Math.max(fill(lo, mid - 1), fill(mid + 1, hi)));
+         maxEnd[mid] = m;
+         return m;
+      }//end fill
+
+      /**
+       * Collects the positions of all intervals overlapping [qs, qe] into
+       * hits. Small trees are scanned linearly, which beats the descent.
+       */
+      void query (int qs, int qe, Hits hits) {
+         hits.n = 0;
+         if (size <= LINEAR_SCAN) {
+            for (int i = 0; i < size && start[i] <= qe; ++i)
+               if (end[i] >= qs) hits.add(i);
+         } else {
+            query(0, size - 1, qs, qe, hits);
+         }
+      }//end query
+
+      private void query (int lo, int hi, int qs, int qe, Hits hits) {
+         if (lo > hi) return;
+         int mid = (lo + hi) >>> 1;
+         if (maxEnd[mid] < qs) return;
+         query(lo, mid - 1, qs, qe, hits);
+         if (start[mid] > qe) return;
+         if (end[mid] >= qs) hits.add(mid);
+         query(mid + 1, hi, qs, qe, hits);
+      }//end query
+   }//end Tree
+
+   private final Map<String, Tree> trees = new HashMap<String, Tree>();
+   private final Map<String, Integer> userIndex = new HashMap<String, Integer>();
+   private final List<String> users = new ArrayList<String>();
+   // every stint per user: {tree, start, end} triples kept as parallel lists.
+   private final Map<Integer, List<Object[]>> stints = new HashMap<Integer, List<Object[]>>();
+   // users whose tree entries are out of date, and their current stints
+   // per organization as {start, end, user} triples.
+   private final BitSet retired = new BitSet();
+   private final Map<String, List<int[]>> refreshed = new HashMap<String, List<int[]>>();
+   private int refreshedCount = 0;
+   // rows skipped for a date that does not parse.
+   private int malformed = 0;
+   private final String kind;
+
+   /**
+    * Creates an empty index
+    *
+    * @param kind label prefixed to organization names, e.g. "company"
+    */
+   public OverlapIndex (String kind) {
+      this.kind = kind;
+   }//end OverlapIndex
+
+   /**
+    * Adds one stint. Rows without a start date or with a malformed date
+    * are ignored.
+    *
+    * @return false if the row was skipped
+    */
+   public boolean add (String userId, String organization, String startDate, String endDate) {
+      Integer s = parseDate(startDate), e = parseDate(endDate);
+      if (malformed(startDate, s) || malformed(endDate, e)) {
+         ++malformed;
+         return false;
+      }
+      if (userId == null || organization == null || s == null) return false;
+      int from = s, to = e == null ? Integer.MAX_VALUE : e;
+      if (to < from) { int t = from; from = to; to = t; }
+
+      String org = organization.trim();
+      Integer u = userIndex.get(userId.trim());
+      if (u == null) {
+         u = users.size();
+         users.add(userId.trim());
+         userIndex.put(userId.trim(), u);
+      }
+      Tree tree = trees.get(org);
+      if (tree == null) {
+         tree = new Tree();
+         trees.put(org, tree);
+      }
+      tree.add(from, to, u);
+      List<Object[]> mine = stints.get(u);
+      if (mine == null) {
+         mine = new ArrayList<Object[]>(2);
+         stints.put(u, mine);
+      }
+      mine.add(new Object[]{org, from, to});
+      return true;
+   }//end add
+
+   /**
+    * Sorts every tree; must be called once after loading and before
+    * {@link #find}
+    */
+   public void build () {
+      for (Tree t : trees.values()) t.build();
+      if (malformed > 0)
+         System.err.println (kind + " index: skipped " + malformed + " row(s) with a malformed date");
+   }//end build
+
+   /**
+    * Returns every other user whose stint at one of this user's
+    * organizations overlaps the user's own stint there
+    */
+   public List<Match> find (String userId) {
+      return find(userId, Integer.MAX_VALUE);
+   }//end find
+
+   /**
+    * Same as {@link #find(String)}, stopping after limit matches
+    */
+   public synchronized List<Match> find (String userId, int limit) {
+      List<Match> result = new ArrayList<Match>();
+      Integer u = userIndex.get(userId.trim());
+      if (u == null) return result;
+      Hits hits = new Hits();
+      for (Object[] stint : stints.get(u)) {
+         String org = (String) stint[0];
+         int from = (Integer) stint[1], to = (Integer) stint[2];
+         Tree t = trees.get(org);
+         String label = kind + " " + org;
+         if (t != null) {
+            t.query(from, to, hits);
+            for (int h = 0; h < hits.n && result.size() < limit; ++h) {
+               int i = hits.pos[h];
+               if (t.user[i] == u || retired.get(t.user[i])) continue;
+               result.add(new Match(users.get(t.user[i]), label,
+                  Math.max(from, t.start[i]), Math.min(to, t.end[i])));
+            }
+         }
+         List<int[]> fresh = refreshed.get(org);
+         if (fresh != null)
+            for (int[] r : fresh)
+               if (r[2] != u && r[0] <= to && r[1] >= from && result.size() < limit)
+                  result.add(new Match(users.get(r[2]), label, Math.max(from, r[0]), Math.min(to, r[1])));
+      }
+      return result;
+   }//end find
+
+   /**
+    * Counts overlapping stints of other users without materializing them,
+    * in O(log n) per stint
+    */
+   public synchronized int count (String userId) {
+      // retired entries would have to be enumerated to be left out.
+      if (refreshedCount > 0) return find(userId).size();
+      Integer u = userIndex.get(userId.trim());
+      if (u == null) return 0;
+      int n = 0;
+      List<Object[]> mine = stints.get(u);
+      for (Object[] stint : mine) {
+         int from = (Integer) stint[1], to = (Integer) stint[2];
+         n += trees.get((String) stint[0]).count(from, to);
+         // the user's own stints at the same place, including this one.
+         for (Object[] other : mine)
+            if (other[0].equals(stint[0]) && (Integer) other[1] <= to && (Integer) other[2] >= from) --n;
+      }
+      return n;
+   }//end count
+
+   /**
+    * Replaces the stints of one user after the index was built
+    *
+    * @param userId the user whose rows changed
+    * @param rows the user's current {organization, startDate, endDate}
+    */
+   public synchronized void replace (String userId, List<String[]> rows) {
+      String id = userId.trim();
+      Integer u = userIndex.get(id);
+      if (u == null) {
+         u = users.size();
+         users.add(id);
+         userIndex.put(id, u);
+      }
+      if (!retired.get(u)) {
+         retired.set(u);
+         ++refreshedCount;
+      }
+      final int me = u;
+      List<Object[]> old = stints.get(u);
+      if (old != null)
+         for (Object[] stint : old) {
+            List<int[]> fresh = refreshed.get((String) stint[0]);
+            if (fresh != null) fresh.removeIf(r -> r[2] == me);
+         }
+      List<Object[]> mine = new ArrayList<Object[]>(rows.size());
+      for (String[] row : rows) {
+         Integer s = parseDate(row[1]), e = parseDate(row[2]);
+         if (malformed(row[1], s) || malformed(row[2], e)) {
+            ++malformed;
+            continue;
+         }
+         if (row[0] == null || s == null) continue;
+         int from = s, to = e == null ? Integer.MAX_VALUE : e;
+         if (to < from) { int t = from; from = to; to = t; }
+         String org = row[0].trim();
+         mine.add(new Object[]{org, from, to});
+         refreshed.computeIfAbsent(org, k -> new ArrayList<int[]>()).add(new int[]{from, to, u});
+      }
+      stints.put(u, mine);
+   }//end replace
+
+   /**
+    * @return number of users refreshed since the build; the owner
+    *         rebuilds once this grows large
+    */
+   public synchronized int refreshedUsers () {
+      return refreshedCount;
+   }//end refreshedUsers
+
+   /**
+    * @return number of distinct users indexed
+    */
+   public int userCount () {
+      return users.size();
+   }//end userCount
+
+   /**
+    * Parses yyyy-MM-dd or yyyy/MM/dd into an epoch day, null if absent
+    * or malformed
+    */
+   static Integer parseDate (String d) {
+      if (d == null) return null;
+      d = d.trim();
+      if (d.isEmpty()) return null;
+      try {
+         return (int) LocalDate.parse(d.replace('/', '-')).toEpochDay();
+      } catch (DateTimeParseException e) {
+         return null;
+      }//end try
+   }//end parseDate
+
+   // a date was given but did not parse.
+   private static boolean malformed (String d, Integer parsed) {
+      return parsed == null && d != null && !d.trim().isEmpty();
+   }//end malformed
+
+   /**
+    * Loads the coworker index from WORK_EXPR
+    */
+   public static OverlapIndex coworkers (ProfNetwork esql) throws Exception {
+      OverlapIndex idx = new OverlapIndex("company");
+      Dimensions d = esql.dimensions();
+      for (List<String> r : esql.executeQueryAndReturnResultAll(String.format(
+            "SELECT userId, %s, startDate, endDate FROM WORK_EXPR", d.columns(new String[][]{Dimensions.COMPANY}))))
+         idx.add(r.get(0), d.name(Dimensions.COMPANY, r.get(1)), r.get(2), r.get(3));
+      idx.build();
+      return idx;
+   }//end coworkers
+
+   /**
+    * Loads the classmate index from EDUCATIONAL_DETAILS
+    */
+   public static OverlapIndex classmates (ProfNetwork esql) throws Exception {
+      OverlapIndex idx = new OverlapIndex("school");
+      Dimensions d = esql.dimensions();
+      for (List<String> r : esql.executeQueryAndReturnResultAll(String.format(
+            "SELECT userId, %s, startdate, enddate FROM EDUCATIONAL_DETAILS", d.columns(new String[][]{Dimensions.INSTITUTION}))))
+         idx.add(r.get(0), d.name(Dimensions.INSTITUTION, r.get(1)), r.get(2), r.get(3));
+      idx.build();
+      return idx;
+   }//end classmates
+
+   /**
+    * Loads an index from one of the bundled CSV files
+    */
+   static OverlapIndex fromCsv (String file, String kind) throws IOException {
+      OverlapIndex idx = new OverlapIndex(kind);
+      try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+         String line = br.readLine();
+         while ((line = br.readLine()) != null) {
+            String[] f = line.split(",", -1);
+            idx.add(f[0], f[1], f[4], f[5]);
+         }
+      }
+      idx.build();
+      return idx;
+   }//end fromCsv
+
+   /**
+    * Counts overlaps for every step-th user by scanning each
+    * organization's full stint list, i.e. what the self-join does
+    */
+   long naiveTotal (int step) {
+      long total = 0;
+      for (int u = 0; u < users.size(); u += step)
+         for (Object[] stint : stints.get(u)) {
+            Tree t = trees.get((String) stint[0]);
+            int from = (Integer) stint[1], to = (Integer) stint[2];
+            for (int i = 0; i < t.size; ++i)
+               if (t.user[i] != u && t.start[i] <= to && t.end[i] >= from) ++total;
+         }
+      return total;
+   }//end naiveTotal
+
+   /**
+    * Counts overlaps for every step-th user through the trees, either with
+    * the binary-search count or by listing every match
+    */
+   long indexedTotal (int step, boolean list) {
+      long total = 0;
+      for (int u = 0; u < users.size(); u += step)
+         total += list ? find(users.get(u)).size() : count(users.get(u));
+      return total;
+   }//end indexedTotal
+
+   /**
+    * Benchmarks the index against the quadratic scan on the bundled CSVs.
+    * Large inputs are sampled down to about 20000 query users.
+    *
+    * @param args <Work_Ex.csv> <Edu_Det.csv>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length != 2) {
+         System.err.println ("Usage: java " + OverlapIndex.class.getName () + " <Work_Ex.csv> <Edu_Det.csv>");
+         return;
+      }//end if
+      String[] kinds = {"company", "school"};
+      for (int k = 0; k < 2; ++k) {
+         long t0 = System.nanoTime();
+         OverlapIndex idx = fromCsv(args[k], kinds[k]);
+         long t1 = System.nanoTime();
+         int step = Math.max(1, idx.users.size() / 20000);
+         int sampled = (idx.users.size() + step - 1) / step;
+         // one untimed pass of each so both sides are compiled.
+         idx.indexedTotal(step * 10, false);
+         idx.indexedTotal(step * 10, true);
+         idx.naiveTotal(step * 10);
+
+         long t2 = System.nanoTime();
+         long indexed = idx.indexedTotal(step, false);
+         long t3 = System.nanoTime();
+         long naive = idx.naiveTotal(step);
+         long t4 = System.nanoTime();
+         long listed = idx.indexedTotal(step, true);
+         long t5 = System.nanoTime();
+         int largest = 0;
+         for (Tree t : idx.trees.values()) largest = Math.max(largest, t.size);
+         System.out.printf("%s: %d users, %d organizations (largest %d stints), build %.1f ms%n",
+            args[k], idx.users.size(), idx.trees.size(), largest, (t1 - t0) / 1e6);
+         System.out.printf("  index count:   %d overlaps for %d users in %.1f ms (%.2f us/user)%n",
+            indexed, sampled, (t3 - t2) / 1e6, (t3 - t2) / 1e3 / sampled);
+         System.out.printf("  index listing: %d overlaps for %d users in %.1f ms (%.2f us/user)%n",
+            listed, sampled, (t5 - t4) / 1e6, (t5 - t4) / 1e3 / sampled);
+         System.out.printf("  full scan:     %d overlaps for %d users in %.1f ms (%.2f us/user)%n",
+            naive, sampled, (t4 - t3) / 1e6, (t4 - t3) / 1e3 / sampled);
+         if (indexed != naive || listed != naive)
+            System.out.println("  MISMATCH between interval tree and full scan");
+      }
+   }//end main
+
+}//end OverlapIndex
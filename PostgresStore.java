@@ -0,0 +1,287 @@
+/*
+ * PostgreSQL storage backend
+ * ==========================
+ *
+ * ProfileStore over the existing JDBC helpers of ProfNetwork, including
+ * shard routing when ProfNetwork runs sharded.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+
+/**
+ * This class implements ProfileStore with the same statements the menu
+ * handlers issue. The calls for several users at once go through a
+ * BatchLoader, one statement per shard and 1000 ids, and the statistics
+ * are read from the summary tables, see Stats.
+ *
+ */
+
+public class PostgresStore implements ProfileStore {
+
+   private final ProfNetwork esql;
+
+   public PostgresStore (ProfNetwork esql) {
+      this.esql = esql;
+   }//end PostgresStore
+
+   // doubles single quotes so values can be embedded in the statement.
+   static String q (String v) {
+      return v == null ? "" : v.replace("'", "''");
+   }//end q
+
+   // removes char(n) padding from every value.
+   static List<List<String>> trim (List<List<String>> rows) {
+      for (List<String> row : rows)
+         for (int i = 0; i < row.size(); ++i)
+            if (row.get(i) != null) row.set(i, row.get(i).trim());
+      return rows;
+   }//end trim
+
+   public boolean createUser (String userId, String password, String email, String name, String dateOfBirth) throws Exception {
+      if (userExists(userId)) return false;
+      esql.shard(userId).executeUpdate(String.format(
+         "INSERT INTO USR (userId, password, email, name, dateOfBirth) VALUES ('%s','%s','%s','%s','%s')",
+         q(userId), q(password), q(email), q(name), q(dateOfBirth)));
+      esql.userCreated(userId);
+      return true;
+   }//end createUser
+
+   public boolean userExists (String userId) throws Exception {
+      return esql.userExists(userId);
+   }//end userExists
+
+   public boolean checkLogin (String userId, String password) throws Exception {
+      return esql.shard(userId).executeQuery(String.format(
+         "SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", q(userId), q(password))) > 0;
+   }//end checkLogin
+
+   public void changePassword (String userId, String password) throws Exception {
+      esql.shard(userId).executeUpdate(String.format(
+         "UPDATE USR SET password = '%s' WHERE userId = '%s'", q(password), q(userId)));
+   }//end changePassword
+
+   public List<List<String>> findByName (String name) throws Exception {
+      return trim(esql.executeQueryAndReturnResultAll(String.format(
+         "SELECT userId, email, name, dateOfBirth FROM USR WHERE name = '%s'", q(name))));
+   }//end findByName
+
+   public Map<String, List<String>> users (Collection<String> userIds) throws Exception {
+      return new BatchLoader(esql, "users").users(userIds);
+   }//end users
+
+   public void addWork (String userId, String company, String role, String location, String startDate, String endDate) throws Exception {
+      Dimensions d = esql.dimensions();
+      esql.shard(userId).executeUpdate(String.format(
+         "INSERT INTO WORK_EXPR (userId,%s,startDate,endDate) VALUES ('%s',%s,%s,%s,'%s','%s')",
+         d.columns(Dimensions.WORK), q(userId), d.literal(Dimensions.COMPANY, company), d.literal(Dimensions.ROLE, role),
+         d.literal(Dimensions.LOCATION, location), q(startDate), q(endDate)));
+   }//end addWork
+
+   public void addEducation (String userId, String institution, String major, String degree, String startDate, String endDate) throws Exception {
+      Dimensions d = esql.dimensions();
+      esql.shard(userId).executeUpdate(String.format(
+         "INSERT INTO EDUCATIONAL_DETAILS (userId,%s,startdate,enddate) VALUES ('%s',%s,%s,%s,'%s','%s')",
+         d.columns(Dimensions.EDUCATION), q(userId), d.literal(Dimensions.INSTITUTION, institution),
+         d.literal(Dimensions.MAJOR, major), d.literal(Dimensions.DEGREE, degree), q(startDate), q(endDate)));
+   }//end addEducation
+
+   private static final String WORK = "SELECT %s,startDate,endDate FROM WORK_EXPR WHERE userId='%s' ORDER BY startDate";
+   private static final String EDUCATION = "SELECT %s,startdate,enddate FROM EDUCATIONAL_DETAILS WHERE userId='%s' ORDER BY startdate";
+
+   public List<List<String>> work (String userId) throws Exception {
+      Dimensions d = esql.dimensions();
+      return d.decode(trim(esql.shard(userId).executeQueryAndReturnResult(String.format(
+         WORK, d.columns(Dimensions.WORK), q(userId)))), Dimensions.WORK, 0);
+   }//end work
+
+   public List<List<String>> education (String userId) throws Exception {
+      Dimensions d = esql.dimensions();
+      return d.decode(trim(esql.shard(userId).executeQueryAndReturnResult(String.format(
+         EDUCATION, d.columns(Dimensions.EDUCATION), q(userId)))), Dimensions.EDUCATION, 0);
+   }//end education
+
+   /**
+    * Same as {@link #work}, run on a pooled connection; wait for it with
+    * QueryPool.join
+    */
+   public CompletableFuture<List<List<String>>> workAsync (String userId) throws Exception {
+      Dimensions d = esql.dimensions();
+      return esql.shard(userId).executeQueryAsync(String.format(WORK, d.columns(Dimensions.WORK), q(userId)))
+         .thenApply(rows -> decode(d, rows, Dimensions.WORK));
+   }//end workAsync
+
+   /**
+    * Same as {@link #education}, run on a pooled connection; wait for it
+    * with QueryPool.join
+    */
+   public CompletableFuture<List<List<String>>> educationAsync (String userId) throws Exception {
+      Dimensions d = esql.dimensions();
+      return esql.shard(userId).executeQueryAsync(String.format(EDUCATION, d.columns(Dimensions.EDUCATION), q(userId)))
+         .thenApply(rows -> decode(d, rows, Dimensions.EDUCATION));
+   }//end educationAsync
+
+   public Map<String, List<List<String>>> work (Collection<String> userIds) throws Exception {
+      return new BatchLoader(esql, "work").work(userIds);
+   }//end work
+
+   public Map<String, List<List<String>>> education (Collection<String> userIds) throws Exception {
+      return new BatchLoader(esql, "education").education(userIds);
+   }//end education
+
+   public OverlapIndex[] overlapIndexes () throws Exception {
+      return new OverlapIndex[]{OverlapIndex.coworkers(esql), OverlapIndex.classmates(esql)};
+   }//end overlapIndexes
+
+   private static List<List<String>> decode (Dimensions d, List<List<String>> rows, String[][] group) {
+      try {
+         return d.decode(trim(rows), group, 0);
+      } catch (SQLException e) {
+         throw new CompletionException(e);
+      }
+   }//end decode
+
+   public void applyProfile (String userId, ProfileDiff diff) throws Exception {
+      if (!diff.isEmpty()) esql.shard(userId).executeBatch(diff.statements(userId, esql.dimensions()));
+   }//end applyProfile
+
+   public void request (String userId, String connectionId) throws Exception {
+      esql.executeUpdateOn(String.format(
+         "INSERT INTO CONNECTION_USR (userId,connectionId,status) VALUES('%s','%s','Request')",
+         q(userId), q(connectionId)), userId, connectionId);
+   }//end request
+
+   public void setStatus (String userId, String connectionId, String status) throws Exception {
+      esql.executeUpdateOn(String.format(
+         "UPDATE CONNECTION_USR SET status='%s' WHERE userId='%s' AND connectionId='%s'",
+         q(status), q(userId), q(connectionId)), userId, connectionId);
+   }//end setStatus
+
+   public List<String> friends (String userId) throws Exception {
+      List<String> ids = new ArrayList<String>();
+      for (List<String> row : esql.shard(userId).executeQueryAndReturnResult(String.format(
+            "SELECT connectionId FROM CONNECTION_USR WHERE userId='%s' AND status='Accept' UNION "
+            + "SELECT userId FROM CONNECTION_USR WHERE connectionId='%s' AND status='Accept'", q(userId), q(userId))))
+         ids.add(row.get(0).trim());
+      return ids;
+   }//end friends
+
+   public Map<String, List<String>> friends (Collection<String> userIds) throws Exception {
+      return new BatchLoader(esql, "friends").neighbors(userIds);
+   }//end friends
+
+   public List<List<String>> pendingRequests (String userId) throws Exception {
+      return trim(esql.shard(userId).executeQueryAndReturnResult(String.format(
+         "SELECT userId,connectionId,status FROM CONNECTION_USR WHERE userId='%s' AND status='Request'", q(userId))));
+   }//end pendingRequests
+
+   public int[] connectionCounts (String userId) throws Exception {
+      return Stats.user(esql, userId);
+   }//end connectionCounts
+
+   public int send (String senderId, String receiverId, String contents, String sendTime) throws Exception {
+      String insert = "INSERT INTO MESSAGE (%ssenderId,receiverId,contents,sendTime,deleteStatus,status) VALUES (%s'%s','%s','%s','%s',0,'sent')";
+      ProfNetwork home = esql.shard(senderId);
+      home.executeUpdate(String.format(insert, "", "", q(senderId), q(receiverId), q(contents), q(sendTime)));
+      int msgId = home.getCurrSeqVal("msgId_seq");
+      if (esql.shard(receiverId) != home)
+         esql.shard(receiverId).executeUpdate(String.format(insert, "msgId,", msgId + ",",
+            q(senderId), q(receiverId), q(contents), q(sendTime)));
+      if (esql.messageCache() != null)
+         esql.messageCache().sent(msgId, senderId, receiverId, contents, sendTime);
+      return msgId;
+   }//end send
+
+   public List<List<String>> sent (String userId) throws Exception {
+      return trim(esql.shard(userId).executeQueryAndReturnResult(String.format(
+         "SELECT * FROM MESSAGE WHERE senderId='%s' AND (deleteStatus=0 OR deleteStatus=2) ORDER BY msgId", q(userId))));
+   }//end sent
+
+   public List<List<String>> received (String userId) throws Exception {
+      return trim(esql.shard(userId).executeQueryAndReturnResult(String.format(
+         "SELECT * FROM MESSAGE WHERE receiverId='%s' AND (deleteStatus=0 OR deleteStatus=1) ORDER BY msgId", q(userId))));
+   }//end received
+
+   // {user column, visible to that user} by side, see MessageCache.
+   private static final String[][] SIDES = {
+      {"senderId", "(deleteStatus=0 OR deleteStatus=2)"}, {"receiverId", "(deleteStatus=0 OR deleteStatus=1)"}};
+
+   private static String page (String userId, int side, int before, int n) {
+      return String.format("SELECT * FROM MESSAGE WHERE %s='%s' AND %s AND msgId < %d ORDER BY msgId DESC LIMIT %d",
+         SIDES[side][0], q(userId.trim()), SIDES[side][1], before, n);
+   }//end page
+
+   public List<List<String>> sent (String userId, int before, int n) throws Exception {
+      return trim(esql.shard(userId).executeQueryAndReturnResult(page(userId, MessageCache.SENT, before, n)));
+   }//end sent
+
+   public List<List<String>> received (String userId, int before, int n) throws Exception {
+      return trim(esql.shard(userId).executeQueryAndReturnResult(page(userId, MessageCache.RECEIVED, before, n)));
+   }//end received
+
+   /**
+    * Same as {@link #sent(String, int, int)} or
+    * {@link #received(String, int, int)}, run on a pooled connection;
+    * wait for it with QueryPool.join
+    *
+    * @param side MessageCache.SENT or MessageCache.RECEIVED
+    */
+   public CompletableFuture<List<List<String>>> pageAsync (String userId, int side, int before, int n) {
+      return esql.shard(userId).executeQueryAsync(page(userId, side, before, n)).thenApply(PostgresStore::trim);
+   }//end pageAsync
+
+   public void setDeleteStatus (int msgId, int deleteStatus) throws Exception {
+      String sql = String.format("UPDATE MESSAGE SET deleteStatus=%d WHERE msgId=%d", deleteStatus, msgId);
+      if (!esql.isSharded()) {
+         esql.executeUpdate(sql);
+      } else {
+         // the message id alone does not name a shard; update every copy.
+         for (List<String> row : esql.executeQueryAndReturnResultAll(String.format(
+               "SELECT senderId, receiverId FROM MESSAGE WHERE msgId=%d", msgId))) {
+            esql.executeUpdateOn(sql, row.get(0), row.get(1));
+            break;
+         }
+      }//end if
+      if (esql.messageCache() != null)
+         esql.messageCache().setDeleteStatus(msgId, deleteStatus);
+   }//end setDeleteStatus
+
+   /**
+    * Runs one set-based UPDATE, however many rows it touches; the new
+    * deleteStatus comes from the user's role in each message, so 0 goes
+    * to 1 or 2 and either of those to 3
+    */
+   public int deleteMessages (String userId, String condition, Predicate<List<String>> match) throws Exception {
+      String me = q(userId.trim());
+      // a message between two shards has a copy on each; the user's own
+      // shard holds all of them.
+      int count = esql.executeUpdateAll(String.format(
+         "UPDATE MESSAGE SET deleteStatus = CASE"
+         + " WHEN senderId='%s' AND receiverId='%s' THEN 3"
+         + " WHEN senderId='%s' THEN CASE WHEN deleteStatus IN (2,3) THEN 3 ELSE 1 END"
+         + " ELSE CASE WHEN deleteStatus IN (1,3) THEN 3 ELSE 2 END END"
+         + " WHERE ((senderId='%s' AND deleteStatus IN (0,2)) OR (receiverId='%s' AND deleteStatus IN (0,1)))"
+         + " AND %s",
+         me, me, me, me, me, condition), userId);
+      if (esql.messageCache() != null)
+         esql.messageCache().deleted(userId, match);
+      return count;
+   }//end deleteMessages
+
+   public Map<String, Integer> members (String kind, Collection<String> names) throws Exception {
+      return Stats.members(esql, kind, names);
+   }//end members
+
+   public List<String[]> largest (String kind, int n) throws Exception {
+      return Stats.top(esql, kind, n);
+   }//end largest
+
+}//end PostgresStore
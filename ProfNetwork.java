@@ -37,10 +37,58 @@ public class ProfNetwork {
 
    // reference to physical database connection.
    private Connection _connection = null;
+
+   // routes users to shards when started with several ports, else null.
+   private ShardRouter router = null;
+
+   // hot standbys serving the reads of this database, else null.
+   private ReplicaSet replicas = null;
+
+   // in-memory filter answering "does this userId exist", null if not loaded.
+   private volatile UserFilter userFilter = null;
+
+   // the filter being loaded, which must also see ids created meanwhile.
+   private volatile UserFilter loadingFilter = null;
+
+   // interval indexes for coworker/classmate discovery, {coworkers,
+   // classmates}, built on first use and dropped when too many users
+   // were refreshed since.
+   private volatile OverlapIndex[] overlapIndexes = null;
+
+   // follows the change log of other processes, else null.
+   private ChangeTailer changeTailer = null;
+
+   // neighbor sets of high-degree users, built on first traversal.
+   private HubCache hubCache = null;
+
+   // cached profile dimension dictionaries, loaded on first use.
+   private Dimensions dimensions = null;
+
+   // connections for concurrent queries, shared per database, opened on
+   // first use.
+   private QueryPool queryPool = null;
+
+   // newest messages of the logged-in users, kept while the change log
+   // reports their new messages, else null.
+   private MessageCache messageCache = null;
+
+   // the users, profiles, connections and messages the menus work on;
+   // this database unless another backend was set.
+   private ProfileStore store = null;
+
+   // {dbname, primary port, user, password}, for opening pooled connections.
+   private String[] connectArgs = null;
 //static String current = null;
+   // operation names of the menu choices, as profiled.
+   static final String[] MAIN_OPERATIONS = {null, "CreateUser", "LogIn", null, null, null, null, null, null, "Exit"};
+   static final String[] USER_OPERATIONS = {null, "FriendList", "UpdateProfile", "NewMessage", "RequestList",
+      "ChangePassword", "Search", "Connection_Request", "ViewMessages", "LogOut", "Discover", "ExportData",
+      "NetworkStats"};
+
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
+   // This variable can be global for convenience.  Replayed sessions
+   // feed it per thread, see Workload.
+   static BufferedReader in = new Workload.Input(
                                 new InputStreamReader(System.in));
 
    /**
@@ -53,42 +101,148 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public ProfNetwork (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this (dbname, dbport, user, passwd, true);
+   }//end ProfNetwork
+
+   /**
+    * Creates a new instance of ProfNetwork, reporting the progress of
+    * connecting on the console or not at all, e.g. for a pooled
+    * connection opened in the middle of a menu.
+    *
+    * @param verbose whether to print the connection progress and failure
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   ProfNetwork (String dbname, String dbport, String user, String passwd, boolean verbose) throws SQLException {
 
-      System.out.print("Connecting to database...");
+      if (dbport.indexOf(',') >= 0) {
+         // one port per shard; shard 0 also serves unrouted statements.
+         this.router = new ShardRouter (dbname, dbport.split(","), user, passwd);
+         this._connection = this.router.shards()[0]._connection;
+         this.replicas = this.router.shards()[0].replicas;
+         return;
+      }//end if
+      String[] replicaPorts = null;
+      if (dbport.indexOf('+') >= 0) {
+         // primary+replica+...: reads may go to the replicas.
+         String[] ports = dbport.split("\\+");
+         dbport = ports[0].trim();
+         replicaPorts = java.util.Arrays.copyOfRange (ports, 1, ports.length);
+      }//end if
+      this.connectArgs = new String[]{dbname, dbport, user, passwd};
+      if (verbose)
+         System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+         if (verbose)
+            System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      }catch (Exception e){
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
+         setStatementTimeout (QueryGuard.CEILING_MS);
+         if (replicaPorts != null)
+            this.replicas = new ReplicaSet (this, dbname, replicaPorts, user, passwd);
+         if (verbose)
+            System.out.println("Done");
+      }catch (SQLException e){
+         if (this._connection != null)
+            this._connection.close ();
+         if (verbose){
+            System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+            System.out.println("Make sure you started postgres on this machine");
+         }//end if
+         throw e;
       }//end catch
 
    }//end ProfNetwork
 
+   /**
+    * Creates a new instance of ProfNetwork without a database, working on
+    * another storage backend, e.g. a MemoryStore built by Startup with
+    * --memory. The menus run on it; the command line tools and the
+    * export, which read the database directly, do not.
+    *
+    * @param store the backend
+    */
+   public ProfNetwork (ProfileStore store) {
+      this.store = store;
+   }//end ProfNetwork
+
+   /**
+    * Method to bound every statement on this connection on the server
+    * side. Older servers without statement_timeout are left unbounded.
+    *
+    * @param ms the timeout in milliseconds, 0 for none
+    */
+   private void setStatementTimeout (int ms){
+      try{
+         Statement stmt = this._connection.createStatement ();
+         stmt.execute ("SET statement_timeout = " + ms);
+         stmt.close ();
+      }catch (SQLException e){
+         System.err.println ("statement_timeout not set: " + e.getMessage ());
+      }//end try
+   }//end setStatementTimeout
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+      try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+           Profiler.Call call = Profiler.call ("update", sql)){
+         // issues the update instruction
+         int rows = call.rows (stmt.executeUpdate (sql));
+         if (this.replicas != null)
+            this.replicas.written ();
+         return rows;
+      }finally{
+         // close the instruction
+         stmt.close ();
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute several update SQL statements as one batch in a
+    * single transaction.  Either every statement takes effect or, on the
+    * first failure, none does.
+    *
+    * @param sql the update statements, in order
+    * @return the update count of each statement
+    * @throws java.sql.SQLException when the batch failed and was rolled back
+    */
+   public int[] executeBatch (List<String> sql) throws SQLException {
+      boolean autoCommit = this._connection.getAutoCommit ();
+      this._connection.setAutoCommit (false);
+      Statement stmt = this._connection.createStatement ();
+      try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+           Profiler.Call call = Profiler.call ("batch", String.join (";\n", sql))){
+         for (String s : sql)
+            stmt.addBatch (s);
+         int[] counts = stmt.executeBatch ();
+         this._connection.commit ();
+         if (this.replicas != null)
+            this.replicas.written ();
+         int total = 0;
+         for (int c : counts)
+            total += Math.max (0, c);
+         call.rows (total);
+         return counts;
+      } catch (SQLException e) {
+         this._connection.rollback ();
+         throw e;
+      } finally {
+         stmt.close ();
+         this._connection.setAutoCommit (autoCommit);
+      }//end try
+   }//end executeBatch
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -99,8 +253,18 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      ProfNetwork replica = this.replicas == null ? null : this.replicas.reader ();
+      if (replica != null){
+         try{
+            return replica.executeQueryAndPrintResult (query);
+         }catch (SQLException e){
+            if (!this.replicas.fallback (replica, e)) throw e;
+         }//end try
+      }//end if
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+           Profiler.Call call = Profiler.call ("query", query)){
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -128,8 +292,10 @@ public class ProfNetwork {
          System.out.println ();
          ++rowCount;
       }//end while
-      stmt.close ();
-      return rowCount;
+      return call.rows (rowCount);
+      }finally{
+         stmt.close ();
+      }//end try
    }//end executeQuery
 
    /**
@@ -142,8 +308,18 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      ProfNetwork replica = this.replicas == null ? null : this.replicas.reader ();
+      if (replica != null){
+         try{
+            return replica.executeQueryAndReturnResult (query);
+         }catch (SQLException e){
+            if (!this.replicas.fallback (replica, e)) throw e;
+         }//end try
+      }//end if
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+           Profiler.Call call = Profiler.call ("query", query)){
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -165,8 +341,11 @@ public class ProfNetwork {
             record.add(rs.getString (i));
          result.add(record);
       }//end while
-      stmt.close ();
+      call.rows (result.size ());
       return result;
+      }finally{
+         stmt.close ();
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
@@ -178,8 +357,18 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       ProfNetwork replica = this.replicas == null ? null : this.replicas.reader ();
+       if (replica != null){
+          try{
+             return replica.executeQuery (query);
+          }catch (SQLException e){
+             if (!this.replicas.fallback (replica, e)) throw e;
+          }//end try
+       }//end if
        // creates a statement object
        Statement stmt = this._connection.createStatement ();
+       try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+            Profiler.Call call = Profiler.call ("query", query)){
 
        // issues the query instruction
        ResultSet rs = stmt.executeQuery (query);
@@ -190,10 +379,34 @@ public class ProfNetwork {
        if(rs.next()){
           rowCount++;
        }//end while
-       stmt.close ();
-       return rowCount;
+       return call.rows (rowCount);
+       }finally{
+          stmt.close ();
+       }//end try
    }
 
+   /**
+    * Method to start a query on one of the pooled connections of this
+    * database and return at once, so that independent queries of an
+    * operation run at the same time. The pooled connections read the
+    * primary. Wait for the result with QueryPool.join. Sharded, the
+    * query has no database to run on: call it on shard(userId) or on
+    * each of databases().
+    *
+    * @param query the input query string
+    * @return the query result as a list of records, when it completes
+    * @throws IllegalStateException when called on a sharded instance
+    */
+   public java.util.concurrent.CompletableFuture<List<List<String>>> executeQueryAsync (String query) {
+      if (this.router != null)
+         throw new IllegalStateException ("executeQueryAsync needs one database: use shard(userId) or databases()");
+      synchronized (this){
+         if (this.queryPool == null)
+            this.queryPool = QueryPool.acquire (connectArgs[0], connectArgs[1], connectArgs[2], connectArgs[3]);
+      }//end synchronized
+      return this.queryPool.submit (query);
+   }//end executeQueryAsync
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -205,17 +418,494 @@ public class ProfNetwork {
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
 	Statement stmt = this._connection.createStatement ();
+	String query = String.format("Select currval('%s')", sequence);
+	try (QueryGuard.Ticket ticket = QueryGuard.admit (stmt);
+	     Profiler.Call call = Profiler.call ("query", query)){
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	ResultSet rs = stmt.executeQuery (query);
 	if (rs.next())
-		return rs.getInt(1);
+		return rs.getInt(call.rows(1));
 	return -1;
+	}finally{
+	   stmt.close ();
+	}//end try
    }
 
+   /**
+    * Method to find the database holding a user's rows.
+    *
+    * @param userId the user id used as shard key
+    * @return the owning shard, or this object when not sharded
+    */
+   public ProfNetwork shard(String userId){
+      return this.router == null ? this : this.router.shard (userId);
+   }//end shard
+
+   /**
+    * Method to run a query on every shard and gather the rows. Same as
+    * executeQueryAndReturnResult when not sharded.
+    *
+    * @param query the input query string
+    * @return the rows of all shards
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResultAll (String query) throws SQLException {
+      if (this.router == null)
+         return executeQueryAndReturnResult (query);
+      return this.router.scatter (query);
+   }//end executeQueryAndReturnResultAll
+
+   /**
+    * Method to run a query on every shard and print the gathered rows.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResultAll (String query) throws SQLException {
+      if (this.router == null)
+         return executeQueryAndPrintResult (query);
+      List<List<String>> rows = this.router.scatter (query);
+      for (List<String> row : rows){
+         for (String v : row)
+            System.out.print (v + "\t");
+         System.out.println ();
+      }//end for
+      return rows.size();
+   }//end executeQueryAndPrintResultAll
+
+   /**
+    * Method to apply an update to the shards of all given users, e.g. both
+    * copies of a connection edge or a message.
+    *
+    * @param sql the input SQL string
+    * @param userIds the users whose rows the update touches
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateOn (String sql, String... userIds) throws SQLException {
+      if (this.router == null)
+         executeUpdate (sql);
+      else
+         this.router.updateOn (sql, userIds);
+   }//end executeUpdateOn
+
+   /**
+    * Method to apply an update to every shard, for set-based updates whose
+    * rows may sit on any shard, e.g. a user's messages with many others.
+    *
+    * @param sql the input SQL string, restricted to one user's rows
+    * @param userId the user the update is about
+    * @return the number of rows changed on the user's own shard, which
+    *         holds a copy of every row the update touches
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateAll (String sql, String userId) throws SQLException {
+      if (this.router == null)
+         return executeUpdate (sql);
+      int count = 0;
+      for (ProfNetwork db : this.router.shards ()){
+         int n = db.executeUpdate (sql);
+         if (db == shard (userId))
+            count = n;
+      }//end for
+      return count;
+   }//end executeUpdateAll
+
+   /**
+    * @return true when user data is spread over several databases
+    */
+   public boolean isSharded(){
+      return this.router != null;
+   }//end isSharded
+
+   /**
+    * Opens another connection to this database's primary, without any
+    * console output, for a background thread whose statements must not
+    * run in this connection's transaction
+    *
+    * @return the new connection; the caller cleans it up
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   ProfNetwork openAnother() throws SQLException {
+      if (this.connectArgs == null)
+         throw new IllegalStateException ("not a single database");
+      return new ProfNetwork (connectArgs[0], connectArgs[1], connectArgs[2], connectArgs[3], false);
+   }//end openAnother
+
+   /**
+    * @return every database holding user data: the shards, or this one
+    */
+   public ProfNetwork[] databases(){
+      return this.router == null ? new ProfNetwork[]{this} : this.router.shards ();
+   }//end databases
+
+   /**
+    * Method to get the profile dimension dictionaries, loading them on
+    * first use.
+    *
+    * @return the dictionaries, pass-through before the migration
+    * @throws java.sql.SQLException when failed to load them
+    */
+   public synchronized Dimensions dimensions() throws SQLException {
+      if (this.dimensions == null)
+         this.dimensions = Dimensions.load (this);
+      return this.dimensions;
+   }//end dimensions
+
+   // names the cursors of concurrent scans apart.
+   private static final java.util.concurrent.atomic.AtomicLong streams = new java.util.concurrent.atomic.AtomicLong ();
+
+   /**
+    * Method to execute a query on every database and hand each row to a
+    * consumer as it arrives instead of collecting the result.  The
+    * bundled driver reads a whole result into memory and has no fetch
+    * size, so the query runs as a server-side cursor and is fetched
+    * fetchSize rows per round trip; each scan runs in its own read-only
+    * transaction.  Meant for offline scans, so it bypasses the query
+    * time budgets, which bound every single FETCH instead.
+    *
+    * @param query the input query string
+    * @param fetchSize rows per round trip
+    * @param sink receives each row's column values
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeQueryAndStream (String query, int fetchSize, java.util.function.Consumer<String[]> sink) throws SQLException {
+      long rowCount = 0;
+      for (ProfNetwork db : databases ()){
+         boolean autoCommit = db._connection.getAutoCommit ();
+         db._connection.setAutoCommit (false);
+         Statement stmt = db._connection.createStatement ();
+         try (Profiler.Call call = Profiler.call ("stream", query)){
+            long dbRows = 0;
+            String cursor = "stream_" + streams.incrementAndGet ();
+            stmt.execute ("DECLARE " + cursor + " NO SCROLL CURSOR FOR " + query);
+            String fetch = "FETCH " + fetchSize + " FROM " + cursor;
+            int fetched;
+            do{
+               fetched = 0;
+               // an exhausted cursor may answer without a result set.
+               ResultSet rs = stmt.execute (fetch) ? stmt.getResultSet () : null;
+               if (rs == null) break;
+               int numCol = rs.getMetaData ().getColumnCount ();
+               while (rs.next ()){
+                  String[] row = new String[numCol];
+                  for (int i = 1; i <= numCol; ++i)
+                     row[i - 1] = rs.getString (i);
+                  sink.accept (row);
+                  ++fetched;
+               }//end while
+               rs.close ();
+               dbRows += fetched;
+            }while (fetched == fetchSize);
+            rowCount += call.rows (dbRows);
+         }finally{
+            stmt.close ();
+            db._connection.rollback ();
+            db._connection.setAutoCommit (autoCommit);
+         }//end try
+      }//end for
+      return rowCount;
+   }//end executeQueryAndStream
+
+   /**
+    * Method to build the in-memory user existence filter from USR. On
+    * failure the filter stays null and every check goes to the database.
+    * Ids created while the scan runs, here or by another process, are
+    * added as well, since the scan's snapshot may predate them.
+    */
+   public void loadUserFilter(){
+      try{
+         long users = 0;
+         for (List<String> count : executeQueryAndReturnResultAll("SELECT count(*) FROM USR"))
+            users += Long.parseLong(count.get(0));
+         UserFilter filter = new UserFilter (users * 2, 0.01);
+         this.loadingFilter = filter;
+         executeQueryAndStream ("SELECT userId FROM USR", 10000, row -> filter.add (row[0]));
+         this.userFilter = filter;
+         System.out.println (filter.report ());
+      }catch (Exception e){
+         System.err.println ("User filter disabled: " + e.getMessage ());
+      }finally{
+         this.loadingFilter = null;
+      }//end try
+   }//end loadUserFilter
+
+   // adds a new id to the loaded filter and to one being loaded.
+   private void addToFilter(String userId){
+      UserFilter loading = this.loadingFilter, loaded = this.userFilter;
+      if (loading != null)
+         loading.add (userId);
+      if (loaded != null)
+         loaded.add (userId);
+   }//end addToFilter
+
+   /**
+    * Method to check whether a user id exists. Ids the filter rules out
+    * are rejected without touching the database; the rest are confirmed
+    * with a primary key probe.
+    *
+    * @param userId the user id to check
+    * @return true if the user exists
+    * @throws java.sql.SQLException when failed to execute the probe
+    */
+   public boolean userExists(String userId) throws SQLException {
+      if (this.userFilter != null && !this.userFilter.mightContain (userId))
+         return false;
+      boolean found = shard (userId).executeQuery (String.format("SELECT 1 FROM USR WHERE userId = '%s'", userId)) > 0;
+      if (this.userFilter != null)
+         this.userFilter.recordProbe (found);
+      return found;
+   }//end userExists
+
+   /**
+    * Method to rule out user ids without a query.
+    *
+    * @return false only if the user certainly does not exist
+    */
+   public boolean mightExist(String userId){
+      return this.userFilter == null || this.userFilter.mightContain (userId);
+   }//end mightExist
+
+   /**
+    * Method to get the coworker and classmate indexes, building them on
+    * first use from the storage backend.
+    *
+    * @return {coworkers, classmates}
+    * @throws java.lang.Exception when failed to load them
+    */
+   public synchronized OverlapIndex[] overlapIndexes() throws Exception {
+      if (this.overlapIndexes == null)
+         this.overlapIndexes = store ().overlapIndexes ();
+      return this.overlapIndexes;
+   }//end overlapIndexes
+
+   /**
+    * Method to start following the change log, if the database has one.
+    */
+   public void startChangeTailer(){
+      try{
+         this.changeTailer = ChangeTailer.start (this);
+      }catch (SQLException e){
+         System.err.println ("Change log not followed, caches are local only: " + e.getMessage ());
+      }//end try
+   }//end startChangeTailer
+
+   /**
+    * Method to bring the in-process caches up to date with rows changed
+    * by any process. Only the changed keys are touched: new ids join the
+    * existence filter, hubs with a changed connection are evicted, and
+    * the discovery indexes re-read the changed users' rows, and messages
+    * sent by other processes drop the cached messages they change.
+    *
+    * @param batch the changed keys
+    * @throws java.lang.Exception when failed to re-read rows
+    */
+   public void applyChanges(ChangeTailer.Batch batch) throws Exception {
+      for (String id : batch.users)
+         addToFilter (id);
+      MessageCache messages = this.messageCache;
+      if (messages != null)
+         for (Map.Entry<Integer, String[]> e : batch.messages.entrySet ())
+            messages.stored (e.getKey (), e.getValue ()[0], e.getValue ()[1]);
+      if (this.hubCache != null)
+         for (String id : batch.connections)
+            this.hubCache.evict (id);
+      OverlapIndex[] index = this.overlapIndexes;
+      if (index == null || (batch.work.isEmpty () && batch.education.isEmpty ()))
+         return;
+      BatchLoader loader = new BatchLoader (this, "change log");
+      // a replica may not have replayed the change yet.
+      try (ReplicaSet.Scope primary = ReplicaSet.onPrimary ()){
+         for (Map.Entry<String, List<List<String>>> e : loader.work (batch.work).entrySet ())
+            index[0].replace (e.getKey (), ChangeTailer.stints (e.getValue ()));
+         for (Map.Entry<String, List<List<String>>> e : loader.education (batch.education).entrySet ())
+            index[1].replace (e.getKey (), ChangeTailer.stints (e.getValue ()));
+      }//end try
+      if (Math.max (index[0].refreshedUsers (), index[1].refreshedUsers ()) > ChangeTailer.REBUILD_AFTER)
+         this.overlapIndexes = null;
+   }//end applyChanges
+
+   /**
+    * Method to register a newly created user with the existence filter.
+    */
+   public void userCreated(String userId){
+      addToFilter (userId);
+   }//end userCreated
+
+   /**
+    * Method to get a user's accepted connections in both directions.
+    * Hubs are answered from the hub cache; everyone else costs one
+    * query, and a result that reaches the hub threshold is cached.
+    *
+    * @param userId the user whose neighborhood is needed
+    * @return the neighbor set over the cache's interned ids
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public HubCache.Neighbors neighbors(String userId) throws Exception {
+      return neighbors (Collections.singletonList (userId), new BatchLoader (this, "neighbors")).get (userId.trim ());
+   }//end neighbors
+
+   /**
+    * Method to get the neighborhoods of several users at once. Hubs are
+    * answered from the hub cache and the rest with one batched query per
+    * shard through the loader, or by the storage backend when it is not
+    * this database.
+    *
+    * @param userIds the users whose neighborhoods are needed
+    * @param loader the request-scoped loader of the calling operation
+    * @return the neighbor set of every requested user, by trimmed id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Map<String, HubCache.Neighbors> neighbors(Collection<String> userIds, BatchLoader loader) throws Exception {
+      loadHubCache ();
+      Map<String, HubCache.Neighbors> result = new LinkedHashMap<String, HubCache.Neighbors>();
+      List<String> rest = new ArrayList<String>();
+      for (String id : userIds){
+         HubCache.Neighbors n = this.hubCache.get (id);
+         if (n != null)
+            result.put (id.trim (), n);
+         else
+            rest.add (id);
+      }//end for
+      ProfileStore store = store ();
+      Map<String, List<String>> loaded = store instanceof PostgresStore ? loader.neighbors (rest) : store.friends (rest);
+      for (Map.Entry<String, List<String>> e : loaded.entrySet ()){
+         HubCache.Neighbors n = this.hubCache.of (e.getValue ());
+         this.hubCache.offer (e.getKey (), n);
+         result.put (e.getKey (), n);
+      }//end for
+      return result;
+   }//end neighbors
+
+   /**
+    * Method to keep the newest messages of the logged-in users in memory.
+    * The change log reports messages written by other processes, which
+    * invalidate the sender's and the receiver's cached messages, so
+    * nothing is cached when the log is not followed.
+    */
+   public void cacheMessages(){
+      if (!(store () instanceof PostgresStore) || this.changeTailer == null)
+         return;
+      this.messageCache = new MessageCache (this);
+   }//end cacheMessages
+
+   /**
+    * @return the recent-message cache, null if messages are not cached
+    */
+   public MessageCache messageCache(){
+      return this.messageCache;
+   }//end messageCache
+
+   /**
+    * Method to get one page of a user's visible messages, from the
+    * recent-message cache when it holds them.
+    *
+    * @param userId the user
+    * @param side MessageCache.SENT or MessageCache.RECEIVED
+    * @param before the msgId the page ends below, Integer.MAX_VALUE for the newest page
+    * @param n the page size
+    * @return the messages, newest first, when they are read
+    */
+   public java.util.concurrent.CompletableFuture<List<List<String>>> messagePage(String userId, int side, int before, int n){
+      if (this.messageCache != null)
+         return this.messageCache.page (userId, side, before, n);
+      ProfileStore store = store ();
+      if (store instanceof PostgresStore)
+         return ((PostgresStore) store).pageAsync (userId, side, before, n);
+      java.util.concurrent.CompletableFuture<List<List<String>>> page = new java.util.concurrent.CompletableFuture<List<List<String>>> ();
+      try{
+         page.complete (side == MessageCache.SENT ? store.sent (userId, before, n) : store.received (userId, before, n));
+      }catch (Exception e){
+         page.completeExceptionally (e);
+      }//end try
+      return page;
+   }//end messagePage
+
+   /**
+    * Method to get the storage backend the menus work on.
+    *
+    * @return the backend set with useStore, else this database
+    */
+   public synchronized ProfileStore store(){
+      if (this.store == null)
+         this.store = new PostgresStore (this);
+      return this.store;
+   }//end store
+
+   /**
+    * Method to run the menus on another storage backend, e.g. a
+    * MemoryStore. Messages are then no longer cached here.
+    *
+    * @param store the backend
+    */
+   public synchronized void useStore(ProfileStore store){
+      this.store = store;
+      if (!(store instanceof PostgresStore))
+         this.messageCache = null;
+   }//end useStore
+
+   /**
+    * Method to build the hub cache ahead of the first traversal.
+    */
+   public synchronized void loadHubCache() throws Exception {
+      // another backend holds every neighborhood in memory already, so
+      // the cache only interns ids and keeps no hubs.
+      if (this.hubCache == null)
+         this.hubCache = store () instanceof PostgresStore ? HubCache.load (this, HubCache.DEFAULT_THRESHOLD)
+                                                          : new HubCache (Integer.MAX_VALUE);
+   }//end loadHubCache
+
+   /**
+    * @return the hub cache, once a traversal has loaded it
+    */
+   public HubCache hubCache(){
+      return this.hubCache;
+   }//end hubCache
+
+   /**
+    * @return the interned id neighbor sets use for a user
+    */
+   public int neighborId(String userId){
+      return this.hubCache.id (userId);
+   }//end neighborId
+
+   /**
+    * Method to record an accepted connection with the hub cache.
+    */
+   public void connectionAccepted(String userId, String connectionId){
+      if (this.hubCache != null)
+         this.hubCache.onAccept (userId, connectionId);
+   }//end connectionAccepted
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this.userFilter != null)
+         System.out.println (this.userFilter.report ());
+      if (this.hubCache != null)
+         System.out.println (this.hubCache.report ());
+      if (this.dimensions != null)
+         System.out.println (this.dimensions.report ());
+      if (this.messageCache != null)
+         System.out.println (this.messageCache.report ());
+      if (this.changeTailer != null){
+         this.changeTailer.close ();
+         System.out.println (this.changeTailer.report ());
+      }//end if
+      if (this.queryPool != null){
+         System.out.println (this.queryPool.report ());
+         this.queryPool.release ();
+      }//end if
+      if (this.replicas != null && this.router == null){
+         System.out.println (this.replicas.report ());
+         this.replicas.cleanup ();
+      }//end if
+      if (this.router != null){
+         this.router.cleanup ();
+         return;
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -231,83 +921,45 @@ public class ProfNetwork {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      args = Startup.start (Workload.start (Profiler.start (args)));
+      if (args.length != (Startup.inMemory () ? 0 : 3)) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--profile[=file.jfr]] [--record[=file.tsv]] [--fast-start]" +
+            " | [--memory[=snapshot]]");
          return;
       }//end if
 
       Greeting();
       ProfNetwork esql = null;
+      MessageNotifier notifier = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the ProfNetwork object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new ProfNetwork (dbname, dbport, user, "");
-
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            int currentlevel=0;
-        //    int ifnew=0;
-            int offset=0;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Goto Friend List");
-                System.out.println("2. Update Profile");
-                System.out.println("3. Write a new message");
-                System.out.println("4. Your Connection Request");
-                System.out.println("5. Change password");
-                	System.out.println("6. Search people");
-                   System.out.println("7. Connection Request");
-                   System.out.println("8. View Messages");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: FriendList(esql,authorisedUser); break;
-                   case 2: UpdateProfile(esql,authorisedUser); break;
-                   case 3: NewMessage(esql,authorisedUser); break;
-                   case 4: RequestList(esql,authorisedUser); break;
-                  case 5: ChangePassword(esql,authorisedUser); break;
-                   case 6: Search(esql); break;
-                   case 7:Connection_Request(esql,authorisedUser);break;
-                   case 8:ViewMessages(esql,authorisedUser);break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         // connects, and with --fast-start warms up; --memory opens no
+         // database at all, see Startup.
+         Startup.Opened opened = Startup.inMemory () ? Startup.open () : Startup.open (args[0], args[1], args[2]);
+         esql = opened.esql;
+         notifier = opened.notifier;
+         esql.cacheMessages ();
+
+         session (esql, notifier);
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            if(notifier != null)
+               notifier.close ();
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
+               System.out.println (QueryGuard.report ());
+               System.out.println (BatchLoader.report ());
+               System.out.println (Separation.report ());
+               String profile = Profiler.stop ();
+               if (profile != null)
+                  System.out.println (profile);
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
@@ -315,6 +967,87 @@ public class ProfNetwork {
          }//end try
       }//end try
    }//end main
+
+   /**
+    * Runs the menus of one client session until the user exits. Reads
+    * from {@link #in}, so a replayed session runs the same code as a
+    * console one.
+    *
+    * @param esql the database
+    * @param notifier the new-message listener, or null
+    * @throws Exception when the session cannot continue
+    */
+   public static void session (ProfNetwork esql, MessageNotifier notifier) throws Exception {
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         System.out.println("MAIN MENU");
+         System.out.println("---------");
+         System.out.println("1. Create user");
+         System.out.println("2. Log in");
+         System.out.println("9. < EXIT");
+         String authorisedUser = null;
+         int currentlevel=0;
+     //    int ifnew=0;
+         int offset=0;
+         int choice = readChoice();
+         try (Profiler.Operation action = Profiler.operation (Profiler.name (MAIN_OPERATIONS, choice), null)){
+         switch (choice){
+            case 1: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.CHEAP)) { CreateUser(esql); } break;
+            case 2: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.CHEAP)) { authorisedUser = LogIn(esql); } break;
+            case 9: keepon = false; break;
+            default : System.out.println("Unrecognized choice!"); break;
+         }//end switch
+         }
+         if (authorisedUser != null) {
+           MessageNotifier.Session inbox = null;
+           if (notifier != null)
+              inbox = notifier.subscribe(authorisedUser, LatestReceived(esql,authorisedUser));
+           boolean usermenu = true;
+           while(usermenu) {
+             if (inbox != null && inbox.pending.getAndSet(0) > 0)
+                ShowNewMessages(esql,inbox);
+             System.out.println("MAIN MENU");
+             System.out.println("---------");
+             System.out.println("1. Goto Friend List");
+             System.out.println("2. Update Profile");
+             System.out.println("3. Write a new message");
+             System.out.println("4. Your Connection Request");
+             System.out.println("5. Change password");
+             	System.out.println("6. Search people");
+                System.out.println("7. Connection Request");
+                System.out.println("8. View Messages");
+             System.out.println("10. Find coworkers and classmates");
+             System.out.println("11. Export my data");
+             System.out.println("12. Network statistics");
+             System.out.println(".........................");
+             System.out.println("9. Log out");
+             int action = readChoice();
+             try (Profiler.Operation profiled = Profiler.operation (Profiler.name (USER_OPERATIONS, action), authorisedUser)){
+             switch (action){
+                case 1: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.GRAPH)) { FriendList(esql,authorisedUser); } break;
+                case 2: UpdateProfile(esql,authorisedUser); break;
+                case 3: NewMessage(esql,authorisedUser); break;
+                case 4: RequestList(esql,authorisedUser); break;
+               case 5: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.CHEAP)) { ChangePassword(esql,authorisedUser); } break;
+                case 6: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.SEARCH)) { Search(esql,authorisedUser); } break;
+                case 7: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.GRAPH)) { Connection_Request(esql,authorisedUser); } break;
+                case 8:ViewMessages(esql,authorisedUser);break;
+                case 10: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.GRAPH)) { Discover(esql,authorisedUser); } break;
+                case 11: ExportData(esql,authorisedUser); break;
+                case 12: try (QueryGuard.Scope op = QueryGuard.as (QueryGuard.CHEAP)) { NetworkStats(esql,authorisedUser); } break;
+                case 9: usermenu = false; break;
+                default : System.out.println("Unrecognized choice!"); break;
+             }
+             }
+           }
+           if (inbox != null)
+              notifier.unsubscribe(inbox);
+           if (esql.messageCache() != null)
+              esql.messageCache().drop(authorisedUser);
+         }
+      }//end while
+   }//end session
 public static void UpdateProfile(ProfNetwork esql,String currentuser){
 try{
 boolean keepon = true;
@@ -331,20 +1064,43 @@ while(keepon)
 {
 
  case 1:
+ // read through the store so dimension ids come back as names.
+ // on the database both tables are read at the same time.
+ ProfileStore profile=esql.store();
+ List<List<String>> jobs,schools;
+ if(profile instanceof PostgresStore)
+ {
+    java.util.concurrent.CompletableFuture<List<List<String>>> work=((PostgresStore)profile).workAsync(currentuser);
+    java.util.concurrent.CompletableFuture<List<List<String>>> education=((PostgresStore)profile).educationAsync(currentuser);
+    jobs=QueryPool.join(work);
+    schools=QueryPool.join(education);
+ }
+ else
+ {
+    jobs=profile.work(currentuser);
+    schools=profile.education(currentuser);
+ }
  System.out.println(" WORK_EXPR:");
- String query=String.format("SELECT* FROM WORK_EXPR WHERE userId='%s' ",currentuser);
- esql.executeQueryAndPrintResult(query);
+ System.out.println("company\trole\tlocation\tstartdate\tenddate\t");
+ for (List<String> record : jobs)
+    System.out.println(String.join("\t",record)+"\t");
   System.out.println(" EDUCATIONAL_DETAILS:");
- String query2=String.format("SELECT* FROM EDUCATIONAL_DETAILS WHERE userId='%s' ",currentuser);
- esql.executeQueryAndPrintResult(query2);
+ System.out.println("instituitionname\tmajor\tdegree\tstartdate\tenddate\t");
+ for (List<String> record : schools)
+    System.out.println(String.join("\t",record)+"\t");
  break;
  case 2:
             System.out.println("---------");
 System.out.println("1 create profile");
 System.out.println("2 update profile");
 int input =readChoice();
+// every edit of this visit is collected and applied as one transaction.
+ProfileStore store=esql.store();
+ProfileDiff diff=new ProfileDiff();
 if(input==1)
-{System.out.println(" WORK_EXPR:"); 
+{
+ do{
+    System.out.println(" WORK_EXPR:"); 
     System.out.println("enter company:");
     String company=in.readLine();
     System.out.println(" Enter role");
@@ -355,7 +1111,11 @@ if(input==1)
     String startdate=in.readLine();
     System.out.println(" Enter enddate mm/dd/yy");
     String enddate=in.readLine();
+    diff.putWork(company,role,location,startdate,enddate);
+    System.out.println("Add another job? (y/n)");
+ }while(in.readLine().trim().equalsIgnoreCase("y"));
 
+ do{
     System.out.println(" EDUCATIONAL_DETAILS:"); 
     System.out.println("Enter instituitionName:");
     String instituitionName=in.readLine();
@@ -367,22 +1127,40 @@ if(input==1)
     String startdate2=in.readLine();
     System.out.println(" Enter enddate mm/dd/yy");
     String enddate2=in.readLine();
-
-    String querym=String.format("INSERT INTO WORK_EXPR (userId,company,role,location,startDate,endDate) VALUES ('%s','%s','%s','%s','%s','%s')",currentuser,company,role,location,startdate,enddate);
-    esql.executeUpdate(querym);
-    String query3=String.format("INSERT INTO EDUCATIONAL_DETAILS (userId,instituitionName,major,degree,startdate,enddate) VALUES ('%s','%s','%s','%s','%s','%s')",currentuser,instituitionName,major2,degree2,startdate2,enddate2);
-    esql.executeUpdate(query3);
+    diff.putEducation(instituitionName,major2,degree2,startdate2,enddate2);
+    System.out.println("Add another degree? (y/n)");
+ }while(in.readLine().trim().equalsIgnoreCase("y"));
 }
 else if(input==2)
 {
+ do{
 System.out.println("1 update EDUCATIONAL_DETAILS:"); 
 System.out.println("2 update WORK_EXPR:"); 
 System.out.println("Enter number to confirm what part you want to update");
  int input2=readChoice();
+ List<List<String>> rows=input2==2 ? store.work(currentuser) : input2==1 ? store.education(currentuser) : null;
+ if(rows==null)
+ {
+    System.out.println("Invild input!!");
+    break;
+ }
+ if(rows.isEmpty())
+ {
+    System.out.println("Nothing to update");
+    break;
+ }
+ for(int i=0;i<rows.size();i++)
+    System.out.println((i+1)+". "+String.join(", ",rows.get(i)));
+ System.out.println("Enter number of the row to update:");
+ int pick=readChoice()-1;
+ if(pick<0 || pick>=rows.size())
+ {
+    System.out.println("Invild input!!");
+    break;
+ }
+ List<String> old=rows.get(pick);
  if(input2==2)
  {
-    System.out.println("Enter company as key:");
-    String key=in.readLine();
     System.out.println(" WORK_EXPR:"); 
     System.out.println("enter company:");
     String company3=in.readLine();
@@ -394,15 +1172,11 @@ System.out.println("Enter number to confirm what part you want to update");
     String startdate3=in.readLine();
     System.out.println(" Enter enddate mm/dd/yy");
     String enddate3=in.readLine();
-
-    String queryed=String.format("UPDATE WORK_EXPR SET company='%s', role='%s',location='%s',startdate='%s',enddate='%s' WHERE company='%s'",company3,role3,location3,startdate3,enddate3,key);
-    esql.executeUpdate(queryed); 
-    System.out.println("Updated");
+    // the old key is removed first, so key columns can change too.
+    diff.removeWork(old.get(0),old.get(1),old.get(3)).putWork(company3,role3,location3,startdate3,enddate3);
  }
- else if(input2==1)
+ else
  {
- System.out.println("Enter degree as key:");
-    String key2=in.readLine();
     System.out.println(" EDUCATIONAL_DETAILS:"); 
     System.out.println("enter instituitionName:");
     String instituitionName3=in.readLine();
@@ -414,20 +1188,21 @@ System.out.println("Enter number to confirm what part you want to update");
     String startdate4=in.readLine();
     System.out.println(" Enter enddate mm/dd/yy");
     String enddate4=in.readLine();
-String queryedd=String.format("UPDATE EDUCATIONAL_DETAILS SET instituitionName='%s',major='%s',degree='%s',startdate='%s',enddate='%s' WHERE degree='%s' ",instituitionName3,major3,degree3,startdate4,enddate4,key2);
-esql.executeUpdate(queryedd);
-System.out.println("Updated");
+    diff.removeEducation(old.get(1),old.get(2)).putEducation(instituitionName3,major3,degree3,startdate4,enddate4);
  }
- else
- {
+ System.out.println("Update another row? (y/n)");
+ }while(in.readLine().trim().equalsIgnoreCase("y"));
+}
+else
+{
     System.out.println("Invild input!!");
- }
- break;
- 
-
-
-
 }
+if(!diff.isEmpty())
+{
+    store.applyProfile(currentuser,diff);
+    System.out.println("Updated");
+}
+ break;
 
 case 3:
  keepon=false;
@@ -480,55 +1255,65 @@ case 3:
                //   System.out.println("ENTER receiverid:");
                //    String rec=in.readLine();
                   // System.out.println(rec);
-                   System.out.println("You sended:");
-                  String query2=String.format("SELECT * FROM MESSAGE WHERE MESSAGE.senderId='%s'  AND  (MESSAGE.deleteStatus=0 OR MESSAGE.deleteStatus=2)",currentuser);
-                
-                           esql.executeQueryAndPrintResult(query2);
-                            System.out.println("You received:");
-    String query3=String.format("SELECT * FROM MESSAGE WHERE  MESSAGE.receiverId='%s' AND  (MESSAGE.deleteStatus=0 OR MESSAGE.deleteStatus=1)",currentuser);       
-                      esql.executeQueryAndPrintResult(query3);
+                  PrintMessages(esql,currentuser);
                       break;
 ////////////////////////////////////////////////////////////////////////////
                case 2:
-                  System.out.println("You sended:");
-                  String queryq=String.format("SELECT * FROM MESSAGE WHERE MESSAGE.senderId='%s'  AND  (MESSAGE.deleteStatus=0 OR MESSAGE.deleteStatus=2)",currentuser);
-                
-                           esql.executeQueryAndPrintResult(queryq);
-                            System.out.println("You received:");
-    String query4=String.format("SELECT * FROM MESSAGE WHERE  MESSAGE.receiverId='%s' AND  (MESSAGE.deleteStatus=0 OR MESSAGE.deleteStatus=1)",currentuser);       
-                      esql.executeQueryAndPrintResult(query4);
-Scanner sc= new Scanner(System.in);
-                      System.out.println("ENTER MGID AND DELETESTATUS TO DELETE MESSAGE(confirm ID)");
-                      int a=sc.nextInt();
-                      int b=sc.nextInt();
-                      System.out.println("is your send?");
-                      String check=in.readLine();
-
-                      if(check.equals("yes")&& b==0)
-                      {
-                           String query5=String.format("UPDATE MESSAGE SET deleteStatus =1 WHERE msgId='%s'",a);
-                               esql.executeUpdate(query5);
-                      }
-                      else if(check.equals("yes")&& b==2)
-                      {
-                           String query6=String.format("UPDATE MESSAGE SET deleteStatus =3 WHERE msgId='%s'",a);
-                               esql.executeUpdate(query6);
-                      }
-                       else if(check.equals("no")&& b==0)
-                      {
-                           String query7=String.format("UPDATE MESSAGE SET deleteStatus =2 WHERE msgId='%s'",a);
-                               esql.executeUpdate(query7);
-                      }
-                       else if(check.equals("no")&& b==1)
-                      {
-                           String query8=String.format("UPDATE MESSAGE SET deleteStatus =3 WHERE msgId='%s'",a);
-                               esql.executeUpdate(query8);
-                      }
-                      else
-                      {
-                         System.out.println("Wrong input");
-                      }
-                     break;
+                  System.out.println("1. Delete selected messages");
+                  System.out.println("2. Delete a whole conversation");
+                  System.out.println("3. Delete everything older than a date");
+                  switch(readChoice())
+                  {
+                     case 1:
+                        PrintMessages(esql,currentuser);
+                        System.out.println("ENTER MSGIDS TO DELETE, separated by spaces or commas");
+                        StringBuilder ids=new StringBuilder();
+                        Set<String> picked=new HashSet<String>();
+                        String bad=null;
+                        for(String id : in.readLine().split("[,\\s]+"))
+                        {
+                           if(id.isEmpty())
+                              continue;
+                           try{
+                              String msgId=Integer.toString(Integer.parseInt(id));
+                              ids.append(ids.length()==0 ? "" : ",").append(msgId);
+                              picked.add(msgId);
+                           }catch(NumberFormatException e){
+                              bad=id;
+                              break;
+                           }//end try
+                        }
+                        if(bad!=null)
+                        {
+                           // nothing is deleted unless every id is valid.
+                           System.out.println("Not a message id: "+bad);
+                           break;
+                        }
+                        if(ids.length()==0)
+                        {
+                           System.out.println("Wrong input");
+                           break;
+                        }
+                        DeleteMessages(esql,currentuser,"msgId IN ("+ids+")",row -> picked.contains(row.get(0)));
+                        break;
+                     case 2:
+                        System.out.println("ENTER the userID of the other party:");
+                        String party=in.readLine().trim();
+                        String other=party.replace("'","''");
+                        DeleteMessages(esql,currentuser,String.format("(senderId='%s' OR receiverId='%s')",other,other),
+                           row -> row.get(1).equals(party) || row.get(2).equals(party));
+                        break;
+                     case 3:
+                        System.out.println("ENTER date yyyy-mm-dd; messages sent before it are deleted:");
+                        String date=in.readLine().trim();
+                        String before=date.replace("'","''");
+                        DeleteMessages(esql,currentuser,String.format("sendTime < '%s'",before),SentBefore(date));
+                        break;
+                     default:
+                        System.out.println("Wrong input");
+                        break;
+                  }
+                  break;
 
 
 
@@ -564,6 +1349,107 @@ Scanner sc= new Scanner(System.in);
         
     }
   
+   // messages per list and page of the inbox view.
+   static final int MESSAGE_PAGE = 20;
+
+   /*
+    * Prints the messages the current user sent and received, newest
+    * first, a page at a time. The newest pages usually come from the
+    * recent-message cache; the others are read from the database, the
+    * two lists at the same time on pooled connections.
+    **/
+   public static void PrintMessages(ProfNetwork esql,String currentuser) throws SQLException {
+      String[] titles={"You sended:","You received:"};
+      int[] before={Integer.MAX_VALUE,Integer.MAX_VALUE};
+      boolean[] more={true,true};
+      while(true){
+         List<java.util.concurrent.CompletableFuture<List<List<String>>>> pages=new ArrayList<java.util.concurrent.CompletableFuture<List<List<String>>>>();
+         for(int side=MessageCache.SENT;side<=MessageCache.RECEIVED;++side)
+            pages.add(more[side] ? esql.messagePage(currentuser,side,before[side],MESSAGE_PAGE)
+                                 : java.util.concurrent.CompletableFuture.completedFuture(new ArrayList<List<String>>()));
+         for(int side=MessageCache.SENT;side<=MessageCache.RECEIVED;++side){
+            List<List<String>> rows=QueryPool.join(pages.get(side));
+            System.out.println(titles[side]);
+            printRows(MESSAGE_COLUMNS,rows);
+            if(rows.size()<MESSAGE_PAGE)
+               more[side]=false;
+            else
+               before[side]=Integer.parseInt(rows.get(rows.size()-1).get(0));
+         }
+         if(!more[0] && !more[1])
+            return;
+         System.out.println("1. Older messages");
+         System.out.println("2. Done");
+         if(readChoice()!=1)
+            return;
+      }
+   }//end PrintMessages
+
+   /*
+    * Deletes, for the current user, every visible message matching the
+    * selection, given both as a condition on MESSAGE and as a test on its
+    * rows, see ProfileStore.deleteMessages. The new deleteStatus comes
+    * from the user's role in each message: the sender sets bit 1, the
+    * receiver bit 2, so 0 goes to 1 or 2 and either of those to 3.
+    **/
+   public static int DeleteMessages(ProfNetwork esql,String currentuser,String condition,
+                                    java.util.function.Predicate<List<String>> match) throws Exception {
+      int count=esql.store().deleteMessages(currentuser,condition,match);
+      System.out.println(count+" message(s) deleted");
+      return count;
+   }//end DeleteMessages
+
+   /*
+    * Returns a test for messages sent before a date as the database reads
+    * it, or null if the date is not in a form this side can read
+    **/
+   static java.util.function.Predicate<List<String>> SentBefore(String date){
+      try{
+         Timestamp limit=Timestamp.valueOf(date.length()==10 ? date+" 00:00:00" : date);
+         return row -> row.get(4)!=null && Timestamp.valueOf(row.get(4)).before(limit);
+      }catch(IllegalArgumentException e){
+         return null;
+      }
+   }//end SentBefore
+
+   /*
+    * Returns the newest msgId received by a user, 0 if none
+    **/
+   public static int LatestReceived(ProfNetwork esql,String currentuser) throws SQLException {
+      List<List<String>> r=QueryPool.join(esql.messagePage(currentuser,MessageCache.RECEIVED,Integer.MAX_VALUE,1));
+      return r.isEmpty() ? 0 : Integer.parseInt(r.get(0).get(0));
+   }//end LatestReceived
+
+   /*
+    * Prints only the messages received since the session last looked,
+    * after a notification arrived
+    **/
+   public static void ShowNewMessages(ProfNetwork esql,MessageNotifier.Session inbox){
+      try{
+         // newest first, a page at a time, down to the last one seen.
+         List<List<String>> rows=new ArrayList<List<String>>();
+         int before=Integer.MAX_VALUE;
+         while(before>inbox.lastSeen+1){
+            List<List<String>> page=QueryPool.join(esql.messagePage(inbox.userId,MessageCache.RECEIVED,before,MESSAGE_PAGE));
+            for(List<String> row : page)
+               if(Integer.parseInt(row.get(0))>inbox.lastSeen)
+                  rows.add(0,row);
+            if(page.size()<MESSAGE_PAGE)
+               break;
+            before=Integer.parseInt(page.get(page.size()-1).get(0));
+         }
+         if(rows.isEmpty())
+            return;
+         System.out.println("*** " + rows.size() + " new message(s) ***");
+         for(List<String> row : rows){
+            System.out.println("from " + row.get(1) + " at " + row.get(4) + ": " + row.get(3));
+            inbox.lastSeen=Math.max(inbox.lastSeen,Integer.parseInt(row.get(0)));
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }//end ShowNewMessages
+
     public static void NewMessage(ProfNetwork esql,String currentuser){
 
  try{
@@ -573,18 +1459,20 @@ Scanner sc= new Scanner(System.in);
        String rec = in.readLine();
         System.out.println("Enter contents you want to send:");
         String content=in.readLine();
-        int delatestatus=0;
-        String a="sent";
+        if(!esql.store().userExists(rec))
+        {
+           System.out.println("Receiver not exist");
+           return;
+        }
         
         //DateTimeFormatter time = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
         Timestamp time = new Timestamp(System.currentTimeMillis());//https://mkyong.com/java/how-to-get-current-timestamps-in-java/
-        String query=String.format("INSERT INTO MESSAGE (senderId,receiverId,contents,sendTime,deleteStatus,status)  VALUES ('%s','%s','%s','%s','%s','%s')",currentuser,rec,content,time,delatestatus,a);
-   esql.executeUpdate(query);
+   // the store keeps the receiver's shard copy and the cache up to date.
+   int msgId=esql.store().send(currentuser,rec,content,time.toString());
 
     System.out.println("send !!");
-    String query2=String.format("SELECT * FROM MESSAGE WHERE MESSAGE.senderId='%s' AND MESSAGE.receiverId='%s' AND MESSAGE.contents='%s'",currentuser,rec,content);
       System.out.println("detail:");
-    esql.executeQueryAndPrintResult(query2);
+    printRows(MESSAGE_COLUMNS,esql.store().sent(currentuser,msgId+1,1));
 
    
        //System.out.println("Receiver not exist");
@@ -614,29 +1502,47 @@ try{
             String newpassword = in.readLine();
          
          
-         String query = String.format("UPDATE USR SET password = '%s' WHERE userId = '%s'", newpassword, a);
-     
-
-        esql.executeQuery(query);
-//System.out.println("success!!!!");
+        esql.store().changePassword(a,newpassword);
+System.out.println("success!!!!");
          
       }catch(Exception e){
-         System.err.println ("success!!!!");
+         System.err.println (e.getMessage());
       }
 
 
 
         
     }
-   public static void Search(ProfNetwork esql){
+   // search results annotated per page, see Separation.
+   static final int SEARCH_PAGE = 20;
+
+   public static void Search(ProfNetwork esql,String currentuser){
         try{
  System.out.print("\tSearch people by name: ");
  String input=in.readLine();
- String query = String.format("SELECT USR.userId, USR.email, USR.name, USR.dateOfBirth FROM USR  WHERE USR.name = '%s' ", input);
-int rowCount = esql.executeQueryAndPrintResult(query);
+List<List<String>> found = esql.store().findByName(input);
+int rowCount = found.size();
 if(rowCount==0)
 {
    System.out.println ("No found!");
+}
+// one search from the current user serves every page of results.
+Separation degrees = new Separation(esql,currentuser);
+for(int from=0;from<rowCount;from+=SEARCH_PAGE)
+{
+   List<List<String>> page = found.subList(from,Math.min(rowCount,from+SEARCH_PAGE));
+   List<String> ids = new ArrayList<String>();
+   for(List<String> row : page)
+      ids.add(row.get(0));
+   Map<String,Integer> hops = degrees.distances(ids);
+   if(from==0)
+      System.out.println("userid\temail\tname\tdateofbirth\tconnection\t");
+   for(List<String> row : page)
+   {
+      for(String v : row)
+         System.out.print(v+"\t");
+      System.out.println(Separation.label(hops.get(row.get(0).trim()))+"\t");
+   }
 }
          System.out.println ("total row(s): " + rowCount);
 
@@ -671,12 +1577,34 @@ if(rowCount==0)
  switch(readChoice())
  {
       case 1:
-
+      if(!(esql.store() instanceof PostgresStore))
+      {
+         // another backend has nothing to overlap: names of the friends in
+         // both directions, looked up at once.
+         ProfileStore friends=esql.store();
+         List<List<String>> names=new ArrayList<List<String>>();
+         for(List<String> friend : friends.users(friends.friends(currentuser)).values())
+            names.add(Collections.singletonList(friend.get(2)));
+         if(printRows("name",names)==0)
+         {
+            System.out.println("you don't have any friend");
+         }
+         break;
+      }
       String query=String.format("SELECT B.name FROM CONNECTION_USR A,USR B WHERE A.userId='%s' AND A.connectionId=B.userId AND A.status='Accept' ",currentuser);
       String query7=String.format("SELECT B.name FROM CONNECTION_USR A,USR B WHERE A.connectionId='%s' AND A.userId=B.userId AND A.status='Accept' ",currentuser);
-      int row  =   esql.executeQueryAndPrintResult(query);
+      if(esql.isSharded())
+      {
+         // friends may live on other shards, so resolve their names there.
+         query=String.format("SELECT connectionId FROM CONNECTION_USR WHERE userId='%s' AND status='Accept' ",currentuser);
+         query7=String.format("SELECT userId FROM CONNECTION_USR WHERE connectionId='%s' AND status='Accept' ",currentuser);
+      }
+      // both directions at once, on pooled connections.
+      java.util.concurrent.CompletableFuture<List<List<String>>> mine=esql.shard(currentuser).executeQueryAsync(query);
+      java.util.concurrent.CompletableFuture<List<List<String>>> theirs=esql.shard(currentuser).executeQueryAsync(query7);
+      int row  =   printNames(esql,QueryPool.join(mine));
        System.out.println("and accpeted friend(accept friend request)(test for insertion):");
-      int row6 = esql.executeQueryAndPrintResult(query7);
+      int row6 = printNames(esql,QueryPool.join(theirs));
      // esql.executeQueryAndReturnResult(query);
       if(row==0 && row6==0)
       {
@@ -687,35 +1615,41 @@ if(rowCount==0)
      case 2:
      System.out.println("Select the friend by name");
      String input2=in.readLine();
-     String query2=String.format("SELECT B.userId FROM USR B WHERE B.name='%s'",input2);
-
-     List<List<String>> checker= esql.executeQueryAndReturnResult(query2);
-     
-                for (List<String> innerlist2 : checker) {
-           
-            for (String m : innerlist2) {
-
-                   currentuser=m;
-            }
-                }
-       String query3=String.format("SELECT instituitionName,major,degree,startdate,enddate FROM EDUCATIONAL_DETAILS  WHERE EDUCATIONAL_DETAILS.userId='%s'",currentuser);
+     List<String> ids=new ArrayList<String>();
+     for (List<String> innerlist2 : esql.store().findByName(input2))
+        ids.add(innerlist2.get(0));
+     if(ids.isEmpty())
+     {
+        System.out.println("No user named "+input2);
+        break;
+     }
+     // profiles of everyone with that name, two statements in total.
+     ProfileStore profiles=esql.store();
+     Map<String,List<List<String>>> education=profiles.education(ids);
+     Map<String,List<List<String>>> work=profiles.work(ids);
+     for (String id : ids) {
         System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
         System.out.println("EDUCATIONAL_DETAILS:");
-   int row2=  esql.executeQueryAndPrintResult(query3);
-             if(row2==0)
-             {
-                System.out.println(currentuser+"don't have EDUCATIONAL_DETAILS info");
-             } 
-              System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
-              System.out.println("WORK_EXPR:");
-             String query4=String.format("SELECT company,role,location,startDate,endDate FROM WORK_EXPR WHERE WORK_EXPR.userId='%s'",currentuser);
-              int row3=  esql.executeQueryAndPrintResult(query4);
-             if(row3==0)
-             {
-                System.out.println(currentuser+"don't have WORK_EXPR info");
-             } 
-              System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
-              System.out.println("You are currently viewing " + input2 + "'s profile");
+        System.out.println("instituitionname\tmajor\tdegree\tstartdate\tenddate\t");
+        for (List<String> record : education.get(id))
+           System.out.println(String.join("\t",record)+"\t");
+        if(education.get(id).isEmpty())
+        {
+           System.out.println(id+"don't have EDUCATIONAL_DETAILS info");
+        }
+        System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
+        System.out.println("WORK_EXPR:");
+        System.out.println("company\trole\tlocation\tstartdate\tenddate\t");
+        for (List<String> record : work.get(id))
+           System.out.println(String.join("\t",record)+"\t");
+        if(work.get(id).isEmpty())
+        {
+           System.out.println(id+"don't have WORK_EXPR info");
+        }
+        System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
+        System.out.println("You are currently viewing " + input2 + "'s profile");
+        currentuser=id;
+     }
               
               break;
    case 3:
@@ -748,6 +1682,122 @@ if(rowCount==0)
 
 
 
+   /*
+    * Prints friend names. Unsharded, the query already joined USR and its
+    * rows are printed as is; sharded, it returned ids whose names are then
+    * looked up on every shard.
+    **/
+   public static int printNames(ProfNetwork esql,List<List<String>> ids) throws SQLException {
+      if(!esql.isSharded())
+         return printRows("name",ids);
+      if(ids.isEmpty())
+         return 0;
+      StringBuilder in=new StringBuilder();
+      for(List<String> id : ids)
+         in.append(in.length()==0 ? "" : ",").append("'").append(id.get(0).trim()).append("'");
+      return esql.executeQueryAndPrintResultAll("SELECT name FROM USR WHERE userId IN ("+in+")");
+   }//end printNames
+
+   // column names of CONNECTION_USR as SELECT * returns them.
+   static final String REQUEST_COLUMNS = "userid\tconnectionid\tstatus";
+
+   // column names of MESSAGE as SELECT * returns them.
+   static final String MESSAGE_COLUMNS = "msgid\tsenderid\treceiverid\tcontents\tsendtime\tdeletestatus\tstatus";
+
+   /*
+    * Prints rows fetched ahead of time the way executeQueryAndPrintResult
+    * prints a result: the tab separated header, only if there are rows,
+    * then one line per row.
+    **/
+   public static int printRows(String header,List<List<String>> rows){
+      if(!rows.isEmpty())
+         System.out.println(header+"\t");
+      for(List<String> row : rows){
+         for(String v : row)
+            System.out.print(v+"\t");
+         System.out.println();
+      }
+      return rows.size();
+   }//end printRows
+
+   /*
+    * Lists people who worked at the same company or studied at the same
+    * institution at the same time as the current user
+    **/
+   public static void Discover(ProfNetwork esql,String currentuser){
+      try{
+         OverlapIndex[] index = esql.overlapIndexes();
+         int total = index[0].count(currentuser) + index[1].count(currentuser);
+         if (total == 0) {
+            System.out.println("No coworkers or classmates found");
+            return;
+         }
+         List<OverlapIndex.Match> found = new ArrayList<OverlapIndex.Match>();
+         found.addAll(index[0].find(currentuser, 50));
+         found.addAll(index[1].find(currentuser, 100 - found.size()));
+         System.out.println("userId\twhere\tfrom\tto");
+         for (OverlapIndex.Match m : found)
+            System.out.println(m);
+         System.out.println("showing " + found.size() + " of " + total + " row(s)");
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }//end Discover
+
+   /*
+    * Writes the current user's profile, connections and visible messages
+    * to gzip compressed files, streamed so any amount of data fits
+    **/
+   public static void ExportData(ProfNetwork esql,String currentuser){
+      try{
+         if (!(esql.store() instanceof PostgresStore)) {
+            System.out.println("Export reads the database and is not available on this backend");
+            return;
+         }
+         System.out.println("1. CSV");
+         System.out.println("2. JSON lines");
+         boolean jsonl = readChoice() == 2;
+         System.out.println("Enter directory (empty for export_" + currentuser.trim() + "):");
+         String dir = in.readLine().trim();
+         if (dir.isEmpty())
+            dir = "export_" + currentuser.trim();
+         long t0 = System.nanoTime();
+         List<Export.Result> results = Export.user(esql, currentuser, new java.io.File(dir), jsonl);
+         System.out.println("Exported to " + dir + ":");
+         System.out.println(Export.report(results, (System.nanoTime() - t0) / 1e9));
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }//end ExportData
+
+   /*
+    * Shows the current user's connection counts and the size of their
+    * companies and institutions, read from the summary tables
+    **/
+   public static void NetworkStats(ProfNetwork esql,String currentuser){
+      try{
+         ProfileStore profile = esql.store();
+         int[] mine = profile.connectionCounts(currentuser);
+         System.out.println("connections: " + mine[0] + ", requests sent: " + mine[1] + ", requests received: " + mine[2]);
+         String[][] kinds = {{"C", "company"}, {"I", "institution"}};
+         for (String[] k : kinds) {
+            List<String> names = new ArrayList<String>();
+            for (List<String> r : k[0].equals("C") ? profile.work(currentuser) : profile.education(currentuser))
+               if (!names.contains(r.get(0).trim())) names.add(r.get(0).trim());
+            Map<String, Integer> members = profile.members(k[0], names);
+            for (String n : names)
+               System.out.println(k[1] + "\t" + n + "\t" + members.get(n) + " member(s)");
+         }
+         for (String[] k : kinds) {
+            System.out.println("largest " + k[1] + "s:");
+            for (String[] t : profile.largest(k[0], 5))
+               System.out.println("\t" + t[0] + "\t" + t[1] + " member(s)");
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }//end NetworkStats
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -792,10 +1842,10 @@ if(rowCount==0)
             System.out.print("\tEnter user date of birth (MM/DD/YYYY): ");
             String day = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email, name, dateOfBirth) VALUES ('%s','%s','%s','%s','%s')", login, password, email,name,day);
-
-         esql.executeUpdate(query);
+         if (!esql.store().createUser(login, password, email, name, day)) {
+            System.out.println ("User id already taken!");
+            return;
+         }
          System.out.println ("User successfully created!");
         // return 1;
       }catch(Exception e){
@@ -815,9 +1865,7 @@ if(rowCount==0)
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.store().checkLogin(login, password))
 		return login;
       System.out.println("\tinvalid input!!! ");
          return null;
@@ -881,128 +1929,45 @@ String queryend=null;
 boolean newuser=false;
 //A
 
-         String query = String.format("SELECT CONNECTION_USR.connectionId  FROM CONNECTION_USR WHERE CONNECTION_USR.userId='%s' AND CONNECTION_USR.status='Accept'",currentuser);
-         int rowCount = esql.executeQuery(query);
-          List<List<String>> checker=esql.executeQueryAndReturnResult(query);
-if(rowCount==0)
+          List<String> checker=esql.store().friends(currentuser);
+if(checker.isEmpty())
 {
 newuser=true;
 System.out.println("\tNew user !");
 }
 
 if(newuser==false)
-{//System.out.println("\t1"); 
+{
 System.out.println("\tenter request userID: ");
 String request=in.readLine();     
-     for (List<String> innerlist : checker) {//1    //https://javahungry.blogspot.com/2020/01/list-of-lists-in-java.html reference
-            for (String i : innerlist) {//2
-               // System.out.print(aList.get(i).get(j) + " ");
-              if(request.equals(i)) 
-             {//System.out.println("\t33333333");
-            // System.out.println(i);
-             if(note==0)
-             {
-                 String add1 =String.format("INSERT INTO CONNECTION_USR (userId,connectionId,status) VALUES('%s','%s','Request')",currentuser,request);
-               //  System.out.println("\t '%s'");
-               System.out.println("Already in the list, don't need to request again!");
-               
-                special=1;
-                 break;
-             }
-              }
-              else
-             {//else
-         
-            //  System.out.println("\t2");
-               String levelB=i;
-              //    System.out.println("\t2");
-                String query2 = String.format("SELECT CONNECTION_USR.connectionId  FROM CONNECTION_USR WHERE CONNECTION_USR.userId='%s' AND CONNECTION_USR.status='Accept' UNION SELECT CONNECTION_USR.userId  FROM CONNECTION_USR WHERE CONNECTION_USR.connectionId='%s' AND CONNECTION_USR.status='Accept'",levelB,levelB);
-              //  System.out.println(i);
-               //   System.out.println("\t2");
-                List<List<String>> checker2=esql.executeQueryAndReturnResult(query2);
-                 int rowCoun2 = esql.executeQuery(query2);
-              //    System.out.println(rowCoun2);
-             //     System.out.println("\t2");
-              if(rowCoun2>0)
-             {//row2
-                
-                for (List<String> innerlist2 : checker2) {//3
-            //    System.out.println("\tloop 1");
-            for (String m : innerlist2) {//4
-          //  System.out.println("\tloop 2");
-                  if(request.equals(m)) 
-              {//if
-           //   System.out.println("\t444444");
-           //      System.out.println(m);
-             if(note==0)
-             {
-                 String add1 =String.format("INSERT INTO CONNECTION_USR (userId,connectionId,status) VALUES('%s','%s','Request')",currentuser,request);
-               //  System.out.println("\tadded");
-               // queryend=String.format("INSERT INTO CONNECTION_USR (userId,connectionId, status) VALUES ('%s','%s','%s')", currentuser, request);
-                esql.executeUpdate(add1);
-                note=1;
-                 break;
-             }
-              }//if
-              else
-                 {//else
-                 //    System.out.println("\t5");
-                String levelC=m;
-            //      System.out.println("\t5");
-                       String query3 = String.format("SELECT CONNECTION_USR.connectionId  FROM CONNECTION_USR WHERE CONNECTION_USR.userId='%s' AND CONNECTION_USR.status='Accept' UNION SELECT CONNECTION_USR.userId  FROM CONNECTION_USR WHERE CONNECTION_USR.connectionId='%s' AND CONNECTION_USR.status='Accept'",levelC,levelC);
-                 //      System.out.println(levelB);
-                //       System.out.println("\t5");
-                List<List<String>> checker3=esql.executeQueryAndReturnResult(query3);
-                 int rowCoun3 = esql.executeQuery(query2);
-             //     System.out.println(rowCoun3);
-             //     System.out.println("\t5");
-                  if(rowCoun3>0)
-                  {//row 3
-                     for (List<String> innerlist3 : checker3) {//6
-              //         System.out.println("\tloop 1");
-                      for (String V : innerlist3) {//7
-                if(request.equals(V)) 
-                {//if
-              //   System.out.println("\tloop 888");
-                      System.out.println(V);
-             if(note==0)
-             {
-                 String add2 =String.format("INSERT INTO CONNECTION_USR (userId,connectionId,status) VALUES('%s','%s','Request')",currentuser,request);
-               //  System.out.println("\tadded");
-               // queryend=String.format("INSERT INTO CONNECTION_USR (userId,connectionId, status) VALUES ('%s','%s','%s')", currentuser, request);
-                esql.executeUpdate(add2);
-                note=1;
-                 break;
-             }
-                }//if
-               
-
-                      
-            }//7
-                     }//6
-                  }//row3
-                  else
-             {
-               // System.out.println("\tfault to add,no chain exit!");
-                break;
-             }
-                  // System.out.println("\tfault to add,>level 2 or no chain");
-                 }//else
-
-            }//4
-                }//3
-             }//row2
-             else
-             {
-               // System.out.println("\tfault to add,no chain exit!");
-                break;
-             }
- }//else
-
-            
-
-            }//2
-     }//1    
+for (String friend : checker)
+   if(request.trim().equals(friend))
+      special=1;
+if(special==1)
+{
+   System.out.println("Already in the list, don't need to request again!");
+}
+else
+{
+   // a friend's neighborhood holding the request is level 2; one meeting
+   // the request's own neighborhood is level 3. Hubs come from the cache.
+   // every neighborhood needed is fetched in one batch.
+   List<String> wanted=new ArrayList<String>();
+   wanted.add(request);
+   wanted.addAll(checker);
+   Map<String,HubCache.Neighbors> sets=esql.neighbors(wanted,new BatchLoader(esql,"connection request"));
+   HubCache.Neighbors target=sets.get(request.trim());
+   int requestId=esql.neighborId(request);
+   for (String friend : checker) {
+      HubCache.Neighbors levelB=sets.get(friend);
+      if(levelB.contains(requestId) || levelB.intersects(target))
+      {
+         esql.store().request(currentuser,request);
+         note=1;
+         break;
+      }
+   }
+}
 }//if
 if(special==1)
 {
@@ -1048,47 +2013,33 @@ newuser(esql,currentuser,newlevel);
     int newlevel=5;
 int counter=0;
 System.out.println("\tWellcome! you now can add up to 5 friends request!!");
-System.out.println("\tPlease enter userID you want to request:");
-
-String temp1=in.readLine();
-counter++;
 while(newlevel>0){
-String query5=String.format("SELECT * FROM USR WHERE USR.userId='%s' ",temp1);
-//temp1="null";
-int rowcounter=esql.executeQueryAndPrintResult(query5);
-System.out.println(rowcounter);
-if(rowcounter ==1)
-{//System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!");
-String query = String.format("INSERT INTO CONNECTION_USR (userId,connectionId,status) VALUES('%s','%s','Request')",currentuser,temp1);
-esql.executeUpdate(query);
- System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!");
-
-      
-         System.out.println("checker");
-        //if(checker>0)
-System.out.println("\tSuccess! and you can add "+ newlevel+ " more friend request Do you want to contine? yes(1)/no(2):");
-System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!!");
-String temp2=in.readLine();
-if(temp2.equals("yes"))
-{
-newlevel--;
-
-System.out.println("\tPlease enter userID you want to request:");
- temp1=in.readLine();
- counter++;
-}
-else{
-//newlevel=0;
-//int temp4=5-newlevel;
-newlevel=0;
-System.out.println("\tYou created "+ counter +" request!");
-
-}
-}
-else{
-   System.out.println("\tError!");
+System.out.println("\tPlease enter userIDs you want to request, separated by commas:");
+Set<String> typed=new LinkedHashSet<String>();
+for (String id : in.readLine().split(","))
+   if(!id.trim().isEmpty() && typed.size()<newlevel)
+      typed.add(id.trim());
+// one existence check for all typed ids instead of one per id.
+Map<String,List<String>> found=esql.store().users(typed);
+for (String temp1 : typed) {
+   if(found.containsKey(temp1))
+   {
+      esql.store().request(currentuser,temp1);
+      counter++;
+      newlevel--;
+   }
+   else
+   {
+      System.out.println("\tError! user "+temp1+" does not exist");
+   }
 }
+if(newlevel==0)
+   break;
+System.out.println("\tSuccess! and you can add "+ newlevel+ " more friend request Do you want to contine? yes/no:");
+if(!in.readLine().equals("yes"))
+   break;
 }
+System.out.println("\tYou created "+ counter +" request!");
 
 
       }catch(Exception e){
@@ -1114,8 +2065,7 @@ else{
             switch(readChoice())
             {
                 case 1:
-                String query= String.format("SELECT * FROM CONNECTION_USR WHERE CONNECTION_USR.userId='%s' AND CONNECTION_USR.status='Request'",currentuser);
-                int count=esql.executeQueryAndPrintResult(query);
+                int count=printRows(REQUEST_COLUMNS,esql.store().pendingRequests(currentuser));
                   if(count==0)
                 {
                    System.out.println("No request right now!");
@@ -1124,8 +2074,7 @@ else{
                 // cehcklist(esql,currentuser);break;
                case 2: 
                 System.out.println("Currently you have following friend request(s):");
-                String query1= String.format("SELECT * FROM CONNECTION_USR WHERE CONNECTION_USR.userId='%s' AND CONNECTION_USR.status='Request'",currentuser);
-                int count1=esql.executeQueryAndPrintResult(query1);
+                int count1=printRows(REQUEST_COLUMNS,esql.store().pendingRequests(currentuser));
                 if(count1==0)
                 {
                    System.out.println("No request right now!");
@@ -1137,14 +2086,13 @@ else{
                 String result=in.readLine();
                 if(result.equals("Accept"))
                 {
-                String query2=String.format("UPDATE CONNECTION_USR SET status='%s' WHERE userId='%s' AND connectionId='%s'",result,currentuser,input);
-
-                 esql.executeUpdate(query2);
+                 esql.store().setStatus(currentuser,input,result);
+                 esql.connectionAccepted(currentuser,input);
                   System.out.println("Updated");
                 }
                 else if(result.equals("Reject"))
                 {
-                     String query2=String.format("UPDATE CONNECTION_USR SET status='%s' WHERE userId='%s' AND connectionId='%s'",result,currentuser,input);
+                      esql.store().setStatus(currentuser,input,result);
                       System.out.println("Updated");
                 }
                 else
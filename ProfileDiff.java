@@ -0,0 +1,139 @@
+/*
+ * Profile edits
+ * =============
+ *
+ * A batch of changes to one user's work experience and education rows,
+ * applied as a single transaction.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class collects row upserts and removals for one user's profile,
+ * keyed on the table primary keys: (userId, company, role, startDate) for
+ * WORK_EXPR and (userId, major, degree) for EDUCATIONAL_DETAILS. Every
+ * statement it produces carries the userId predicate, so applying a diff
+ * only touches the editing user's own rows.
+ *
+ * Changing a key column is a removal of the old key plus a put of the new
+ * row. Removals are applied before puts.
+ *
+ */
+
+public class ProfileDiff {
+
+   // company, role, location, startDate, endDate
+   private final List<String[]> workPuts = new ArrayList<String[]>();
+   // company, role, startDate
+   private final List<String[]> workRemoves = new ArrayList<String[]>();
+   // instituitionName, major, degree, startdate, enddate
+   private final List<String[]> eduPuts = new ArrayList<String[]>();
+   // major, degree
+   private final List<String[]> eduRemoves = new ArrayList<String[]>();
+
+   public ProfileDiff putWork (String company, String role, String location, String startDate, String endDate) {
+      workPuts.add(new String[]{company, role, location, startDate, endDate});
+      return this;
+   }//end putWork
+
+   public ProfileDiff removeWork (String company, String role, String startDate) {
+      workRemoves.add(new String[]{company, role, startDate});
+      return this;
+   }//end removeWork
+
+   public ProfileDiff putEducation (String institution, String major, String degree, String startDate, String endDate) {
+      eduPuts.add(new String[]{institution, major, degree, startDate, endDate});
+      return this;
+   }//end putEducation
+
+   public ProfileDiff removeEducation (String major, String degree) {
+      eduRemoves.add(new String[]{major, degree});
+      return this;
+   }//end removeEducation
+
+   public boolean isEmpty () {
+      return workPuts.isEmpty() && workRemoves.isEmpty() && eduPuts.isEmpty() && eduRemoves.isEmpty();
+   }//end isEmpty
+
+   private static String q (String v) {
+      return PostgresStore.q(v);
+   }//end q
+
+   /**
+    * Builds the statements of this diff for one user, in apply order. An
+    * upsert is an UPDATE on the primary key followed by an INSERT guarded
+    * by NOT EXISTS on the same key, so it works on servers without
+    * INSERT ... ON CONFLICT and exactly one of the two writes a row.
+    *
+    * @param userId the owner of the profile
+    * @param dims how the profile attributes are stored
+    * @return the statements to run in one transaction
+    */
+   public List<String> statements (String userId, Dimensions dims) throws SQLException {
+      String u = q(userId);
+      List<String> sql = new ArrayList<String>();
+      String work = dims.columns(Dimensions.WORK), edu = dims.columns(Dimensions.EDUCATION);
+      for (String[] k : workRemoves)
+         sql.add(String.format(
+            "DELETE FROM WORK_EXPR WHERE userId='%s' AND %s AND %s AND startDate='%s'",
+            u, dims.eq(Dimensions.COMPANY, k[0]), dims.eq(Dimensions.ROLE, k[1]), q(k[2])));
+      for (String[] k : eduRemoves)
+         sql.add(String.format(
+            "DELETE FROM EDUCATIONAL_DETAILS WHERE userId='%s' AND %s AND %s",
+            u, dims.eq(Dimensions.MAJOR, k[0]), dims.eq(Dimensions.DEGREE, k[1])));
+      for (String[] w : workPuts) {
+         String key = String.format("userId='%s' AND %s AND %s AND startDate='%s'",
+            u, dims.eq(Dimensions.COMPANY, w[0]), dims.eq(Dimensions.ROLE, w[1]), q(w[3]));
+         sql.add(String.format("UPDATE WORK_EXPR SET %s, endDate='%s' WHERE %s",
+            dims.eq(Dimensions.LOCATION, w[2]), q(w[4]), key));
+         sql.add(String.format(
+            "INSERT INTO WORK_EXPR (userId,%s,startDate,endDate) "
+            + "SELECT '%s',%s,%s,%s,'%s','%s' WHERE NOT EXISTS (SELECT 1 FROM WORK_EXPR WHERE %s)",
+            work, u, dims.literal(Dimensions.COMPANY, w[0]), dims.literal(Dimensions.ROLE, w[1]),
+            dims.literal(Dimensions.LOCATION, w[2]), q(w[3]), q(w[4]), key));
+      }
+      for (String[] e : eduPuts) {
+         String key = String.format("userId='%s' AND %s AND %s",
+            u, dims.eq(Dimensions.MAJOR, e[1]), dims.eq(Dimensions.DEGREE, e[2]));
+         sql.add(String.format("UPDATE EDUCATIONAL_DETAILS SET %s, startdate='%s', enddate='%s' WHERE %s",
+            dims.eq(Dimensions.INSTITUTION, e[0]), q(e[3]), q(e[4]), key));
+         sql.add(String.format(
+            "INSERT INTO EDUCATIONAL_DETAILS (userId,%s,startdate,enddate) "
+            + "SELECT '%s',%s,%s,%s,'%s','%s' WHERE NOT EXISTS (SELECT 1 FROM EDUCATIONAL_DETAILS WHERE %s)",
+            edu, u, dims.literal(Dimensions.INSTITUTION, e[0]), dims.literal(Dimensions.MAJOR, e[1]),
+            dims.literal(Dimensions.DEGREE, e[2]), q(e[3]), q(e[4]), key));
+      }
+      return sql;
+   }//end statements
+
+   private static boolean same (String a, String b) {
+      return String.valueOf(a).trim().equals(String.valueOf(b).trim());
+   }//end same
+
+   /**
+    * Applies this diff to in-memory row lists with the same key semantics
+    * as {@link #statements}; the caller holds the owner's lock.
+    *
+    * @param work rows of company, role, location, startDate, endDate
+    * @param education rows of instituitionName, major, degree, startdate, enddate
+    */
+   public void applyTo (List<String[]> work, List<String[]> education) {
+      for (String[] k : workRemoves)
+         work.removeIf(w -> same(w[0], k[0]) && same(w[1], k[1]) && same(w[3], k[2]));
+      for (String[] k : eduRemoves)
+         education.removeIf(e -> same(e[1], k[0]) && same(e[2], k[1]));
+      for (String[] p : workPuts) {
+         work.removeIf(w -> same(w[0], p[0]) && same(w[1], p[1]) && same(w[3], p[3]));
+         work.add(p.clone());
+      }
+      for (String[] p : eduPuts) {
+         education.removeIf(e -> same(e[1], p[1]) && same(e[2], p[2]));
+         education.add(p.clone());
+      }
+   }//end applyTo
+
+}//end ProfileDiff
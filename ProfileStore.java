@@ -0,0 +1,190 @@
+/*
+ * Storage backend interface
+ * =========================
+ *
+ * Repository operations behind the ProfNetwork menus, implemented by
+ * PostgresStore (the JDBC path) and MemoryStore (pure in-memory).
+ *
+ */
+
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * This interface defines the data operations on users, profiles,
+ * connections and messages. Rows are returned in the same shape as
+ * ProfNetwork.executeQueryAndReturnResult: a list of records, each a list
+ * of column values, with char(n) padding removed. The column order of
+ * every row-returning method is given in its comment.
+ *
+ * Connection statuses are "Request", "Accept" and "Reject". A message's
+ * deleteStatus is 0 (visible to both), 1 (deleted by the sender),
+ * 2 (deleted by the receiver) or 3 (deleted by both).
+ *
+ */
+
+public interface ProfileStore {
+
+   // ---- users ----
+
+   /**
+    * @return false if the user id is taken
+    */
+   boolean createUser (String userId, String password, String email, String name, String dateOfBirth) throws Exception;
+
+   boolean userExists (String userId) throws Exception;
+
+   boolean checkLogin (String userId, String password) throws Exception;
+
+   void changePassword (String userId, String password) throws Exception;
+
+   /**
+    * @return userId, email, name, dateOfBirth of users with this exact name
+    */
+   List<List<String>> findByName (String name) throws Exception;
+
+   /**
+    * @return userId, email, name, dateOfBirth of each existing user, by
+    *         trimmed id; unknown ids are left out
+    */
+   Map<String, List<String>> users (Collection<String> userIds) throws Exception;
+
+   // ---- profiles ----
+
+   void addWork (String userId, String company, String role, String location, String startDate, String endDate) throws Exception;
+
+   void addEducation (String userId, String institution, String major, String degree, String startDate, String endDate) throws Exception;
+
+   /**
+    * @return company, role, location, startDate, endDate
+    */
+   List<List<String>> work (String userId) throws Exception;
+
+   /**
+    * @return instituitionName, major, degree, startdate, enddate
+    */
+   List<List<String>> education (String userId) throws Exception;
+
+   /**
+    * @return {@link #work} of several users, by trimmed id; every
+    *         requested id is present
+    */
+   Map<String, List<List<String>>> work (Collection<String> userIds) throws Exception;
+
+   /**
+    * @return {@link #education} of several users, by trimmed id; every
+    *         requested id is present
+    */
+   Map<String, List<List<String>>> education (Collection<String> userIds) throws Exception;
+
+   /**
+    * @return {coworkers, classmates}: the overlap indexes over every work
+    *         and education row
+    */
+   OverlapIndex[] overlapIndexes () throws Exception;
+
+   /**
+    * Applies a batch of profile edits to one user atomically
+    */
+   void applyProfile (String userId, ProfileDiff diff) throws Exception;
+
+   // ---- connections ----
+
+   /**
+    * Records a connection request from userId to connectionId
+    */
+   void request (String userId, String connectionId) throws Exception;
+
+   /**
+    * Sets the status of the edge stored as (userId, connectionId)
+    */
+   void setStatus (String userId, String connectionId, String status) throws Exception;
+
+   /**
+    * @return user ids with an accepted connection in either direction
+    */
+   List<String> friends (String userId) throws Exception;
+
+   /**
+    * @return {@link #friends} of several users, by trimmed id; every
+    *         requested id is present
+    */
+   Map<String, List<String>> friends (Collection<String> userIds) throws Exception;
+
+   /**
+    * @return userId, connectionId, status of edges stored under userId
+    *         that are still in "Request" state
+    */
+   List<List<String>> pendingRequests (String userId) throws Exception;
+
+   /**
+    * @return {accepted connections, requests sent, requests received},
+    *         counting edges in both directions
+    */
+   int[] connectionCounts (String userId) throws Exception;
+
+   // ---- messages ----
+
+   /**
+    * @return the new msgId
+    */
+   int send (String senderId, String receiverId, String contents, String sendTime) throws Exception;
+
+   /**
+    * @return msgId, senderId, receiverId, contents, sendTime, deleteStatus,
+    *         status of sent messages the sender has not deleted
+    */
+   List<List<String>> sent (String userId) throws Exception;
+
+   /**
+    * @return same columns as {@link #sent}, for received messages the
+    *         receiver has not deleted
+    */
+   List<List<String>> received (String userId) throws Exception;
+
+   /**
+    * @return one page of {@link #sent}, newest first: at most n messages
+    *         with a msgId below before
+    */
+   List<List<String>> sent (String userId, int before, int n) throws Exception;
+
+   /**
+    * @return one page of {@link #received}, newest first: at most n
+    *         messages with a msgId below before
+    */
+   List<List<String>> received (String userId, int before, int n) throws Exception;
+
+   void setDeleteStatus (int msgId, int deleteStatus) throws Exception;
+
+   /**
+    * Deletes, for one user, every message still visible to the user that
+    * the selection picks: the sender's deletion sets bit 1 of
+    * deleteStatus, the receiver's bit 2
+    *
+    * @param condition the selection as a condition on MESSAGE, for the SQL
+    *        backend
+    * @param match the same selection as a test on message rows, for the
+    *        others; null if it cannot be expressed as one
+    * @return the number of messages deleted
+    */
+   int deleteMessages (String userId, String condition, Predicate<List<String>> match) throws Exception;
+
+   // ---- statistics ----
+
+   /**
+    * @param kind C for companies, I for institutions
+    * @return the users with a profile row at each named organization, by
+    *         name
+    */
+   Map<String, Integer> members (String kind, Collection<String> names) throws Exception;
+
+   /**
+    * @param kind C for companies, I for institutions
+    * @return {name, members} of the n largest organizations
+    */
+   List<String[]> largest (String kind, int n) throws Exception;
+
+}//end ProfileStore
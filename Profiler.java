@@ -0,0 +1,367 @@
+/*
+ * Operation profiling
+ * ===================
+ *
+ * Java Flight Recorder events for menu operations and JDBC calls, and the
+ * --profile startup mode that records them.
+ *
+ */
+
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This class attributes database work to the menu operation that caused
+ * it. main opens an {@link Operation} around every menu action; each
+ * JDBC helper of ProfNetwork wraps its statement in a {@link Call}, which
+ * adds its rows, one round trip and its time to the operation of the
+ * calling thread (ShardRouter hands the operation to its worker threads).
+ *
+ * Both are emitted as JFR events, "profnetwork.Operation" and
+ * "profnetwork.JdbcCall", whenever a recording is running, so an
+ * ordinary "jcmd <pid> JFR.start" also captures them. Without a recording
+ * JFR discards the events in commit and the remaining cost is a few
+ * counter updates per statement.
+ *
+ * Time the user spends at the prompts of an action is reported to
+ * {@link #prompted} by the console input and kept apart: the service
+ * time of an operation is its duration minus that prompt time.
+ *
+ * With --profile[=file] the client records to a JFR file from startup
+ * and prints a latency summary per operation on exit.
+ *
+ */
+
+public class Profiler {
+
+   static final String DEFAULT_FILE = "profnetwork.jfr";
+
+   @Name("profnetwork.Operation")
+   @Label("Menu Operation")
+   @Category({"ProfNetwork"})
+   @Description("One menu action and the database work it caused")
+   @StackTrace(false)
+   static final class OperationEvent extends Event {
+      @Label("Operation") String operation;
+      @Label("User") String user;
+      @Label("Rows") long rows;
+      @Label("Round Trips") long roundTrips;
+      @Label("Database Time") @Timespan(Timespan.NANOSECONDS) long dbTime;
+      @Label("Prompt Time") @Timespan(Timespan.NANOSECONDS) long promptTime;
+      @Label("Failed") boolean failed;
+   }//end OperationEvent
+
+   @Name("profnetwork.JdbcCall")
+   @Label("JDBC Call")
+   @Category({"ProfNetwork"})
+   @Description("One statement sent to the database")
+   @StackTrace(false)
+   static final class JdbcEvent extends Event {
+      @Label("Operation") String operation;
+      @Label("Kind") String kind;
+      @Label("SQL") String sql;
+      @Label("Rows") long rows;
+      @Label("Completed") boolean completed;
+   }//end JdbcEvent
+
+   /**
+    * One menu action of one user; closing it emits the event
+    */
+   public static final class Operation implements AutoCloseable {
+      final String name;
+      final String user;
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong roundTrips = new AtomicLong();
+      final AtomicLong dbNanos = new AtomicLong();
+      final AtomicLong promptNanos = new AtomicLong();
+      private final Operation previous;
+      private final OperationEvent event = new OperationEvent();
+      private final long start = System.nanoTime();
+      // set when one of its statements did not complete.
+      private volatile boolean failed;
+
+      Operation (String name, String user, Operation previous) {
+         this.name = name;
+         this.user = user;
+         this.previous = previous;
+         event.begin();
+      }//end Operation
+
+      public void close () {
+         current.set(previous);
+         long wall = System.nanoTime() - start;
+         event.end();
+         if (event.shouldCommit()) {
+            event.operation = name;
+            event.user = user;
+            event.rows = rows.get();
+            event.roundTrips = roundTrips.get();
+            event.dbTime = dbNanos.get();
+            event.promptTime = promptNanos.get();
+            event.failed = failed;
+            event.commit();
+         }
+         if (summary != null) summary.add(this, wall);
+      }//end close
+   }//end Operation
+
+   /**
+    * One JDBC statement; closing it charges the calling operation
+    */
+   public static final class Call implements AutoCloseable {
+      private final Operation op;
+      private final String kind;
+      private final String sql;
+      private final JdbcEvent event = new JdbcEvent();
+      private final long start = System.nanoTime();
+      // -1 until the statement completes.
+      private long rows = -1;
+
+      Call (Operation op, String kind, String sql) {
+         this.op = op;
+         this.kind = kind;
+         this.sql = sql;
+         event.begin();
+      }//end Call
+
+      /**
+       * Records the rows of a completed statement
+       *
+       * @return the row count, for chaining into a return statement
+       */
+      public int rows (int n) {
+         rows = n;
+         return n;
+      }//end rows
+
+      public long rows (long n) {
+         rows = n;
+         return n;
+      }//end rows
+
+      public void close () {
+         long nanos = System.nanoTime() - start;
+         if (op != null) {
+            op.rows.addAndGet(Math.max(0, rows));
+            op.roundTrips.incrementAndGet();
+            op.dbNanos.addAndGet(nanos);
+            if (rows < 0) op.failed = true;
+         }
+         event.end();
+         if (event.shouldCommit()) {
+            event.operation = op == null ? null : op.name;
+            event.kind = kind;
+            event.sql = sql.length() > 512 ? sql.substring(0, 512) : sql;
+            event.rows = Math.max(0, rows);
+            event.completed = rows >= 0;
+            event.commit();
+         }
+      }//end close
+   }//end Call
+
+   /**
+    * Restores the operation a worker thread had before joining another
+    */
+   public static final class Scope implements AutoCloseable {
+      private final Operation previous;
+
+      Scope (Operation previous) {
+         this.previous = previous;
+      }//end Scope
+
+      public void close () {
+         current.set(previous);
+      }//end close
+   }//end Scope
+
+   private static final ThreadLocal<Operation> current = new ThreadLocal<Operation>();
+
+   // set in --profile mode only.
+   private static volatile Summary summary = null;
+   private static Recording recording = null;
+   private static Path file = null;
+
+   /**
+    * Starts a menu operation on the calling thread
+    *
+    * @param name the operation, e.g. the handler method name
+    * @param user the logged in user, or null
+    */
+   public static Operation operation (String name, String user) {
+      Operation op = new Operation(name, user, current.get());
+      current.set(op);
+      return op;
+   }//end operation
+
+   /**
+    * @return the operation of the calling thread, or null
+    */
+   public static Operation current () {
+      return current.get();
+   }//end current
+
+   /**
+    * Charges the statements of the calling thread to another thread's
+    * operation until the returned scope is closed
+    */
+   public static Scope join (Operation op) {
+      Scope s = new Scope(current.get());
+      current.set(op);
+      return s;
+   }//end join
+
+   /**
+    * Charges time spent waiting for user input to the operation of the
+    * calling thread
+    */
+   public static void prompted (long nanos) {
+      Operation op = current.get();
+      if (op != null) op.promptNanos.addAndGet(nanos);
+   }//end prompted
+
+   /**
+    * @return the name of a menu choice, "menu" for choices not listed
+    */
+   public static String name (String[] names, int choice) {
+      return choice >= 0 && choice < names.length && names[choice] != null ? names[choice] : "menu";
+   }//end name
+
+   /**
+    * Starts timing one statement
+    *
+    * @param kind query, update, batch or stream
+    * @param sql the statement text
+    */
+   public static Call call (String kind, String sql) {
+      return new Call(current.get(), kind, sql);
+   }//end call
+
+   /**
+    * Removes a --profile[=file] flag from the command line and, if it was
+    * present, starts recording
+    *
+    * @return the remaining arguments
+    */
+   public static String[] start (String[] args) {
+      List<String> rest = new ArrayList<String>();
+      String target = null;
+      for (String a : args) {
+         if (a.equals("--profile")) target = DEFAULT_FILE;
+         else if (a.startsWith("--profile=")) target = a.substring("--profile=".length());
+         else rest.add(a);
+      }
+      if (target != null) {
+         try {
+            file = Paths.get(target);
+            recording = new Recording(Configuration.getConfiguration("profile"));
+            recording.enable(OperationEvent.class).withoutThreshold();
+            recording.enable(JdbcEvent.class).withoutThreshold();
+            recording.setDestination(file);
+            recording.setName("profnetwork");
+            // still written when Ctrl-C exits the client.
+            recording.setDumpOnExit(true);
+            recording.start();
+            summary = new Summary();
+            System.out.println("Profiling to " + file.toAbsolutePath());
+         } catch (Exception e) {
+            recording = null;
+            System.err.println("Profiling disabled: " + e.getMessage());
+         }//end try
+      }//end if
+      return rest.toArray(new String[0]);
+   }//end start
+
+   /**
+    * Keeps the per-operation summary without recording, for load drivers
+    */
+   public static void collect () {
+      if (summary == null) summary = new Summary();
+   }//end collect
+
+   /**
+    * @param seconds the elapsed time to compute throughput over, or 0
+    * @return the per-operation summary, or null when none is kept
+    */
+   public static String report (double seconds) {
+      Summary s = summary;
+      return s == null ? null : s.report(seconds);
+   }//end report
+
+   /**
+    * Stops the recording, if any, and returns the per-operation summary
+    *
+    * @return the summary, or null when not profiling
+    */
+   public static String stop () {
+      if (recording == null) return null;
+      String report = summary.report(0);
+      try {
+         recording.stop();
+         recording.close();
+         report += String.format("%nRecording written to %s", file.toAbsolutePath());
+      } catch (Exception e) {
+         report += String.format("%nRecording not written: %s", e.getMessage());
+      }//end try
+      summary = null;
+      return report;
+   }//end stop
+
+   /**
+    * Latencies and database work per operation, kept in --profile mode
+    * and by load drivers
+    */
+   static final class Summary {
+      // operation -> {service ms, db ms, round trips, rows} per execution
+      private final Map<String, List<double[]>> runs = new TreeMap<String, List<double[]>>();
+
+      synchronized void add (Operation op, long wallNanos) {
+         runs.computeIfAbsent(op.name, k -> new ArrayList<double[]>()).add(new double[]{
+            (wallNanos - op.promptNanos.get()) / 1e6, op.dbNanos.get() / 1e6, op.roundTrips.get(), op.rows.get()});
+      }//end add
+
+      private static double percentile (List<Double> sorted, double p) {
+         return sorted.get((int) Math.max(0, Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1)));
+      }//end percentile
+
+      synchronized String report (double seconds) {
+         StringBuilder sb = new StringBuilder("Operation profile (ms of service time, prompts excluded):");
+         sb.append(String.format("%n   %-20s %6s %8s %8s %8s %8s %8s %8s %8s",
+            "operation", "count", "ops/s", "p50", "p95", "p99", "max", "db p50", "trips/op"));
+         for (Map.Entry<String, List<double[]>> e : runs.entrySet()) {
+            List<Double> service = new ArrayList<Double>(), db = new ArrayList<Double>();
+            double trips = 0;
+            for (double[] r : e.getValue()) {
+               service.add(r[0]);
+               db.add(r[1]);
+               trips += r[2];
+            }
+            Collections.sort(service);
+            Collections.sort(db);
+            int n = service.size();
+            sb.append(String.format("%n   %-20s %6d %8s %8.1f %8.1f %8.1f %8.1f %8.1f %8.1f",
+               e.getKey(), n, seconds > 0 ? String.format("%.1f", n / seconds) : "-",
+               percentile(service, 0.5), percentile(service, 0.95), percentile(service, 0.99), service.get(n - 1),
+               percentile(db, 0.5), trips / n));
+         }
+         return sb.toString();
+      }//end report
+   }//end Summary
+
+}//end Profiler
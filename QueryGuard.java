@@ -0,0 +1,328 @@
+/*
+ * Query time budgets and admission control
+ * ========================================
+ *
+ * Bounds how long a statement may run and how many expensive statements
+ * may run at once, per operation class.
+ *
+ */
+
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class guards every statement ProfNetwork executes. The menu
+ * declares the operation class of a handler with {@link #as}; the
+ * statements the handler issues then run as one operation of that class:
+ *
+ *    - a bounded class admits an operation with one of its permits,
+ *      taken by the first statement and held until the scope closes or
+ *      the user is prompted; it waits at most queueMs for the permit and
+ *      is shed with SQLState 53000 when none frees up, so a burst of
+ *      graph or search work cannot starve cheap operations;
+ *    - every statement gets the class budget as its query timeout and a
+ *      watchdog cancels it on the server when the budget runs out.
+ *
+ * Statements an operation fans out to other threads (shard scatter,
+ * pooled queries) {@link #join} it and share its permit, so they never
+ * wait for one. Statements outside any scope are admitted one by one as
+ * NORMAL operations.
+ *
+ * The bundled 7.3 driver accepts setQueryTimeout but never enforces it,
+ * so the watchdog issues Statement.cancel itself. Each connection also
+ * sets the server-side statement_timeout to {@link #CEILING_MS} as a
+ * backstop for statements that bypass the guard.
+ *
+ * Ctrl-C cancels the statements in flight on the server; the handler
+ * that issued them fails with the cancel and the user is back at the
+ * menu. With nothing in flight it exits the client. The INT handler is
+ * installed through reflection, since sun.misc.Signal is not a standard
+ * API; where it is missing Ctrl-C exits at once, and any exit still
+ * cancels what is running first.
+ *
+ */
+
+public class QueryGuard {
+
+   // server-side statement_timeout every connection runs with.
+   static final int CEILING_MS = 60000;
+
+   /**
+    * An operation class: its latency budget and its concurrency limit
+    */
+   public static final class Op {
+      final String name;
+      final long budgetMs;
+      final long queueMs;
+      // null when the class is not concurrency limited.
+      final Semaphore permits;
+      final AtomicLong admitted = new AtomicLong();
+      final AtomicLong shed = new AtomicLong();
+      final AtomicLong timedOut = new AtomicLong();
+      final AtomicLong cancelled = new AtomicLong();
+
+      Op (String name, long budgetMs, int permits, long queueMs) {
+         this.name = name;
+         this.budgetMs = budgetMs;
+         this.queueMs = queueMs;
+         this.permits = permits > 0 ? new Semaphore(permits, true) : null;
+      }//end Op
+   }//end Op
+
+   // log in, create user, change password: primary key lookups.
+   public static final Op CHEAP = new Op("cheap", 2000, 0, 0);
+   // profiles, messages and everything not classified otherwise.
+   public static final Op NORMAL = new Op("normal", 5000, 16, 2000);
+   // name search: scans USR.
+   public static final Op SEARCH = new Op("search", 10000, 4, 1000);
+   // friend-of-friend traversals and discovery.
+   public static final Op GRAPH = new Op("graph", 15000, 2, 250);
+   // maintenance tools run from the command line: no budget, no limit.
+   public static final Op OFFLINE = new Op("offline", 0, 0, 0);
+
+   static final Op[] CLASSES = {CHEAP, NORMAL, SEARCH, GRAPH, OFFLINE};
+
+   // the operation of the calling thread, null outside any.
+   private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+   private static final Set<Ticket> inFlight = ConcurrentHashMap.newKeySet();
+   private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "query-watchdog");
+      t.setDaemon(true);
+      return t;
+   });
+
+   /**
+    * The permit of one operation, shared by its statements on every
+    * thread
+    */
+   static final class Hold {
+      final Op op;
+      private boolean held;
+
+      Hold (Op op) {
+         this.op = op;
+      }//end Hold
+
+      // takes the class permit, unless the operation holds it already.
+      synchronized void take () throws SQLException {
+         if (held || op.permits == null) return;
+         try {
+            held = op.permits.tryAcquire(op.queueMs, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+         if (!held) {
+            op.shed.incrementAndGet();
+            throw new SQLException("Server busy with other " + op.name + " queries, try again later", "53000");
+         }//end if
+      }//end take
+
+      synchronized void release () {
+         if (!held) return;
+         held = false;
+         op.permits.release();
+      }//end release
+   }//end Hold
+
+   /**
+    * The operation a thread runs in; closing it restores the previous one
+    */
+   public static final class Scope implements AutoCloseable {
+      private final Scope previous;
+      // null for no operation.
+      final Hold hold;
+      // whether this scope began the operation and so ends it.
+      private final boolean owner;
+
+      Scope (Scope previous, Hold hold, boolean owner) {
+         this.previous = previous;
+         this.hold = hold;
+         this.owner = owner;
+      }//end Scope
+
+      public void close () {
+         if (owner) hold.release();
+         current.set(previous);
+      }//end close
+   }//end Scope
+
+   /**
+    * Runs the statements of the calling thread as one operation of a
+    * class until the returned scope is closed. Inside an operation of the
+    * same class, the statements stay part of that operation.
+    */
+   public static Scope as (Op op) {
+      Scope outer = current.get();
+      Scope s = outer != null && outer.hold != null && outer.hold.op == op
+         ? new Scope(outer, outer.hold, false) : new Scope(outer, new Hold(op), true);
+      current.set(s);
+      return s;
+   }//end as
+
+   /**
+    * @return the operation of the calling thread, for {@link #join}
+    */
+   public static Scope current () {
+      return current.get();
+   }//end current
+
+   /**
+    * Runs the statements of the calling thread as part of another
+    * thread's operation until the returned scope is closed
+    *
+    * @param caller what {@link #current} returned on the other thread
+    */
+   public static Scope join (Scope caller) {
+      Scope s = new Scope(current.get(), caller == null ? null : caller.hold, false);
+      current.set(s);
+      return s;
+   }//end join
+
+   /**
+    * Lets the operation of the calling thread give back its permit while
+    * the user is prompted; its next statement takes one again
+    */
+   public static void pause () {
+      Scope s = current.get();
+      if (s != null && s.hold != null) s.hold.release();
+   }//end pause
+
+   /**
+    * One admitted statement; closing it disarms the watchdog and, for a
+    * statement outside any operation, releases its permit
+    */
+   public static final class Ticket implements AutoCloseable {
+      private final Op op;
+      private final Statement stmt;
+      // the permit of a statement outside any operation, else null.
+      private final Hold own;
+      private ScheduledFuture<?> timer;
+      private boolean closed;
+
+      Ticket (Op op, Statement stmt, Hold own) {
+         this.op = op;
+         this.stmt = stmt;
+         this.own = own;
+      }//end Ticket
+
+      // runs on the watchdog or the signal thread.
+      synchronized void cancel (AtomicLong reason) {
+         if (closed) return;
+         reason.incrementAndGet();
+         try {
+            stmt.cancel();
+         } catch (SQLException e) {
+            // the statement may have completed in the meantime.
+         }//end try
+      }//end cancel
+
+      public void close () {
+         synchronized (this) {
+            if (closed) return;
+            closed = true;
+         }
+         if (timer != null) timer.cancel(false);
+         inFlight.remove(this);
+         if (own != null) own.release();
+      }//end close
+   }//end Ticket
+
+   /**
+    * Admits a statement as part of the calling thread's operation and
+    * arms its time budget
+    *
+    * @param stmt the statement about to be executed
+    * @return the ticket to close once the statement is done
+    * @throws SQLException when the class is saturated (SQLState 53000)
+    */
+   public static Ticket admit (Statement stmt) throws SQLException {
+      Scope s = current.get();
+      Hold own = s == null || s.hold == null ? new Hold(NORMAL) : null;
+      Hold hold = own != null ? own : s.hold;
+      hold.take();
+      Op op = hold.op;
+      op.admitted.incrementAndGet();
+      Ticket t = new Ticket(op, stmt, own);
+      if (op.budgetMs > 0) {
+         stmt.setQueryTimeout((int) Math.max(1, op.budgetMs / 1000));
+         t.timer = watchdog.schedule(() -> t.cancel(op.timedOut), op.budgetMs, TimeUnit.MILLISECONDS);
+      }//end if
+      inFlight.add(t);
+      return t;
+   }//end admit
+
+   /**
+    * Cancels every statement in flight
+    *
+    * @return the number of statements cancelled
+    */
+   public static int cancelAll () {
+      int n = 0;
+      for (Ticket t : inFlight) {
+         t.cancel(t.op.cancelled);
+         ++n;
+      }
+      return n;
+   }//end cancelAll
+
+   // Ctrl-C: cancels what runs, or exits when nothing does.
+   static void interrupt () {
+      if (cancelAll() > 0)
+         System.err.println("\nQuery cancelled");
+      else
+         System.exit(130);
+   }//end interrupt
+
+   /**
+    * Makes Ctrl-C cancel the running statements, see {@link #interrupt},
+    * and any exit cancel them on the server first, so they do not run on
+    * after the client is gone
+    *
+    * @return whether Ctrl-C is handled; if not, it exits the client
+    */
+   public static boolean installInterruptHandler () {
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         if (cancelAll() > 0)
+            System.err.println("\nQuery cancelled");
+      }, "query-cancel"));
+      try {
+         Class<?> signal = Class.forName("sun.misc.Signal");
+         Class<?> handler = Class.forName("sun.misc.SignalHandler");
+         Object onInt = Proxy.newProxyInstance(handler.getClassLoader(), new Class<?>[]{handler}, (proxy, m, args) -> {
+            switch (m.getName()) {
+               case "handle": interrupt(); return null;
+               case "equals": return proxy == args[0];
+               case "hashCode": return System.identityHashCode(proxy);
+               default: return "query-cancel";
+            }
+         });
+         signal.getMethod("handle", signal, handler).invoke(null, signal.getConstructor(String.class).newInstance("INT"), onInt);
+         return true;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         // no such API, or INT is reserved by the JVM.
+         return false;
+      }//end try
+   }//end installInterruptHandler
+
+   /**
+    * @return admission and timeout counters of every operation class
+    */
+   public static String report () {
+      StringBuilder sb = new StringBuilder("Query guard:");
+      for (Op op : CLASSES)
+         sb.append(String.format("%n   %-7s budget %5d ms  admitted %d, shed %d, timed out %d, cancelled %d",
+            op.name, op.budgetMs, op.admitted.get(), op.shed.get(), op.timedOut.get(), op.cancelled.get()));
+      return sb.toString();
+   }//end report
+
+}//end QueryGuard
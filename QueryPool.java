@@ -0,0 +1,240 @@
+/*
+ * Asynchronous queries
+ * ====================
+ *
+ * Runs independent SELECTs of one operation at the same time on extra
+ * connections, so a handler waits for the slowest of them instead of
+ * their sum.
+ *
+ *    java QueryPool <dbname> <port> <user> [rounds]
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the worker threads and connections behind
+ * {@link ProfNetwork#executeQueryAsync}. There is one pool per database
+ * (per shard when sharded), shared by every ProfNetwork of the process
+ * that connects to it, so replayed sessions do not each open their own.
+ * Each of the CONNECTIONS worker threads opens one connection on first
+ * use and keeps it.
+ *
+ * A query is part of the caller's operation, on its admission permit,
+ * and is charged to the caller's profiled operation, as the shard
+ * scatter does. Its database
+ * time is added to the operation's while it overlaps the caller's own
+ * statements, so the database time of an operation can now exceed its
+ * service time.
+ *
+ * Pooled connections go to the primary, never to a replica: they cannot
+ * know what the calling session wrote, and the primary always has it.
+ * A query submitted from a worker thread runs inline on that thread, so
+ * nested submissions cannot exhaust the pool and deadlock.
+ *
+ */
+
+public class QueryPool {
+
+   // worker threads and connections per database.
+   static final int CONNECTIONS = 4;
+
+   private static final Map<String, QueryPool> pools = new ConcurrentHashMap<String, QueryPool>();
+
+   private final String key;
+   private final String dbname, port, user, passwd;
+   private final ExecutorService workers;
+   private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+   private final List<ProfNetwork> opened = new ArrayList<ProfNetwork>();
+   private final ThreadLocal<ProfNetwork> connection = new ThreadLocal<ProfNetwork>();
+   // ProfNetwork objects using the pool; the last one closes it.
+   private int users = 0;
+
+   final AtomicLong submitted = new AtomicLong();
+   final AtomicLong inline = new AtomicLong();
+   final AtomicInteger running = new AtomicInteger();
+   final AtomicInteger peak = new AtomicInteger();
+
+   private QueryPool (String key, String dbname, String port, String user, String passwd) {
+      this.key = key;
+      this.dbname = dbname;
+      this.port = port;
+      this.user = user;
+      this.passwd = passwd;
+      this.workers = Executors.newFixedThreadPool(CONNECTIONS, r -> {
+         Thread t = new Thread(r, "query-async");
+         t.setDaemon(true);
+         threads.add(t);
+         return t;
+      });
+   }//end QueryPool
+
+   /**
+    * @return the pool of a database, registering one more user of it
+    */
+   public static QueryPool acquire (String dbname, String port, String user, String passwd) {
+      String key = user + "@localhost:" + port + "/" + dbname;
+      synchronized (pools) {
+         QueryPool p = pools.computeIfAbsent(key, k -> new QueryPool(k, dbname, port, user, passwd));
+         p.users++;
+         return p;
+      }
+   }//end acquire
+
+   /**
+    * Drops one user of the pool and closes it after the last one
+    */
+   public void release () {
+      synchronized (pools) {
+         if (--users > 0) return;
+         pools.remove(key);
+      }
+      workers.shutdownNow();
+      synchronized (opened) {
+         for (ProfNetwork db : opened)
+            db.cleanup();
+         opened.clear();
+      }
+   }//end release
+
+   // the connection of the calling worker thread, opened on first use
+   // without any console output.
+   private ProfNetwork connection () throws SQLException {
+      ProfNetwork db = connection.get();
+      if (db == null) {
+         db = new ProfNetwork (dbname, port, user, passwd, false);
+         connection.set(db);
+         synchronized (opened) {
+            opened.add(db);
+         }
+      }//end if
+      return db;
+   }//end connection
+
+   /**
+    * Starts a query on a pooled connection
+    *
+    * @param query the input query string
+    * @return the rows, or the SQLException the query failed with
+    */
+   public CompletableFuture<List<List<String>>> submit (String query) {
+      submitted.incrementAndGet();
+      if (threads.contains(Thread.currentThread())) {
+         inline.incrementAndGet();
+         CompletableFuture<List<List<String>>> f = new CompletableFuture<List<List<String>>>();
+         try {
+            f.complete(connection().executeQueryAndReturnResult(query));
+         } catch (SQLException e) {
+            f.completeExceptionally(e);
+         }//end try
+         return f;
+      }//end if
+      QueryGuard.Scope op = QueryGuard.current();
+      Profiler.Operation caller = Profiler.current();
+      return CompletableFuture.supplyAsync(() -> {
+         peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+         try (QueryGuard.Scope scope = QueryGuard.join(op); Profiler.Scope charged = Profiler.join(caller)) {
+            return connection().executeQueryAndReturnResult(query);
+         } catch (SQLException e) {
+            throw new CompletionException(e);
+         } finally {
+            running.decrementAndGet();
+         }//end try
+      }, workers);
+   }//end submit
+
+   /**
+    * Waits for a query started with {@link #submit} or derived from one
+    *
+    * @return its result
+    * @throws java.sql.SQLException the query's own exception
+    */
+   public static <T> T join (CompletableFuture<T> f) throws SQLException {
+      try {
+         return f.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while waiting for a query");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         while (cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+         if (cause instanceof Error) throw (Error) cause;
+         throw new SQLException(String.valueOf(cause));
+      }//end try
+   }//end join
+
+   /**
+    * @return queries run and how many overlapped
+    */
+   public String report () {
+      synchronized (opened) {
+         return String.format("Async queries on %s: %d submitted, %d run inline, %d connections, at most %d at once",
+            key, submitted.get(), inline.get(), opened.size(), peak.get());
+      }
+   }//end report
+
+   /**
+    * Compares the inbox view run as two sequential queries with the same
+    * two queries run concurrently, for the users with the most messages
+    *
+    * @param args <dbname> <port> <user> [rounds]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println ("Usage: java " + QueryPool.class.getName () + " <dbname> <port> <user> [rounds]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+      ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+      List<String> users = new ArrayList<String>();
+      // sharded, the busiest receivers of every shard.
+      for (List<String> r : esql.executeQueryAndReturnResultAll(
+            "SELECT receiverId FROM MESSAGE GROUP BY receiverId ORDER BY count(*) DESC LIMIT 50"))
+         users.add(r.get(0).trim());
+      String sent = "SELECT * FROM MESSAGE WHERE senderId='%s' AND (deleteStatus=0 OR deleteStatus=2)";
+      String received = "SELECT * FROM MESSAGE WHERE receiverId='%s' AND (deleteStatus=0 OR deleteStatus=1)";
+
+      double[] serial = new double[rounds], parallel = new double[rounds];
+      for (int warm = 0; warm < 2; ++warm) {
+         for (int i = 0; i < rounds; ++i) {
+            String u = users.get(i % users.size()), qu = PostgresStore.q(u);
+            ProfNetwork db = esql.shard(u);
+            long t0 = System.nanoTime();
+            db.executeQueryAndReturnResult(String.format(sent, qu));
+            db.executeQueryAndReturnResult(String.format(received, qu));
+            serial[i] = (System.nanoTime() - t0) / 1e6;
+            t0 = System.nanoTime();
+            CompletableFuture<List<List<String>>> a = db.executeQueryAsync(String.format(sent, qu));
+            CompletableFuture<List<List<String>>> b = db.executeQueryAsync(String.format(received, qu));
+            join(a);
+            join(b);
+            parallel[i] = (System.nanoTime() - t0) / 1e6;
+         }
+      }
+      java.util.Arrays.sort(serial);
+      java.util.Arrays.sort(parallel);
+      System.out.printf("inbox view, %d rounds over %d users (ms)%n", rounds, users.size());
+      System.out.printf("   %-12s %8s %8s%n", "", "p50", "p99");
+      System.out.printf("   %-12s %8.2f %8.2f%n", "sequential", serial[rounds / 2], serial[rounds * 99 / 100]);
+      System.out.printf("   %-12s %8.2f %8.2f%n", "concurrent", parallel[rounds / 2], parallel[rounds * 99 / 100]);
+      esql.cleanup();
+   }//end main
+
+}//end QueryPool
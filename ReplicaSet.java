@@ -0,0 +1,281 @@
+/*
+ * Read replicas
+ * =============
+ *
+ * Sends reads to hot-standby copies of a database and writes to the
+ * primary, without losing read-your-writes.
+ *
+ *    java ProfNetwork <dbname> <primary>+<replica>[+<replica>...] <user>
+ *    java ReplicaSet <dbname> <primary>+<replica>... <user> [seconds] [threads]
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the replica connections of one primary (one shard
+ * when sharded). ProfNetwork asks {@link #reader} where to run each
+ * SELECT and reports each successful write with {@link #written}.
+ *
+ * Read-your-writes: after a write, the next read fetches the primary's
+ * current WAL position once, and only replicas that have replayed up to
+ * it are eligible; a replica's replay position is re-checked at most
+ * every REFRESH_MS. Until one catches up, reads stay on the primary. A
+ * client session owns its ProfNetwork, so the guarantee holds for the
+ * session that wrote. Servers without the WAL position functions fall
+ * back to reading from the primary for PIN_MS after each write.
+ *
+ * A read that fails on a replica (standby conflict, replica down) is
+ * retried once on the primary. Statements that must see the primary,
+ * such as read-then-insert sequences, run inside {@link #onPrimary}.
+ *
+ */
+
+public class ReplicaSet {
+
+   // minimum gap between two replay-position checks of one replica.
+   static final long REFRESH_MS = 20;
+   // primary-only period after a write when positions are unavailable.
+   static final long PIN_MS = 1000;
+   // how long a failed replica is skipped.
+   static final long DOWN_MS = 5000;
+
+   private static final ThreadLocal<int[]> primaryOnly = ThreadLocal.withInitial(() -> new int[1]);
+
+   private final ProfNetwork primary;
+   private final ProfNetwork[] replicas;
+   private final long[] replayed;
+   private final long[] checkedAt;
+   private final long[] downUntil;
+   private final AtomicInteger next = new AtomicInteger();
+   // {current position on the primary, replay position on a standby}, or
+   // null when the server has neither.
+   private final String[] positions;
+
+   private volatile boolean dirty = false;
+   private volatile long token = 0;
+   private volatile long pinnedUntil = 0;
+
+   final AtomicLong replicaReads = new AtomicLong();
+   final AtomicLong primaryReads = new AtomicLong();
+   final AtomicLong fallbacks = new AtomicLong();
+   final AtomicLong positionChecks = new AtomicLong();
+
+   /**
+    * Connects to every replica of a primary
+    *
+    * @param primary the primary's connection wrapper
+    * @param ports replica ports
+    */
+   public ReplicaSet (ProfNetwork primary, String dbname, String[] ports, String user, String passwd) throws SQLException {
+      this.primary = primary;
+      this.replicas = new ProfNetwork[ports.length];
+      for (int i = 0; i < ports.length; ++i)
+         this.replicas[i] = new ProfNetwork (dbname, ports[i].trim(), user, passwd);
+      this.replayed = new long[ports.length];
+      this.checkedAt = new long[ports.length];
+      this.downUntil = new long[ports.length];
+      String[] found = null;
+      for (String[] f : new String[][]{{"pg_current_wal_lsn", "pg_last_wal_replay_lsn"},
+                                       {"pg_current_xlog_location", "pg_last_xlog_replay_location"}}) {
+         try {
+            replicas[0].executeQueryAndReturnResult("SELECT " + f[1] + "()");
+            found = f;
+            break;
+         } catch (SQLException e) {
+            // older server; try the next spelling.
+         }//end try
+      }
+      this.positions = found;
+   }//end ReplicaSet
+
+   /**
+    * Ends a primary-only section when closed
+    */
+   public static final class Scope implements AutoCloseable {
+      public void close () {
+         primaryOnly.get()[0]--;
+      }//end close
+   }//end Scope
+
+   /**
+    * Makes the reads of the calling thread use the primary until the
+    * returned scope is closed
+    */
+   public static Scope onPrimary () {
+      primaryOnly.get()[0]++;
+      return new Scope();
+   }//end onPrimary
+
+   // "16/B374D848" -> comparable long.
+   static long position (String lsn) {
+      if (lsn == null) return 0;
+      String[] p = lsn.trim().split("/");
+      return (Long.parseLong(p[0], 16) << 32) | Long.parseLong(p[1], 16);
+   }//end position
+
+   private long query (ProfNetwork db, String function) throws SQLException {
+      positionChecks.incrementAndGet();
+      try (Scope p = onPrimary()) {
+         return position(db.executeQueryAndReturnResult("SELECT " + function + "()").get(0).get(0));
+      }//end try
+   }//end query
+
+   /**
+    * Records a committed write on the primary
+    */
+   public void written () {
+      dirty = true;
+      pinnedUntil = System.currentTimeMillis() + PIN_MS;
+   }//end written
+
+   /**
+    * @return the replica to run a read on, or null for the primary
+    */
+   public ProfNetwork reader () {
+      if (primaryOnly.get()[0] > 0) return null;
+      long now = System.currentTimeMillis();
+      if (positions == null && now < pinnedUntil) {
+         primaryReads.incrementAndGet();
+         return null;
+      }//end if
+      try {
+         if (positions != null && dirty) {
+            dirty = false;
+            token = Math.max(token, query(primary, positions[0]));
+         }//end if
+         int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+         for (int k = 0; k < replicas.length; ++k) {
+            int i = (start + k) % replicas.length;
+            if (now < downUntil[i]) continue;
+            if (positions != null && replayed[i] < token) {
+               if (now - checkedAt[i] < REFRESH_MS) continue;
+               checkedAt[i] = now;
+               try {
+                  replayed[i] = query(replicas[i], positions[1]);
+               } catch (SQLException e) {
+                  downUntil[i] = now + DOWN_MS;
+                  continue;
+               }//end try
+               if (replayed[i] < token) continue;
+            }//end if
+            replicaReads.incrementAndGet();
+            return replicas[i];
+         }
+      } catch (SQLException e) {
+         // the primary position is unknown: stay on the primary.
+         dirty = true;
+      }//end try
+      primaryReads.incrementAndGet();
+      return null;
+   }//end reader
+
+   /**
+    * Called when a read failed on a replica
+    *
+    * @return true when the read should be retried on the primary
+    */
+   public boolean fallback (ProfNetwork replica, SQLException e) {
+      String state = e.getSQLState();
+      // shed by admission control, or a bad statement: the primary
+      // would answer the same.
+      if (state != null && (state.equals("53000") || state.startsWith("42") || state.startsWith("22")))
+         return false;
+      // a recovery conflict only cancels this statement; anything else
+      // may be a lost replica, so leave it alone for a while.
+      if (state == null || !state.equals("40001"))
+         for (int i = 0; i < replicas.length; ++i)
+            if (replicas[i] == replica) downUntil[i] = System.currentTimeMillis() + DOWN_MS;
+      fallbacks.incrementAndGet();
+      return true;
+   }//end fallback
+
+   /**
+    * Closes the replica connections
+    */
+   public void cleanup () {
+      for (ProfNetwork r : replicas)
+         r.cleanup();
+   }//end cleanup
+
+   /**
+    * @return where reads went
+    */
+   public String report () {
+      return String.format("Replicas: %d, %d reads on replicas, %d on the primary, %d retried on the primary, "
+         + "%d position checks%s", replicas.length, replicaReads.get(), primaryReads.get(), fallbacks.get(),
+         positionChecks.get(), positions == null ? " (no WAL positions, pinned " + PIN_MS + " ms after writes)" : "");
+   }//end report
+
+   /**
+    * Measures throughput at several read:write ratios, once with reads
+    * routed to the replicas and once with every statement on the
+    * primary. Each thread has its own session; writes touch only the
+    * email column, rewritten with its own value.
+    *
+    * @param args <dbname> <primary>+<replica>... <user> [seconds] [threads]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3 || args[1].indexOf('+') < 0) {
+         System.err.println ("Usage: java " + ReplicaSet.class.getName ()
+            + " <dbname> <primary>+<replica>... <user> [seconds per run] [threads]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+      int threads = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+      ProfNetwork[] sessions = new ProfNetwork[threads];
+      for (int t = 0; t < threads; ++t)
+         sessions[t] = new ProfNetwork (args[0], args[1], args[2], "");
+      List<String> users = new ArrayList<String>();
+      for (List<String> r : sessions[0].executeQueryAndReturnResult("SELECT userId FROM USR LIMIT 2000"))
+         users.add(PostgresStore.q(r.get(0).trim()));
+
+      System.out.printf("%d threads, %d s per run%n", threads, seconds);
+      System.out.printf("   %-8s %12s %12s %8s%n", "read%", "routed op/s", "primary op/s", "speedup");
+      for (int readPct : new int[]{100, 95, 80, 50}) {
+         double routed = run(sessions, users, readPct, seconds, false);
+         double single = run(sessions, users, readPct, seconds, true);
+         System.out.printf("   %-8d %12.0f %12.0f %7.2fx%n", readPct, routed, single, routed / single);
+      }
+      for (ProfNetwork s : sessions)
+         s.cleanup();
+   }//end main
+
+   private static double run (ProfNetwork[] sessions, List<String> users, int readPct, int seconds, boolean primaryOnly)
+         throws InterruptedException {
+      AtomicLong ops = new AtomicLong();
+      long end = System.nanoTime() + seconds * 1000000000L;
+      Thread[] workers = new Thread[sessions.length];
+      for (int t = 0; t < sessions.length; ++t) {
+         ProfNetwork esql = sessions[t];
+         SplittableRandom rnd = new SplittableRandom(t);
+         workers[t] = new Thread(() -> {
+            try (Scope p = primaryOnly ? onPrimary() : null) {
+               while (System.nanoTime() < end) {
+                  String u = users.get(rnd.nextInt(users.size()));
+                  if (rnd.nextInt(100) < readPct)
+                     esql.executeQueryAndReturnResult(String.format(
+                        "SELECT msgId, senderId, contents FROM MESSAGE WHERE receiverId = '%s' ORDER BY sendTime DESC LIMIT 20", u));
+                  else
+                     esql.executeUpdate(String.format("UPDATE USR SET email = email WHERE userId = '%s'", u));
+                  ops.incrementAndGet();
+               }
+            } catch (Exception e) {
+               System.err.println("worker stopped: " + e.getMessage());
+            }//end try
+         });
+         workers[t].start();
+      }
+      for (Thread w : workers)
+         w.join();
+      return ops.get() / (double) seconds;
+   }//end run
+
+}//end ReplicaSet
@@ -0,0 +1,175 @@
+/*
+ * Degrees of separation
+ * =====================
+ *
+ * Hop distance over accepted connections from one user to many others,
+ * used to annotate search results.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs one breadth-first search per searcher and answers the
+ * distance of every target from it, up to 3 hops. A search over all
+ * targets at once takes at most three batched neighbor loads:
+ *
+ *    1. the searcher's neighbors A: targets in A are 1st;
+ *    2. the neighbors B(t) of the targets still open: B(t) meeting A
+ *       makes t 2nd;
+ *    3. the neighbors of every member of A, N(A): B(t) meeting N(A)
+ *       makes t 3rd, and a target meeting none is out of network.
+ *
+ * Steps 1 and 3 belong to the searcher and are kept for the next page of
+ * results; only step 2 is paid per page. When A has more than
+ * MAX_EXPAND members, step 3 expands the open targets' neighbors instead,
+ * the smaller side; when both sides are larger the 3rd degree is not
+ * decided and the target is reported as such.
+ *
+ * Loads go through {@link ProfNetwork#neighbors(Collection, BatchLoader)},
+ * so hubs come from the hub cache and the rest costs one statement per
+ * shard and 1000 ids.
+ *
+ */
+
+public class Separation {
+
+   // most users whose neighbors one step may load.
+   static final int MAX_EXPAND = 5000;
+
+   public static final int UNKNOWN = -1;
+   public static final int OUT = 4;
+
+   private static final AtomicLong pages = new AtomicLong();
+   private static final AtomicLong targets = new AtomicLong();
+   private static final AtomicLong statements = new AtomicLong();
+   private static final AtomicLong nanos = new AtomicLong();
+
+   private final ProfNetwork esql;
+   private final String from;
+   private final BatchLoader loader;
+   private HubCache.Neighbors first = null;
+   // N(A), loaded once the first target needs it.
+   private HubCache.Neighbors third = null;
+
+   /**
+    * @param esql the database, sharded or not
+    * @param from the searcher
+    */
+   public Separation (ProfNetwork esql, String from) {
+      this.esql = esql;
+      this.from = from.trim();
+      this.loader = new BatchLoader(esql, "separation");
+   }//end Separation
+
+   /**
+    * @return a distance as shown next to a result
+    */
+   public static String label (int d) {
+      switch (d) {
+         case 0: return "you";
+         case 1: return "1st";
+         case 2: return "2nd";
+         case 3: return "3rd";
+         case OUT: return "out of network";
+         default: return "beyond 2nd";
+      }//end switch
+   }//end label
+
+   /**
+    * Decides the distance of one page of targets
+    *
+    * @return 0 to 3, OUT, or UNKNOWN, by trimmed user id
+    */
+   public Map<String, Integer> distances (Collection<String> userIds) throws Exception {
+      long t0 = System.nanoTime(), s0 = loader.statements();
+      Map<String, Integer> d = new LinkedHashMap<String, Integer>();
+      if (first == null)
+         first = esql.neighbors(java.util.Collections.singletonList(from), loader).get(from);
+      List<String> open = new ArrayList<String>();
+      for (String u : userIds) {
+         String id = u.trim();
+         if (d.containsKey(id)) continue;
+         if (id.equals(from)) d.put(id, 0);
+         else if (first.contains(esql.neighborId(id))) d.put(id, 1);
+         else open.add(id);
+      }
+      if (!open.isEmpty()) {
+         Map<String, HubCache.Neighbors> second = esql.neighbors(open, loader);
+         List<String> rest = new ArrayList<String>();
+         for (String id : open) {
+            if (second.get(id).intersects(first)) d.put(id, 2);
+            else rest.add(id);
+         }
+         if (!rest.isEmpty()) third(rest, second, d);
+      }//end if
+      Map<String, Integer> out = new LinkedHashMap<String, Integer>();
+      for (String u : userIds)
+         out.put(u.trim(), d.get(u.trim()));
+      pages.incrementAndGet();
+      targets.addAndGet(out.size());
+      statements.addAndGet(loader.statements() - s0);
+      nanos.addAndGet(System.nanoTime() - t0);
+      return out;
+   }//end distances
+
+   // step 3 for the targets not within 2 hops.
+   private void third (List<String> rest, Map<String, HubCache.Neighbors> second, Map<String, Integer> d)
+         throws Exception {
+      if (third == null && first.size() <= MAX_EXPAND) {
+         List<String> members = names(first);
+         third = esql.hubCache().union(esql.neighbors(members, loader).values());
+      }//end if
+      if (third != null) {
+         for (String id : rest)
+            d.put(id, second.get(id).intersects(third) ? 3 : OUT);
+         return;
+      }//end if
+      // A is too large to expand: look one hop further from the targets.
+      List<HubCache.Neighbors> sets = new ArrayList<HubCache.Neighbors>();
+      for (String id : rest) sets.add(second.get(id));
+      HubCache.Neighbors around = esql.hubCache().union(sets);
+      if (around.size() > MAX_EXPAND) {
+         for (String id : rest) d.put(id, UNKNOWN);
+         return;
+      }//end if
+      // members of some B(t) that have a neighbor in A.
+      Map<Integer, Boolean> bridge = new HashMap<Integer, Boolean>();
+      for (Map.Entry<String, HubCache.Neighbors> e : esql.neighbors(names(around), loader).entrySet())
+         bridge.put(esql.neighborId(e.getKey()), e.getValue().intersects(first));
+      for (String id : rest) {
+         int found = OUT;
+         for (int y : second.get(id).toArray())
+            if (Boolean.TRUE.equals(bridge.get(y))) {
+               found = 3;
+               break;
+            }
+         d.put(id, found);
+      }
+   }//end third
+
+   private List<String> names (HubCache.Neighbors set) {
+      List<String> out = new ArrayList<String>(set.size());
+      for (int id : set.toArray())
+         out.add(esql.hubCache().userId(id));
+      return out;
+   }//end names
+
+   /**
+    * @return the cost of the annotated result pages so far
+    */
+   public static String report () {
+      long p = pages.get();
+      if (p == 0) return "Degrees of separation: no result pages";
+      return String.format("Degrees of separation: %d result pages, %d results, %.2f ms and %.1f statements per page",
+         p, targets.get(), nanos.get() / 1e6 / p, statements.get() / (double) p);
+   }//end report
+
+}//end Separation
@@ -0,0 +1,258 @@
+/*
+ * Shard router
+ * ============
+ *
+ * Hash-partitions users over several local PostgreSQL instances, each
+ * started with startPostgreSQL.sh on its own port and initialized with
+ * create_shards.sh.
+ *
+ *    java ShardRouter split <csvdir> <shards> <outdir>
+ *    java ShardRouter bench <dbname> <port,port,...> <user> [threads] [seconds]
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class routes work to the shard owning a user. USR, WORK_EXPR and
+ * EDUCATIONAL_DETAILS rows live only on the owner's shard. MESSAGE and
+ * CONNECTION_USR rows connect two users, so they are stored on the shards
+ * of both endpoints; each user's inbox and friend list is then a
+ * single-shard query. Lookups without a user key (e.g. Search by name)
+ * are scattered to every shard in parallel and gathered.
+ *
+ */
+
+public class ShardRouter {
+
+   private final ProfNetwork[] shards;
+   private final ExecutorService pool;
+
+   /**
+    * Connects to every shard
+    *
+    * @param dbname database name, identical on every shard
+    * @param ports one port per shard, in shard order
+    * @param user database user name
+    * @param passwd database password
+    */
+   public ShardRouter (String dbname, String[] ports, String user, String passwd) throws SQLException {
+      this.shards = new ProfNetwork[ports.length];
+      for (int i = 0; i < ports.length; ++i)
+         this.shards[i] = new ProfNetwork (dbname, ports[i].trim(), user, passwd);
+      this.pool = Executors.newFixedThreadPool(ports.length, r -> {
+         Thread t = new Thread(r, "shard-scatter");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * Returns the shard index of a user id. Uses String.hashCode, which
+    * is fixed by the language spec, so the split tool and every client
+    * agree on placement.
+    */
+   public static int shardOf (String userId, int n) {
+      int h = userId.trim().hashCode();
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      return Math.floorMod(h, n);
+   }//end shardOf
+
+   /**
+    * @return the connection wrapper owning a user
+    */
+   public ProfNetwork shard (String userId) {
+      return shards[shardOf(userId, shards.length)];
+   }//end shard
+
+   /**
+    * @return all shards in shard order
+    */
+   public ProfNetwork[] shards () {
+      return shards;
+   }//end shards
+
+   /**
+    * Runs a query on every shard in parallel and concatenates the rows
+    */
+   public List<List<String>> scatter (String query) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      // the per-shard statements are part of the caller's operation, on
+      // its permit, and are charged to the caller's profiled operation.
+      QueryGuard.Scope op = QueryGuard.current();
+      Profiler.Operation caller = Profiler.current();
+      for (ProfNetwork s : shards)
+         parts.add(pool.submit(() -> {
+            try (QueryGuard.Scope scope = QueryGuard.join(op); Profiler.Scope charged = Profiler.join(caller)) {
+               return s.executeQueryAndReturnResult(query);
+            }
+         }));
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> f : parts) {
+         try {
+            rows.addAll(f.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a shard");
+         } catch (ExecutionException e) {
+            // keeps the shard's SQLState, e.g. 53000 when it was shed.
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            SQLException failed = new SQLException("scatter query failed: " + cause);
+            failed.initCause(cause);
+            throw failed;
+         }//end try
+      }
+      return rows;
+   }//end scatter
+
+   /**
+    * Runs an update once on each distinct shard owning one of the users,
+    * e.g. both copies of a connection edge
+    */
+   public void updateOn (String sql, String... userIds) throws SQLException {
+      boolean[] done = new boolean[shards.length];
+      for (String id : userIds) {
+         int s = shardOf(id, shards.length);
+         if (done[s]) continue;
+         done[s] = true;
+         shards[s].executeUpdate(sql);
+      }
+   }//end updateOn
+
+   /**
+    * Closes every shard connection
+    */
+   public void cleanup () {
+      pool.shutdownNow();
+      for (ProfNetwork s : shards)
+         s.cleanup();
+   }//end cleanup
+
+   /**
+    * Splits the bundled CSV files into one directory per shard
+    */
+   static void split (File in, int n, File out) throws Exception {
+      // {file, first key column, second key column or -1}
+      Object[][] tables = {
+         {"USR.csv", 0, -1}, {"Work_Ex.csv", 0, -1}, {"Edu_Det.csv", 0, -1},
+         {"Connection.csv", 0, 1}, {"Message.csv", 1, 2}};
+      for (Object[] t : tables) {
+         File src = new File(in, (String) t[0]);
+         if (!src.exists()) continue;
+         int k1 = (Integer) t[1], k2 = (Integer) t[2];
+         BufferedWriter[] w = new BufferedWriter[n];
+         try (BufferedReader br = new BufferedReader(new FileReader(src))) {
+            String header = br.readLine();
+            for (int i = 0; i < n; ++i) {
+               File dir = new File(out, "shard" + i);
+               dir.mkdirs();
+               w[i] = new BufferedWriter(new FileWriter(new File(dir, (String) t[0])), 1 << 16);
+               w[i].write(header);
+               w[i].newLine();
+            }
+            String line;
+            while ((line = br.readLine()) != null) {
+               String[] f = line.split(",", -1);
+               int a = shardOf(f[k1], n);
+               w[a].write(line);
+               w[a].newLine();
+               if (k2 >= 0) {
+                  int b = shardOf(f[k2], n);
+                  if (b != a) {
+                     w[b].write(line);
+                     w[b].newLine();
+                  }
+               }
+            }
+         } finally {
+            for (BufferedWriter x : w) if (x != null) x.close();
+         }
+      }
+   }//end split
+
+   /**
+    * Measures point-operation throughput as shards are added. Data stays
+    * placed for all N shards; round n only draws users owned by the first
+    * n shards, so the same load is spread over 1..N servers. Every thread
+    * owns its own connections; the mix is 80% login-style primary key
+    * lookups and 20% message inserts between random users.
+    */
+   static void bench (String dbname, String[] ports, String user, int threads, int seconds) throws Exception {
+      ProfNetwork probe = new ProfNetwork (dbname, ports[0], user, "");
+      List<String> ids = new ArrayList<String>();
+      for (int i = 0; i < ports.length; ++i) {
+         ProfNetwork s = i == 0 ? probe : new ProfNetwork (dbname, ports[i], user, "");
+         for (List<String> r : s.executeQueryAndReturnResult("SELECT userId FROM USR LIMIT 2000"))
+            ids.add(r.get(0).trim());
+         s.cleanup();
+      }
+      for (int n = 1; n <= ports.length; ++n) {
+         List<String> keys = new ArrayList<String>();
+         for (String id : ids)
+            if (shardOf(id, ports.length) < n) keys.add(id);
+         if (keys.isEmpty()) continue;
+         AtomicLong ops = new AtomicLong();
+         long deadline = System.currentTimeMillis() + seconds * 1000L;
+         ExecutorService ex = Executors.newFixedThreadPool(threads);
+         List<Future<?>> fs = new ArrayList<Future<?>>();
+         for (int t = 0; t < threads; ++t) {
+            final int seed = t;
+            fs.add(ex.submit(() -> {
+               ProfNetwork esql = new ProfNetwork (dbname, String.join(",", ports), user, "");
+               Random r = new Random(seed);
+               while (System.currentTimeMillis() < deadline) {
+                  String a = keys.get(r.nextInt(keys.size()));
+                  if (r.nextInt(5) == 0) {
+                     String b = keys.get(r.nextInt(keys.size()));
+                     esql.shard(a).executeUpdate(String.format(
+                        "INSERT INTO MESSAGE (senderId,receiverId,contents,sendTime,deleteStatus,status) VALUES ('%s','%s','bench',now(),0,'sent')", a, b));
+                  } else {
+                     esql.shard(a).executeQuery(String.format("SELECT 1 FROM USR WHERE userId = '%s'", a));
+                  }
+                  ops.incrementAndGet();
+               }
+               esql.cleanup();
+               return null;
+            }));
+         }
+         for (Future<?> f : fs) f.get();
+         ex.shutdown();
+         System.out.printf("%d shard(s), %d threads: %.0f ops/s%n", n, threads, ops.get() / (double) seconds);
+      }
+   }//end bench
+
+   /**
+    * The main execution method
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length >= 4 && args[0].equals("split")) {
+         split(new File(args[1]), Integer.parseInt(args[2]), new File(args[3]));
+      } else if (args.length >= 4 && args[0].equals("bench")) {
+         Class.forName ("org.postgresql.Driver");
+         bench(args[1], args[2].split(","), args[3],
+            args.length > 4 ? Integer.parseInt(args[4]) : 16,
+            args.length > 5 ? Integer.parseInt(args[5]) : 10);
+      } else {
+         System.err.println ("Usage: java " + ShardRouter.class.getName () + " split <csvdir> <shards> <outdir>");
+         System.err.println ("       java " + ShardRouter.class.getName () + " bench <dbname> <port,port,...> <user> [threads] [seconds]");
+      }//end if
+   }//end main
+
+}//end ShardRouter
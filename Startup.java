@@ -0,0 +1,376 @@
+/*
+ * Client startup
+ * ==============
+ *
+ * Opens everything a client session needs before the first menu is
+ * shown, either one step after another or, with --fast-start, with the
+ * independent steps overlapped, and reports the time of every step.
+ * With --memory there is no database: the session runs on a MemoryStore.
+ *
+ *    java Startup [--fast-start] <dbname> <port> <user>
+ *    java Startup --memory[=snapshot]
+ *
+ */
+
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the startup of ProfNetwork in phases. The plain startup
+ * runs them in their historical order on the main thread. The fast one
+ * runs them on STARTUP_THREADS worker threads as their inputs become
+ * available:
+ *
+ *    driver, classes                        at once
+ *    connect, notifier                      after driver
+ *    query pool                             after connect, own connections
+ *    user filter, overlap indexes           after connect, one chain
+ *    dimensions, hub cache, change log,
+ *    templates                              after connect, another chain
+ *
+ * The two chains share the session's connection and the driver runs one
+ * statement at a time on it, so they overlap only where one chain works
+ * in memory. They are split by kind: the filter and the overlap indexes
+ * stream inside a transaction, which the other streaming step would end
+ * early, so those two never run side by side.
+ *
+ * The templates phase runs the statements of log in, search, profile,
+ * friend list and inbox once with keys that match nothing, so the
+ * server has read the catalogs of their tables and the JVM has loaded
+ * and run their code before the first real request. The statements are
+ * built with String.format and sent unprepared, so there are no server
+ * side plans to prepare ahead; the query pool phase opens every pooled
+ * connection and warms it the same way. Work that the plain startup
+ * leaves to the first request (dimensions, hub cache, overlap indexes,
+ * pooled connections) is done here instead, and a failure of it is only
+ * reported, as it would have been on first use.
+ *
+ * Class loading itself is cut further by a class-data-sharing archive,
+ * see run_fast.sh; the report says whether one was requested.
+ *
+ * The memory startup has none of the database phases. It restores the
+ * named snapshot if the file exists; otherwise it builds the store from
+ * the CSV files in the current directory, or starts empty without them,
+ * and writes the snapshot if one was named. Changes made in the session
+ * stay in memory and are not written back.
+ *
+ */
+
+public class Startup {
+
+   static final String FLAG = "--fast-start";
+   static final String MEMORY = "--memory";
+   static final int STARTUP_THREADS = 4;
+   // passes over the statement templates.
+   static final int TEMPLATE_ROUNDS = 3;
+
+   // loaded ahead by the classes phase: the code of the first requests.
+   static final String[] CLASSES = {"PostgresStore", "Dimensions", "HubCache", "BatchLoader", "Separation",
+      "OverlapIndex", "UserFilter", "ChangeTailer", "QueryPool", "MessageNotifier", "ProfileDiff", "ShardRouter",
+      "ReplicaSet", "Stats", "Export"};
+
+   // a key no user has.
+   private static final String NOBODY = "";
+
+   private static boolean fast = false;
+   // the snapshot named by --memory, "" for none; null without the flag.
+   private static String memory = null;
+
+   /**
+    * The session's database and new-message listener, as opened
+    */
+   public static final class Opened {
+      public final ProfNetwork esql;
+      public final MessageNotifier notifier;
+
+      Opened (ProfNetwork esql, MessageNotifier notifier) {
+         this.esql = esql;
+         this.notifier = notifier;
+      }//end Opened
+   }//end Opened
+
+   /**
+    * One timed step
+    */
+   static final class Phase {
+      final String name;
+      final String thread;
+      final long start, end;
+      final String error;
+
+      Phase (String name, String thread, long start, long end, String error) {
+         this.name = name;
+         this.thread = thread;
+         this.start = start;
+         this.end = end;
+         this.error = error;
+      }//end Phase
+   }//end Phase
+
+   // JVM uptime when main was entered, and that moment on nanoTime.
+   private final long jvmMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+   private final long origin = System.nanoTime();
+   private final List<Phase> phases = Collections.synchronizedList(new ArrayList<Phase>());
+   private long ready = 0;
+
+   /**
+    * Removes --fast-start and --memory[=snapshot] flags from the command
+    * line
+    *
+    * @return the remaining arguments
+    */
+   public static String[] start (String[] args) {
+      List<String> rest = new ArrayList<String>();
+      for (String a : args) {
+         if (a.equals(FLAG)) fast = true;
+         else if (a.equals(MEMORY)) memory = "";
+         else if (a.startsWith(MEMORY + "=")) memory = a.substring(MEMORY.length() + 1);
+         else rest.add(a);
+      }
+      return rest.toArray(new String[0]);
+   }//end start
+
+   /**
+    * @return whether the command line asked for the in-memory backend
+    */
+   public static boolean inMemory () {
+      return memory != null;
+   }//end inMemory
+
+   /**
+    * Runs one phase on the calling thread
+    *
+    * @return its result
+    * @throws Exception the phase's own exception
+    */
+   <T> T time (String name, Callable<T> task) throws Exception {
+      long t0 = System.nanoTime();
+      String error = null;
+      try {
+         return task.call();
+      } catch (Exception e) {
+         error = e.getMessage();
+         throw e;
+      } finally {
+         phases.add(new Phase(name, Thread.currentThread().getName(), t0 - origin, System.nanoTime() - origin, error));
+      }//end try
+   }//end time
+
+   // a phase on a worker thread once dep is done.
+   private <T> CompletableFuture<T> then (CompletableFuture<?> dep, ExecutorService threads, String name, Callable<T> task) {
+      return dep.thenApplyAsync(ignored -> {
+         try (QueryGuard.Scope scope = QueryGuard.as(QueryGuard.OFFLINE)) {
+            return time(name, task);
+         } catch (Exception e) {
+            throw new CompletionException(e);
+         }//end try
+      }, threads);
+   }//end then
+
+   // a phase the session can do without: a failure is reported, not thrown.
+   private <T> CompletableFuture<T> warm (CompletableFuture<?> dep, ExecutorService threads, String name, Callable<T> task) {
+      return then(dep, threads, name, task).exceptionally(e -> null);
+   }//end warm
+
+   /**
+    * Opens the session's database as the command line asked
+    *
+    * @throws Exception when the database cannot be used
+    */
+   public static Opened open (String dbname, String dbport, String user) throws Exception {
+      Startup s = new Startup();
+      Opened opened = fast ? s.fast(dbname, dbport, user) : s.plain(dbname, dbport, user);
+      s.ready = System.nanoTime() - s.origin;
+      System.out.println(s.report());
+      return opened;
+   }//end open
+
+   /**
+    * Opens the in-memory backend --memory asked for
+    *
+    * @throws Exception when the snapshot or the CSV files cannot be read
+    */
+   public static Opened open () throws Exception {
+      Startup s = new Startup();
+      Opened opened = s.memory();
+      s.ready = System.nanoTime() - s.origin;
+      System.out.println(s.report());
+      return opened;
+   }//end open
+
+   private Opened memory () throws Exception {
+      File snapshot = memory.isEmpty() ? null : new File(memory);
+      MemoryStore store;
+      if (snapshot != null && snapshot.exists()) {
+         store = time("restore", () -> MemoryStore.restore(snapshot));
+      } else {
+         File csv = new File(".");
+         store = time("csv", () -> new File(csv, "USR.csv").exists() ? MemoryStore.fromCsv(csv) : new MemoryStore());
+         if (snapshot != null)
+            time("snapshot", () -> { store.snapshot(snapshot); return null; });
+      }//end if
+      time("signals", () -> { QueryGuard.installInterruptHandler(); return null; });
+      return new Opened(new ProfNetwork(store), null);
+   }//end memory
+
+   private Opened plain (String dbname, String dbport, String user) throws Exception {
+      // use postgres JDBC driver; loading the class registers it.
+      time("driver", () -> Class.forName("org.postgresql.Driver"));
+      // instantiate the ProfNetwork object and creates a physical
+      // connection.
+      ProfNetwork esql = time("connect", () -> new ProfNetwork(dbname, dbport, user, ""));
+      time("signals", () -> { QueryGuard.installInterruptHandler(); return null; });
+      time("user filter", () -> { esql.loadUserFilter(); return null; });
+      time("change log", () -> { esql.startChangeTailer(); return null; });
+      MessageNotifier notifier = time("notifier", () -> notifier(dbname, dbport, user));
+      return new Opened(esql, notifier);
+   }//end plain
+
+   private Opened fast (String dbname, String dbport, String user) throws Exception {
+      AtomicInteger n = new AtomicInteger();
+      ExecutorService threads = Executors.newFixedThreadPool(STARTUP_THREADS, r -> {
+         Thread t = new Thread(r, "startup-" + n.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+      try {
+         CompletableFuture<Void> none = CompletableFuture.completedFuture(null);
+         CompletableFuture<Class<?>> driver = then(none, threads, "driver",
+            () -> Class.forName("org.postgresql.Driver"));
+         CompletableFuture<Integer> classes = warm(none, threads, "classes", Startup::preload);
+         time("signals", () -> { QueryGuard.installInterruptHandler(); return null; });
+         CompletableFuture<ProfNetwork> connect = then(driver, threads, "connect",
+            () -> new ProfNetwork(dbname, dbport, user, ""));
+         CompletableFuture<MessageNotifier> notifier = then(driver, threads, "notifier",
+            () -> notifier(dbname, dbport, user));
+         ProfNetwork esql = QueryPool.join(connect);
+
+         CompletableFuture<Object> pool = warm(connect, threads, "query pool", () -> pool(esql));
+         CompletableFuture<Object> streams = warm(connect, threads, "user filter", () -> {
+            esql.loadUserFilter();
+            return null;
+         });
+         streams = warm(streams, threads, "overlap indexes", () -> esql.overlapIndexes());
+         CompletableFuture<Object> selects = warm(connect, threads, "dimensions", () -> esql.dimensions());
+         selects = warm(selects, threads, "hub cache", () -> { esql.loadHubCache(); return null; });
+         selects = warm(selects, threads, "change log", () -> { esql.startChangeTailer(); return null; });
+         selects = warm(selects, threads, "templates", () -> templates(esql));
+
+         QueryPool.join(CompletableFuture.allOf(classes, pool, streams, selects));
+         return new Opened(esql, QueryPool.join(notifier));
+      } finally {
+         threads.shutdown();
+      }//end try
+   }//end fast
+
+   private static MessageNotifier notifier (String dbname, String dbport, String user) {
+      try{
+         return new MessageNotifier(dbname, dbport, user, "");
+      }catch (SQLException e){
+         System.err.println ("New-message notifications disabled: " + e.getMessage ());
+         return null;
+      }//end try
+   }//end notifier
+
+   private static int preload () throws ClassNotFoundException {
+      ClassLoader loader = Startup.class.getClassLoader();
+      for (String c : CLASSES)
+         Class.forName(c, true, loader);
+      return CLASSES.length;
+   }//end preload
+
+   // the read statements of the first requests, for a user that does not exist.
+   private static int templates (ProfNetwork esql) throws Exception {
+      PostgresStore store = new PostgresStore(esql);
+      int statements = 0;
+      for (int i = 0; i < TEMPLATE_ROUNDS; ++i) {
+         store.checkLogin(NOBODY, NOBODY);
+         store.findByName(NOBODY);
+         store.work(NOBODY);
+         store.education(NOBODY);
+         store.friends(NOBODY);
+         store.pendingRequests(NOBODY);
+         store.sent(NOBODY, Integer.MAX_VALUE, ProfNetwork.MESSAGE_PAGE);
+         store.received(NOBODY, Integer.MAX_VALUE, ProfNetwork.MESSAGE_PAGE);
+         statements += 8;
+      }
+      return statements;
+   }//end templates
+
+   // opens every pooled connection of every database with a warm-up
+   // query of its own.
+   private static Object pool (ProfNetwork esql) throws SQLException {
+      List<CompletableFuture<List<List<String>>>> opened = new ArrayList<CompletableFuture<List<List<String>>>>();
+      for (ProfNetwork db : esql.databases())
+         for (int i = 0; i < QueryPool.CONNECTIONS; ++i)
+            opened.add(db.executeQueryAsync(String.format(
+               "SELECT * FROM MESSAGE WHERE receiverId = '%s' AND (deleteStatus=0 OR deleteStatus=1)", NOBODY)));
+      for (CompletableFuture<List<List<String>>> f : opened)
+         QueryPool.join(f);
+      return null;
+   }//end pool
+
+   // the archive named on the command line, if any.
+   private static String archive () {
+      for (String a : ManagementFactory.getRuntimeMXBean().getInputArguments())
+         if (a.startsWith("-XX:SharedArchiveFile="))
+            return a.substring("-XX:SharedArchiveFile=".length());
+      return null;
+   }//end archive
+
+   /**
+    * @return every phase with its thread and its start and end after JVM
+    *         start
+    */
+   String report () {
+      StringBuilder b = new StringBuilder();
+      long work = 0;
+      List<Phase> all;
+      synchronized (phases) {
+         all = new ArrayList<Phase>(phases);
+      }
+      all.sort((x, y) -> Long.compare(x.start, y.start));
+      for (Phase p : all) work += p.end - p.start;
+      String cds = archive();
+      b.append(String.format("Startup (%s): menu after %d ms, %d ms in main, %d ms of phases; class data archive: %s%n",
+         memory != null ? "memory" : fast ? "fast" : "plain", jvmMillis + ready / 1000000, ready / 1000000, work / 1000000,
+         cds == null ? "none" : cds));
+      b.append(String.format("   %-16s %-10s %8s %8s %8s%n", "phase", "thread", "start", "end", "ms"));
+      b.append(String.format("   %-16s %-10s %8d %8d %8d%n", "jvm", "", 0, jvmMillis, jvmMillis));
+      for (Phase p : all)
+         b.append(String.format("   %-16s %-10s %8d %8d %8d%s%n", p.name, p.thread, jvmMillis + p.start / 1000000,
+            jvmMillis + p.end / 1000000, (p.end - p.start) / 1000000, p.error == null ? "" : "  failed: " + p.error));
+      return b.toString().trim();
+   }//end report
+
+   /**
+    * Starts as the client would and exits before the first menu: times a
+    * cold start, and is the training run of a class-data archive
+    *
+    * @param args [--fast-start] <dbname> <port> <user>, or --memory[=snapshot]
+    */
+   public static void main (String[] args) throws Exception {
+      args = start (args);
+      if (args.length != (inMemory () ? 0 : 3)) {
+         System.err.println ("Usage: java " + Startup.class.getName () + " [" + FLAG + "] <dbname> <port> <user>"
+            + " | " + MEMORY + "[=snapshot]");
+         return;
+      }//end if
+      Opened opened = inMemory () ? open () : open (args[0], args[1], args[2]);
+      if (opened.notifier != null)
+         opened.notifier.close ();
+      opened.esql.cleanup ();
+   }//end main
+
+}//end Startup
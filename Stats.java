@@ -0,0 +1,289 @@
+/*
+ * Network statistics
+ * ==================
+ *
+ * Summary tables kept current by the triggers of stats.sql: accepted
+ * connections and pending requests per user, and members per company
+ * and per institution.
+ *
+ *    java Stats verify|rebuild <dbname> <port[,port...]> <user>
+ *    java Stats bench <dbname> <port[,port...]> <user> [writes]
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class reads and checks the summaries. The triggers update them in
+ * the transaction of every write to CONNECTION_USR, WORK_EXPR and
+ * EDUCATIONAL_DETAILS, so they are never stale and a read is a primary
+ * key lookup instead of a scan:
+ *
+ *    USER_STATS (userId, connections, requestsSent, requestsReceived)
+ *    ORG_STATS  (kind C or I, name, members)
+ *    ORG_MEMBER (kind, userId, name, nrows): how many profile rows tie a
+ *               user to an organization, so a user with two jobs at one
+ *               company is counted once
+ *
+ * Sharded, each database summarizes its own rows: a user's counts are
+ * complete on the user's shard, and members of an organization are
+ * summed over the shards, since profile rows live on one shard only.
+ *
+ * {@link #verify} compares every summary row with a full recomputation
+ * from the base tables; {@link #rebuild} replaces the summaries with
+ * that recomputation.
+ *
+ */
+
+public class Stats {
+
+   // {kind, table}
+   static final String[][] ORGS = {{"C", "WORK_EXPR"}, {"I", "EDUCATIONAL_DETAILS"}};
+
+   static final String USERS =
+      "SELECT id, sum(c) AS c, sum(s) AS s, sum(r) AS r FROM ("
+      + "SELECT trim(userId) AS id, CASE WHEN trim(status) = 'Accept' THEN 1 ELSE 0 END AS c, "
+      + "CASE WHEN trim(status) = 'Request' THEN 1 ELSE 0 END AS s, 0 AS r FROM CONNECTION_USR "
+      + "UNION ALL SELECT trim(connectionId), CASE WHEN trim(status) = 'Accept' THEN 1 ELSE 0 END, "
+      + "0, CASE WHEN trim(status) = 'Request' THEN 1 ELSE 0 END FROM CONNECTION_USR) e GROUP BY id";
+
+   /**
+    * @return the recomputation of ORG_MEMBER for one kind, as (kind,
+    *         userId, name, nrows)
+    */
+   static String members (Dimensions d, String[] org) {
+      String[] column = org[0].equals("C") ? Dimensions.COMPANY : Dimensions.INSTITUTION;
+      if (d.normalized)
+         return String.format("SELECT CAST('%s' AS char(1)) AS kind, trim(f.userId) AS userId, trim(d.name) AS name, "
+            + "count(*) AS nrows FROM %s f, %s d WHERE d.id = f.%s GROUP BY trim(f.userId), trim(d.name)",
+            org[0], org[1], column[2], column[1]);
+      return String.format("SELECT CAST('%s' AS char(1)) AS kind, trim(userId) AS userId, trim(%s) AS name, "
+         + "count(*) AS nrows FROM %s GROUP BY trim(userId), trim(%s)", org[0], column[0], org[1], column[0]);
+   }//end members
+
+   /**
+    * @return {connections, requests sent, requests received} of a user
+    */
+   public static int[] user (ProfNetwork esql, String userId) throws SQLException {
+      List<List<String>> r = esql.shard(userId).executeQueryAndReturnResult(String.format(
+         "SELECT connections, requestsSent, requestsReceived FROM USER_STATS WHERE userId = '%s'",
+         PostgresStore.q(userId.trim())));
+      if (r.isEmpty()) return new int[3];
+      return new int[]{Integer.parseInt(r.get(0).get(0).trim()), Integer.parseInt(r.get(0).get(1).trim()),
+                       Integer.parseInt(r.get(0).get(2).trim())};
+   }//end user
+
+   /**
+    * @param kind C for companies, I for institutions
+    * @return members of each named organization, summed over the shards
+    */
+   public static Map<String, Integer> members (ProfNetwork esql, String kind, Collection<String> names) throws SQLException {
+      Map<String, Integer> out = new HashMap<String, Integer>();
+      if (names.isEmpty()) return out;
+      StringBuilder in = new StringBuilder();
+      for (String n : names) {
+         in.append(in.length() == 0 ? "'" : ",'").append(PostgresStore.q(n.trim())).append('\'');
+         out.put(n.trim(), 0);
+      }
+      for (List<String> r : esql.executeQueryAndReturnResultAll(String.format(
+            "SELECT name, members FROM ORG_STATS WHERE kind = '%s' AND name IN (%s)", kind, in)))
+         out.merge(r.get(0).trim(), Integer.parseInt(r.get(1).trim()), Integer::sum);
+      return out;
+   }//end members
+
+   /**
+    * @param kind C for companies, I for institutions
+    * @return {name, members} of the n largest organizations
+    */
+   public static List<String[]> top (ProfNetwork esql, String kind, int n) throws SQLException {
+      List<String[]> out = new ArrayList<String[]>();
+      if (!esql.isSharded()) {
+         for (List<String> r : esql.executeQueryAndReturnResult(String.format(
+               "SELECT name, members FROM ORG_STATS WHERE kind = '%s' ORDER BY members DESC, name LIMIT %d", kind, n)))
+            out.add(new String[]{r.get(0).trim(), r.get(1).trim()});
+         return out;
+      }//end if
+      // a per-shard top n can miss an organization spread over shards.
+      Map<String, Integer> sum = new HashMap<String, Integer>();
+      for (List<String> r : esql.executeQueryAndReturnResultAll(String.format(
+            "SELECT name, members FROM ORG_STATS WHERE kind = '%s'", kind)))
+         sum.merge(r.get(0).trim(), Integer.parseInt(r.get(1).trim()), Integer::sum);
+      List<Map.Entry<String, Integer>> all = new ArrayList<Map.Entry<String, Integer>>(sum.entrySet());
+      all.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : b.getValue() - a.getValue());
+      for (Map.Entry<String, Integer> e : all.subList(0, Math.min(n, all.size())))
+         out.add(new String[]{e.getKey(), e.getValue().toString()});
+      return out;
+   }//end top
+
+   // rows of a that b lacks, both (query) with the same columns.
+   private static long missing (ProfNetwork db, String a, String b) throws SQLException {
+      return Long.parseLong(db.executeQueryAndReturnResult(
+         "SELECT count(*) FROM (" + a + " EXCEPT " + b + ") x").get(0).get(0).trim());
+   }//end missing
+
+   /**
+    * Compares every summary with a full recomputation, database by
+    * database
+    *
+    * @return the number of rows that differ
+    */
+   public static long verify (ProfNetwork esql) throws SQLException {
+      Dimensions d = esql.dimensions();
+      String stored = "SELECT userId, connections, requestsSent, requestsReceived FROM USER_STATS "
+         + "WHERE connections <> 0 OR requestsSent <> 0 OR requestsReceived <> 0";
+      String computed = "SELECT * FROM (" + USERS + ") u WHERE c <> 0 OR s <> 0 OR r <> 0";
+      long bad = 0;
+      for (ProfNetwork db : esql.databases()) {
+         long t0 = System.nanoTime();
+         long users = missing(db, stored, computed) + missing(db, computed, stored);
+         long members = 0, orgs = 0;
+         for (String[] org : ORGS) {
+            String m = members(d, org);
+            String storedM = "SELECT kind, userId, name, nrows FROM ORG_MEMBER WHERE kind = '" + org[0] + "'";
+            members += missing(db, storedM, m) + missing(db, m, storedM);
+            String storedO = "SELECT kind, name, members FROM ORG_STATS WHERE kind = '" + org[0] + "'";
+            String computedO = "SELECT kind, name, count(*) FROM (" + m + ") m GROUP BY kind, name";
+            orgs += missing(db, storedO, computedO) + missing(db, computedO, storedO);
+         }
+         System.out.printf("   USER_STATS %d, ORG_MEMBER %d, ORG_STATS %d rows differ (full recomputation %.2f s)%n",
+            users, members, orgs, (System.nanoTime() - t0) / 1e9);
+         bad += users + members + orgs;
+      }
+      return bad;
+   }//end verify
+
+   /**
+    * Recomputes every summary, one transaction per database, and points
+    * the profile triggers at the current column layout
+    */
+   public static void rebuild (ProfNetwork esql) throws SQLException {
+      Dimensions d = esql.dimensions();
+      for (ProfNetwork db : esql.databases()) {
+         List<String> sql = new ArrayList<String>();
+         sql.add("SET LOCAL statement_timeout = 0");
+         // writes wait until the summaries match the tables again.
+         sql.add("LOCK TABLE CONNECTION_USR, WORK_EXPR, EDUCATIONAL_DETAILS IN SHARE MODE");
+         String[][] triggers = {{"workStats", "WORK_EXPR"}, {"eduStats", "EDUCATIONAL_DETAILS"}};
+         for (String[] t : triggers) {
+            if (!db.executeQueryAndReturnResult(String.format(
+                  "SELECT 1 FROM pg_trigger WHERE tgname = '%s'", t[0].toLowerCase())).isEmpty())
+               sql.add("DROP TRIGGER " + t[0] + " ON " + t[1]);
+            sql.add(String.format("CREATE TRIGGER %s AFTER INSERT OR UPDATE OR DELETE ON %s FOR EACH ROW EXECUTE PROCEDURE %s%s()",
+               t[0], t[1], t[0], d.normalized ? "Dim" : ""));
+         }
+         sql.add("DELETE FROM USER_STATS");
+         sql.add("INSERT INTO USER_STATS (userId, connections, requestsSent, requestsReceived) " + USERS);
+         sql.add("DELETE FROM ORG_MEMBER");
+         for (String[] org : ORGS)
+            sql.add("INSERT INTO ORG_MEMBER (kind, userId, name, nrows) " + members(d, org));
+         sql.add("DELETE FROM ORG_STATS");
+         sql.add("INSERT INTO ORG_STATS (kind, name, members) SELECT kind, name, count(*) FROM ORG_MEMBER GROUP BY kind, name");
+         long t0 = System.nanoTime();
+         db.executeBatch(sql);
+         System.out.printf("   rebuilt one database in %.2f s%n", (System.nanoTime() - t0) / 1e9);
+      }
+   }//end rebuild
+
+   // one write and its inverse: a request and its withdrawal, or a job
+   // added and removed again, so the data ends where it started.
+   private static void write (ProfNetwork esql, PostgresStore store, List<String> users, Random rnd) throws Exception {
+      String a = users.get(rnd.nextInt(users.size())), b = users.get(rnd.nextInt(users.size()));
+      if (rnd.nextBoolean()) {
+         try {
+            store.request(a, b);
+         } catch (SQLException e) {
+            // the pair is already connected.
+            return;
+         }//end try
+         esql.executeUpdateOn(String.format("DELETE FROM CONNECTION_USR WHERE userId = '%s' AND connectionId = '%s'",
+            PostgresStore.q(a), PostgresStore.q(b)), a, b);
+      } else {
+         String company = "Stats Bench " + rnd.nextInt(10);
+         store.addWork(a, company, "bench", "bench", "2001-01-01", "2001-12-31");
+         esql.shard(a).executeUpdate(String.format("DELETE FROM WORK_EXPR WHERE userId = '%s' AND %s AND startDate = '2001-01-01'",
+            PostgresStore.q(a), esql.dimensions().eq(Dimensions.COMPANY, company)));
+      }//end if
+   }//end write
+
+   private static double run (ProfNetwork esql, List<String> users, int ops) throws Exception {
+      PostgresStore store = new PostgresStore(esql);
+      Random rnd = new Random(7);
+      long t0 = System.nanoTime();
+      for (int i = 0; i < ops; ++i)
+         write(esql, store, users, rnd);
+      return (System.nanoTime() - t0) / 1e9;
+   }//end run
+
+   private static void triggers (ProfNetwork esql, String action) throws SQLException {
+      for (ProfNetwork db : esql.databases()) {
+         db.executeUpdate("ALTER TABLE CONNECTION_USR " + action + " TRIGGER connectionStats");
+         db.executeUpdate("ALTER TABLE WORK_EXPR " + action + " TRIGGER workStats");
+         db.executeUpdate("ALTER TABLE EDUCATIONAL_DETAILS " + action + " TRIGGER eduStats");
+      }
+   }//end triggers
+
+   /**
+    * Measures the write rate with the summary triggers on and off and
+    * sets the difference against one full recomputation. Disables the
+    * triggers for a while: run it with no other writers.
+    */
+   static void bench (ProfNetwork esql, int ops) throws Exception {
+      List<String> users = new ArrayList<String>();
+      for (List<String> r : esql.executeQueryAndReturnResultAll("SELECT userId FROM USR LIMIT 2000"))
+         users.add(r.get(0).trim());
+      run(esql, users, Math.min(ops, 200));
+      double on = run(esql, users, ops), off;
+      triggers(esql, "DISABLE");
+      try {
+         off = run(esql, users, ops);
+      } finally {
+         triggers(esql, "ENABLE");
+      }//end try
+      // each op is a write and its inverse.
+      int writes = ops * 2;
+      double perWrite = (on - off) * 1000 / writes;
+      System.out.printf("%d writes: %.0f writes/s with summary triggers, %.0f without, %.3f ms per write to maintain%n",
+         writes, writes / on, writes / off, perWrite);
+      long t0 = System.nanoTime();
+      long bad = verify(esql);
+      double full = (System.nanoTime() - t0) / 1e9;
+      System.out.printf("a full recomputation takes %.2f s, the maintenance cost of %.0f writes; %d rows differ%n",
+         full, perWrite > 0 ? full * 1000 / perWrite : Double.POSITIVE_INFINITY, bad);
+   }//end bench
+
+   /**
+    * The main execution method
+    *
+    * @param args verify|rebuild|bench <dbname> <port[,port...]> <user> [writes]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4 || !(args[0].equals("verify") || args[0].equals("rebuild") || args[0].equals("bench"))) {
+         System.err.println ("Usage: java " + Stats.class.getName () + " verify|rebuild <dbname> <port[,port...]> <user>");
+         System.err.println ("       java " + Stats.class.getName () + " bench <dbname> <port[,port...]> <user> [writes]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      ProfNetwork esql = new ProfNetwork (args[1], args[2], args[3], "");
+      try (QueryGuard.Scope scope = QueryGuard.as (QueryGuard.OFFLINE)) {
+         if (args[0].equals("verify")) {
+            long bad = verify(esql);
+            System.out.println(bad == 0 ? "Summaries match the tables" : bad + " summary rows differ; run rebuild");
+         } else if (args[0].equals("rebuild")) {
+            rebuild(esql);
+            System.out.println(verify(esql) == 0 ? "Summaries match the tables" : "Summaries still differ");
+         } else {
+            bench(esql, args.length > 4 ? Integer.parseInt(args[4]) : 2000);
+         }//end if
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+}//end Stats
@@ -0,0 +1,266 @@
+/*
+ * ProfileStore contract check
+ * ===========================
+ *
+ * Runs the same behavioral checks against every storage backend.
+ *
+ *    java StoreContract                          (in-memory only)
+ *    java StoreContract <dbname> <port> <user>   (in-memory and PostgreSQL)
+ *
+ */
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class exercises a ProfileStore through its public operations only
+ * and reports the first violated expectation per backend. User ids carry
+ * a per-run prefix so the check can run against a database that already
+ * holds data; rows it creates there are left in place.
+ *
+ */
+
+public class StoreContract {
+
+   private final ProfileStore store;
+   private final String p;
+   private int checks = 0;
+
+   StoreContract (ProfileStore store, String prefix) {
+      this.store = store;
+      this.p = prefix;
+   }//end StoreContract
+
+   private void expect (boolean ok, String what) {
+      ++checks;
+      if (!ok) throw new AssertionError(what);
+   }//end expect
+
+   private static List<String> column (List<List<String>> rows, int col) {
+      String[] v = new String[rows.size()];
+      for (int i = 0; i < v.length; ++i) v[i] = rows.get(i).get(col);
+      Arrays.sort(v);
+      return Arrays.asList(v);
+   }//end column
+
+   /**
+    * Runs every check
+    */
+   void run () throws Exception {
+      String a = p + "a", b = p + "b", c = p + "c";
+
+      // users
+      expect(store.createUser(a, "pw", a + "@x.org", p + "Alice", "01/02/1990"), "create a");
+      expect(store.createUser(b, "pw", b + "@x.org", p + "Bob", "03/04/1991"), "create b");
+      expect(store.createUser(c, "pw", c + "@x.org", p + "Bob", "05/06/1992"), "create c");
+      expect(!store.createUser(a, "other", "", "", "01/01/2000"), "duplicate user id rejected");
+      expect(store.userExists(a) && !store.userExists(p + "nobody"), "userExists");
+      expect(store.checkLogin(a, "pw") && !store.checkLogin(a, "bad"), "checkLogin");
+      store.changePassword(a, "new");
+      expect(store.checkLogin(a, "new") && !store.checkLogin(a, "pw"), "changePassword");
+      expect(column(store.findByName(p + "Bob"), 0).equals(Arrays.asList(b, c)), "findByName");
+
+      // profiles
+      store.addWork(a, "Skimia", "Teacher", "Jintun", "2001-01-01", "2003-01-01");
+      store.addWork(a, "Katz", "Editor", "Turba", "2004-01-01", "2006-01-01");
+      store.addEducation(a, "Oba", "history", "bachelor", "1995-01-01", "1999-01-01");
+      expect(column(store.work(a), 0).equals(Arrays.asList("Katz", "Skimia")), "work rows");
+      expect(store.education(a).size() == 1 && store.education(a).get(0).get(2).equals("bachelor"), "education rows");
+      expect(store.work(b).isEmpty(), "no work rows for b");
+      store.addWork(b, "Katz", "Editor", "Turba", "2004-01-01", "2006-01-01");
+      store.applyProfile(a, new ProfileDiff()
+         .removeWork("Skimia", "Teacher", "2001-01-01")
+         .putWork("Katz", "Editor", "Lyon", "2004-01-01", "2008-01-01")
+         .putWork("Oozz", "Engineer", "Lima", "2009-01-01", "2010-01-01")
+         .putEducation("Rice", "history", "bachelor", "1995-01-01", "1999-01-01")
+         .putEducation("Rice", "math", "master", "2000-01-01", "2001-01-01"));
+      expect(column(store.work(a), 0).equals(Arrays.asList("Katz", "Oozz")), "diff removes and inserts work rows");
+      expect(store.work(a).get(0).get(2).equals("Lyon"), "diff updates a work row in place");
+      expect(column(store.education(a), 0).equals(Arrays.asList("Rice", "Rice")), "diff upserts education rows");
+      expect(store.work(b).get(0).get(2).equals("Turba"), "diff leaves other users' rows alone");
+
+      // batch lookups
+      Map<String, List<String>> found = store.users(Arrays.asList(a, c, p + "nobody"));
+      expect(found.keySet().equals(new HashSet<String>(Arrays.asList(a, c))) && found.get(c).get(2).trim().equals(p + "Bob"),
+         "users by id, unknown ids left out");
+      Map<String, List<List<String>>> work = store.work(Arrays.asList(a, c));
+      expect(work.get(a).size() == 2 && work.get(c).isEmpty(), "work by id");
+      Map<String, List<List<String>>> education = store.education(Arrays.asList(a, b));
+      expect(education.get(a).size() == 2 && education.get(b).isEmpty(), "education by id");
+
+      // organizations: c has two rows at one company and counts once
+      store.addWork(b, p + "Co", "Clerk", "Lima", "2001-01-01", "2001-12-31");
+      store.addWork(c, p + "Co", "Clerk", "Lima", "2001-01-01", "2001-06-30");
+      store.addWork(c, p + "Co", "Manager", "Lima", "2001-07-01", "2001-12-31");
+      store.addEducation(c, "Rice", "art", "bachelor", "1998-01-01", "2002-01-01");
+      Map<String, Integer> members = store.members("C", Arrays.asList(p + "Co", p + "None"));
+      expect(members.get(p + "Co") == 2 && members.get(p + "None") == 0, "members of a company");
+      List<String[]> largest = store.largest("C", 3);
+      boolean ordered = largest.size() <= 3;
+      for (int i = 1; i < largest.size(); ++i)
+         ordered &= Integer.parseInt(largest.get(i - 1)[1]) >= Integer.parseInt(largest.get(i)[1]);
+      expect(ordered, "largest companies, most members first");
+      OverlapIndex[] overlaps = store.overlapIndexes();
+      expect(overlapping(overlaps[0], a, b) && overlapping(overlaps[0], c, b) && !overlapping(overlaps[0], a, c),
+         "coworkers");
+      expect(overlapping(overlaps[1], c, a), "classmates");
+
+      // connections
+      store.request(a, b);
+      store.request(c, a);
+      expect(store.pendingRequests(a).size() == 1 && store.pendingRequests(a).get(0).get(1).equals(b), "pending requests of a");
+      expect(store.friends(a).isEmpty(), "no friends before accept");
+      store.setStatus(a, b, "Accept");
+      store.setStatus(c, a, "Accept");
+      List<String> fa = store.friends(a);
+      expect(fa.size() == 2 && fa.contains(b) && fa.contains(c), "friends in both directions");
+      expect(store.friends(b).equals(Arrays.asList(a)), "friendship is symmetric");
+      expect(store.pendingRequests(a).isEmpty(), "accepted request no longer pending");
+      store.setStatus(c, a, "Reject");
+      expect(store.friends(a).equals(Arrays.asList(b)), "rejected edge is not a friendship");
+      boolean duplicate = false;
+      try {
+         store.request(a, b);
+      } catch (Exception e) {
+         duplicate = true;
+      }
+      expect(duplicate, "duplicate connection rejected");
+      store.request(b, c);
+      expect(store.friends(Arrays.asList(a, b, c)).get(b).equals(Arrays.asList(a))
+         && store.friends(Arrays.asList(a, b, c)).get(c).isEmpty(), "friends by id");
+      expect(Arrays.equals(store.connectionCounts(a), new int[]{1, 0, 0})
+         && Arrays.equals(store.connectionCounts(b), new int[]{1, 1, 0})
+         && Arrays.equals(store.connectionCounts(c), new int[]{0, 0, 1}), "connection counts");
+
+      // messages and the deleteStatus state machine
+      int m1 = store.send(a, b, "hello", "2020-01-01 10:00:00");
+      int m2 = store.send(b, a, "hi back", "2020-01-01 10:01:00");
+      expect(m2 > m1, "msgIds increase");
+      expect(column(store.sent(a), 0).equals(Arrays.asList(Integer.toString(m1))), "sent by a");
+      expect(column(store.received(a), 0).equals(Arrays.asList(Integer.toString(m2))), "received by a");
+      expect(store.received(b).get(0).get(3).equals("hello"), "message contents");
+      int m3 = store.send(a, b, "again", "2020-01-01 10:02:00");
+      expect(column(store.sent(a, Integer.MAX_VALUE, 1), 0).equals(Arrays.asList(Integer.toString(m3)))
+         && column(store.sent(a, m3, 5), 0).equals(Arrays.asList(Integer.toString(m1))), "sent pages, newest first");
+      store.setDeleteStatus(m3, 3);
+      store.setDeleteStatus(m1, 1);
+      expect(store.sent(a).isEmpty() && store.received(b).size() == 1, "sender delete hides from sender only");
+      store.setDeleteStatus(m1, 3);
+      expect(store.received(b).isEmpty(), "deleted by both hides from both");
+      store.setDeleteStatus(m2, 2);
+      expect(store.received(a).isEmpty() && store.sent(b).size() == 1, "receiver delete hides from receiver only");
+
+      // bulk delete: each side marks its own role
+      int m4 = store.send(a, b, "bulk", "2020-01-02 10:00:00");
+      int m5 = store.send(b, a, "bulk reply", "2020-01-02 10:01:00");
+      List<String> bulk = Arrays.asList(Integer.toString(m4), Integer.toString(m5));
+      String condition = "msgId IN (" + m4 + "," + m5 + ")";
+      expect(store.deleteMessages(a, condition, row -> bulk.contains(row.get(0).trim())) == 2, "bulk delete count");
+      expect(store.sent(a).isEmpty() && store.received(a).isEmpty()
+         && column(store.received(b), 0).equals(Arrays.asList(Integer.toString(m4)))
+         && store.sent(b).size() == 2, "bulk delete hides from the deleting user only");
+      expect(store.deleteMessages(a, condition, row -> bulk.contains(row.get(0).trim())) == 0, "bulk delete is idempotent");
+      expect(store.deleteMessages(b, condition, row -> bulk.contains(row.get(0).trim())) == 2
+         && store.received(b).isEmpty() && store.sent(b).size() == 1, "bulk delete by the other side");
+   }//end run
+
+   // whether the index has u among who overlapped with v.
+   private static boolean overlapping (OverlapIndex index, String v, String u) {
+      for (OverlapIndex.Match m : index.find(v))
+         if (m.userId.trim().equals(u)) return true;
+      return false;
+   }//end overlapping
+
+   // rows as sorted lines, so backends may return them in any order.
+   private static List<String> lines (List<List<String>> rows) {
+      List<String> out = new ArrayList<String>();
+      for (List<String> r : rows) out.add(String.join("\t", r));
+      Collections.sort(out);
+      return out;
+   }//end lines
+
+   /**
+    * @return the first difference between two stores in what they hold
+    *         for the given users, null if there is none
+    */
+   static String difference (ProfileStore x, ProfileStore y, List<String> userIds) throws Exception {
+      if (!x.users(userIds).equals(y.users(userIds))) return "profiles";
+      for (String u : userIds) {
+         if (!lines(x.work(u)).equals(lines(y.work(u)))) return "work of " + u;
+         if (!lines(x.education(u)).equals(lines(y.education(u)))) return "education of " + u;
+         if (!x.friends(u).equals(y.friends(u))) return "friends of " + u;
+         if (!lines(x.pendingRequests(u)).equals(lines(y.pendingRequests(u)))) return "requests of " + u;
+         if (!Arrays.equals(x.connectionCounts(u), y.connectionCounts(u))) return "connection counts of " + u;
+         // the pages carry deleteStatus, so hidden messages must agree too.
+         if (!lines(x.sent(u, Integer.MAX_VALUE, Integer.MAX_VALUE)).equals(lines(y.sent(u, Integer.MAX_VALUE, Integer.MAX_VALUE))))
+            return "messages sent by " + u;
+         if (!lines(x.received(u, Integer.MAX_VALUE, Integer.MAX_VALUE)).equals(lines(y.received(u, Integer.MAX_VALUE, Integer.MAX_VALUE))))
+            return "messages received by " + u;
+      }
+      // messages deleted on both sides show on no page.
+      if (x instanceof MemoryStore && y instanceof MemoryStore)
+         for (String u : userIds)
+            if (!((MemoryStore) x).sentAll(u).equals(((MemoryStore) y).sentAll(u))) return "deleteStatus of messages sent by " + u;
+      return null;
+   }//end difference
+
+   /**
+    * Runs the contract on a backend and prints the outcome
+    *
+    * @return true if every check passed
+    */
+   static boolean check (String name, ProfileStore store, String prefix) {
+      StoreContract c = new StoreContract(store, prefix);
+      long start = System.nanoTime();
+      try {
+         c.run();
+         System.out.printf("%-10s PASS  %d checks in %.1f ms%n", name, c.checks, (System.nanoTime() - start) / 1e6);
+         return true;
+      } catch (Throwable e) {
+         System.out.printf("%-10s FAIL  after %d checks: %s%n", name, c.checks, e);
+         return false;
+      }
+   }//end check
+
+   /**
+    * The main execution method
+    *
+    * @param args optional <dbname> <port> <user> to also check PostgreSQL
+    */
+   public static void main (String[] args) throws Exception {
+      String prefix = "k" + Long.toString(System.currentTimeMillis(), 36) + "_";
+      boolean ok = check("memory", new MemoryStore(), prefix);
+
+      // snapshot round trip: restored store must still satisfy the contract.
+      MemoryStore mem = new MemoryStore();
+      ok &= check("source", mem, prefix);
+      File snap = File.createTempFile("profnetwork", ".snap");
+      mem.snapshot(snap);
+      long t0 = System.nanoTime();
+      MemoryStore restored = MemoryStore.restore(snap);
+      long t1 = System.nanoTime();
+      // before the restored store runs the contract itself and changes.
+      String differs = difference(mem, restored, Arrays.asList(prefix + "a", prefix + "b", prefix + "c"));
+      System.out.printf("%-10s %s%n", "round trip", differs == null ? "PASS  same profiles, connections and messages"
+         : "FAIL  " + differs + " differ");
+      ok &= differs == null;
+      ok &= check("restored", restored, prefix + "r_");
+      System.out.printf("snapshot %d bytes, restored in %.2f ms%n", snap.length(), (t1 - t0) / 1e6);
+      snap.delete();
+
+      if (args.length == 3) {
+         Class.forName ("org.postgresql.Driver");
+         ProfNetwork esql = new ProfNetwork (args[0], args[1], args[2], "");
+         ok &= check("postgres", new PostgresStore(esql), prefix);
+         esql.cleanup();
+      }//end if
+      if (!ok) System.exit(1);
+   }//end main
+
+}//end StoreContract
@@ -0,0 +1,158 @@
+/*
+ * User existence filter
+ * =====================
+ *
+ * In-memory Bloom filter over USR.userId used by ProfNetwork to reject
+ * unknown user ids without a database round trip.
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class defines a thread-safe Bloom filter over user ids. A negative
+ * answer is definite; a positive answer has to be confirmed by a primary
+ * key probe, whose outcome is fed back through {@link #recordProbe}.
+ *
+ */
+
+public class UserFilter {
+
+   private final AtomicLongArray bits;
+   private final long numBits;
+   private final int numHashes;
+
+   // number of distinct ids added so far: an id is counted when it sets
+   // a bit, so adding it again is not, nor is a new id whose bits were
+   // all set already, which the filter cannot tell from a repeat.
+   private final AtomicLong count = new AtomicLong();
+
+   // lookup statistics used to report the observed false-positive rate.
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong probes = new AtomicLong();
+   private final AtomicLong falsePositives = new AtomicLong();
+
+   /**
+    * Creates a filter sized for the expected number of ids
+    *
+    * @param expected expected number of user ids
+    * @param fpp target false-positive probability, e.g. 0.01
+    */
+   public UserFilter (long expected, double fpp) {
+      expected = Math.max(1, expected);
+      long m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+      m = Math.max(64, (m + 63) & ~63L);
+      this.numBits = m;
+      this.numHashes = Math.max(1, (int) Math.round((double) m / expected * Math.log(2)));
+      this.bits = new AtomicLongArray((int) (m >>> 6));
+   }//end UserFilter
+
+   /**
+    * Adds a user id to the filter
+    *
+    * @return true if the id set a bit, i.e. it was not in the filter yet
+    */
+   public boolean add (String userId) {
+      long h = hash(key(userId));
+      int h1 = (int) h, h2 = (int) (h >>> 32);
+      boolean added = false;
+      for (int i = 1; i <= numHashes; ++i) {
+         long bit = index(h1, h2, i);
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         long old;
+         do {
+            old = bits.get(word);
+            if ((old & mask) != 0) break;
+         } while (!bits.compareAndSet(word, old, old | mask));
+         added |= (old & mask) == 0;
+      }
+      if (added)
+         count.incrementAndGet();
+      return added;
+   }//end add
+
+   /**
+    * @return false if the id is definitely absent, true if it may exist
+    */
+   public boolean mightContain (String userId) {
+      long h = hash(key(userId));
+      int h1 = (int) h, h2 = (int) (h >>> 32);
+      for (int i = 1; i <= numHashes; ++i) {
+         long bit = index(h1, h2, i);
+         if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+            rejected.incrementAndGet();
+            return false;
+         }
+      }
+      return true;
+   }//end mightContain
+
+   /**
+    * Records the result of the primary key probe that followed a positive
+    * answer
+    *
+    * @param found whether the probe found the user
+    */
+   public void recordProbe (boolean found) {
+      probes.incrementAndGet();
+      if (!found) falsePositives.incrementAndGet();
+   }//end recordProbe
+
+   /**
+    * @return the false-positive probability implied by the current fill
+    */
+   public double estimatedFpp () {
+      long set = 0;
+      for (int i = 0; i < bits.length(); ++i)
+         set += Long.bitCount(bits.get(i));
+      return Math.pow((double) set / numBits, numHashes);
+   }//end estimatedFpp
+
+   /**
+    * @return memory used by the bit array in bytes
+    */
+   public long sizeInBytes () {
+      return numBits / 8;
+   }//end sizeInBytes
+
+   /**
+    * @return a one-line summary of size, estimated and observed error
+    */
+   public String report () {
+      long p = probes.get();
+      return String.format("user filter: %d ids, %d KB, %d hashes, estimated fpp %.4f%%, "
+            + "%d rejected without a query, %d probes, %d false positives (%.4f%%)",
+         count.get(), sizeInBytes() / 1024, numHashes, estimatedFpp() * 100,
+         rejected.get(), p, falsePositives.get(), p == 0 ? 0.0 : 100.0 * falsePositives.get() / p);
+   }//end report
+
+   // ids are stored as char(30) in some tables, so padding is not significant.
+   private static String key (String userId) {
+      return userId == null ? "" : userId.trim();
+   }//end key
+
+   private long index (int h1, int h2, int i) {
+      // double hashing: bit i = h1 + i * h2 (Kirsch and Mitzenmacher).
+      long combined = (h1 & 0xffffffffL) + (long) i * (h2 & 0xffffffffL);
+      return Long.remainderUnsigned(combined, numBits);
+   }//end index
+
+   // 64-bit FNV-1a followed by a murmur finalizer.
+   private static long hash (String s) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < s.length(); ++i) {
+         h ^= s.charAt(i);
+         h *= 0x100000001b3L;
+      }
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+}//end UserFilter
@@ -0,0 +1,301 @@
+/*
+ * Workload capture and replay
+ * ===========================
+ *
+ * Records what users type into the client and replays the recorded
+ * sessions concurrently against a database.
+ *
+ *    java ProfNetwork <dbname> <port> <user> --record[=file.tsv]
+ *    java Workload <file.tsv> <dbname> <port> <user> [--sessions=N]
+ *         [--rate=sessions/s] [--think-scale=F] [--connections=C]
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class owns the console input of the client. Every line the menus
+ * read goes through {@link Input}, which either reads the console or, on
+ * a replay thread, hands out the next line of that thread's script.
+ *
+ * With --record the console lines are appended to a capture file, one
+ * per line as "session TAB think-ms TAB input", where think-ms is how
+ * long the user took to answer the prompt. The capture holds everything
+ * typed, passwords included; replay it against a scratch database only.
+ *
+ * The replay driver starts recorded sessions round-robin at a Poisson
+ * arrival rate (all at once when the rate is 0), each on a pooled
+ * connection, sleeping the recorded think time times a scale factor
+ * before every line. A session that is still waiting for a connection
+ * counts its wait as queueing delay, not as operation latency. The
+ * per-operation latency is the service time Profiler measures, which
+ * excludes the prompt time.
+ *
+ */
+
+public class Workload {
+
+   static final String DEFAULT_FILE = "workload.tsv";
+
+   /**
+    * Raised when a replayed session has used up its script
+    */
+   static final class EndOfSession extends Error {
+      private static final long serialVersionUID = 1L;
+
+      EndOfSession () {
+         super("end of recorded session", null, false, false);
+      }//end EndOfSession
+   }//end EndOfSession
+
+   /**
+    * One recorded line and the time the user took to type it
+    */
+   static final class Step {
+      final long thinkMs;
+      final String line;
+
+      Step (long thinkMs, String line) {
+         this.thinkMs = thinkMs;
+         this.line = line;
+      }//end Step
+   }//end Step
+
+   /**
+    * The script a replay thread is reading
+    */
+   static final class Script {
+      private final List<Step> steps;
+      private final double thinkScale;
+      private int next = 0;
+
+      Script (List<Step> steps, double thinkScale) {
+         this.steps = steps;
+         this.thinkScale = thinkScale;
+      }//end Script
+
+      String next () throws IOException {
+         if (next == steps.size()) throw new EndOfSession();
+         Step s = steps.get(next++);
+         long sleep = Math.round(s.thinkMs * thinkScale);
+         if (sleep > 0) {
+            try {
+               Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new EndOfSession();
+            }//end try
+         }//end if
+         return s.line;
+      }//end next
+   }//end Script
+
+   /**
+    * Console input shared by all menus
+    */
+   static final class Input extends BufferedReader {
+      private final ThreadLocal<Script> script = new ThreadLocal<Script>();
+      private PrintWriter capture = null;
+      private String session = null;
+
+      Input (Reader console) {
+         super(console);
+      }//end Input
+
+      public String readLine () throws IOException {
+         // the user's think time does not hold an operation permit.
+         QueryGuard.pause();
+         long t0 = System.nanoTime();
+         Script s = script.get();
+         String line = s != null ? s.next() : super.readLine();
+         long waited = System.nanoTime() - t0;
+         Profiler.prompted(waited);
+         if (s == null && line != null && capture != null) {
+            synchronized (this) {
+               capture.println(session + "\t" + waited / 1000000 + "\t" + escape(line));
+               capture.flush();
+            }
+         }//end if
+         return line;
+      }//end readLine
+   }//end Input
+
+   static String escape (String line) {
+      return line.replace("\\", "\\\\").replace("\t", "\\t");
+   }//end escape
+
+   static String unescape (String field) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < field.length(); ++i) {
+         char c = field.charAt(i);
+         if (c == '\\' && i + 1 < field.length()) {
+            c = field.charAt(++i);
+            sb.append(c == 't' ? '\t' : c);
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.toString();
+   }//end unescape
+
+   /**
+    * Removes a --record[=file] flag from the command line and, if it was
+    * present, starts appending console input to the file
+    *
+    * @return the remaining arguments
+    */
+   public static String[] start (String[] args) {
+      List<String> rest = new ArrayList<String>();
+      String target = null;
+      for (String a : args) {
+         if (a.equals("--record")) target = DEFAULT_FILE;
+         else if (a.startsWith("--record=")) target = a.substring("--record=".length());
+         else rest.add(a);
+      }
+      if (target != null && ProfNetwork.in instanceof Input) {
+         try {
+            Input in = (Input) ProfNetwork.in;
+            in.session = Long.toString(System.currentTimeMillis(), 36) + "-" + ProcessHandle.current().pid();
+            in.capture = new PrintWriter(new FileWriter(target, true));
+            System.out.println("Recording input of session " + in.session + " to " + target);
+         } catch (IOException e) {
+            System.err.println("Input not recorded: " + e.getMessage());
+         }//end try
+      }//end if
+      return rest.toArray(new String[0]);
+   }//end start
+
+   /**
+    * @return the recorded sessions in file order, by session id
+    */
+   static Map<String, List<Step>> load (String file) throws IOException {
+      Map<String, List<Step>> sessions = new LinkedHashMap<String, List<Step>>();
+      BufferedReader r = new BufferedReader(new FileReader(file));
+      try {
+         for (String line; (line = r.readLine()) != null; ) {
+            String[] f = line.split("\t", 3);
+            if (f.length < 3) continue;
+            sessions.computeIfAbsent(f[0], k -> new ArrayList<Step>())
+               .add(new Step(Long.parseLong(f[1]), unescape(f[2])));
+         }
+      } finally {
+         r.close();
+      }//end try
+      return sessions;
+   }//end load
+
+   private static String option (String[] args, String name, String fallback) {
+      for (String a : args)
+         if (a.startsWith("--" + name + "=")) return a.substring(name.length() + 3);
+      return fallback;
+   }//end option
+
+   /**
+    * Replays a capture file
+    *
+    * @param args <file.tsv> <dbname> <port> <user> [options]
+    */
+   public static void main (String[] args) throws Exception {
+      List<String> positional = new ArrayList<String>();
+      for (String a : args)
+         if (!a.startsWith("--")) positional.add(a);
+      if (positional.size() != 4) {
+         System.err.println ("Usage: java " + Workload.class.getName () + " <file.tsv> <dbname> <port> <user>"
+            + " [--sessions=N] [--rate=sessions/s] [--think-scale=F] [--connections=C]");
+         return;
+      }//end if
+      List<List<Step>> recorded = new ArrayList<List<Step>>(load(positional.get(0)).values());
+      if (recorded.isEmpty()) {
+         System.err.println("No sessions in " + positional.get(0));
+         return;
+      }//end if
+      int sessions = Integer.parseInt(option(args, "sessions", Integer.toString(recorded.size())));
+      double rate = Double.parseDouble(option(args, "rate", "0"));
+      double thinkScale = Double.parseDouble(option(args, "think-scale", "1"));
+      int connections = Integer.parseInt(option(args, "connections", "16"));
+
+      Class.forName ("org.postgresql.Driver");
+      BlockingQueue<ProfNetwork> pool = new ArrayBlockingQueue<ProfNetwork>(connections);
+      for (int i = 0; i < connections; ++i)
+         pool.add(new ProfNetwork(positional.get(1), positional.get(2), positional.get(3), ""));
+
+      // the menus print to System.out; only the report is wanted.
+      PrintStream console = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write (int b) { }
+         public void write (byte[] b, int off, int len) { }
+      }));
+      Profiler.collect();
+      Input in = (Input) ProfNetwork.in;
+      AtomicInteger completed = new AtomicInteger(), failed = new AtomicInteger();
+      List<Double> queueMs = Collections.synchronizedList(new ArrayList<Double>());
+      ExecutorService workers = Executors.newFixedThreadPool(connections);
+      SplittableRandom rnd = new SplittableRandom(42);
+
+      long t0 = System.nanoTime();
+      for (int i = 0; i < sessions; ++i) {
+         if (rate > 0 && i > 0) {
+            // exponential gaps make Poisson arrivals.
+            long gapNanos = (long) (-Math.log(1 - rnd.nextDouble()) / rate * 1e9);
+            TimeUnit.NANOSECONDS.sleep(gapNanos);
+         }//end if
+         List<Step> steps = recorded.get(i % recorded.size());
+         long arrived = System.nanoTime();
+         workers.execute(() -> {
+            queueMs.add((System.nanoTime() - arrived) / 1e6);
+            ProfNetwork esql = null;
+            in.script.set(new Script(steps, thinkScale));
+            try {
+               // one connection per worker thread, so this never waits.
+               esql = pool.take();
+               ProfNetwork.session(esql, null);
+               completed.incrementAndGet();
+            } catch (EndOfSession e) {
+               completed.incrementAndGet();
+            } catch (Throwable e) {
+               failed.incrementAndGet();
+            } finally {
+               in.script.remove();
+               if (esql != null) pool.add(esql);
+            }//end try
+         });
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      double seconds = (System.nanoTime() - t0) / 1e9;
+      System.setOut(console);
+
+      Collections.sort(queueMs);
+      System.out.printf("%d sessions (%d recorded) in %.1f s: %d completed, %d failed, %.1f sessions/s%n",
+         sessions, recorded.size(), seconds, completed.get(), failed.get(), sessions / seconds);
+      System.out.printf("connections %d, arrival rate %s, think time x%.2f%n",
+         connections, rate > 0 ? String.format("%.1f/s", rate) : "all at once", thinkScale);
+      System.out.printf("queueing delay before a connection: p50 %.1f ms, p99 %.1f ms%n",
+         queueMs.get(queueMs.size() / 2), queueMs.get(Math.min(queueMs.size() - 1, (int) (queueMs.size() * 0.99))));
+      System.out.println(Profiler.report(seconds));
+      System.out.println(QueryGuard.report());
+      for (ProfNetwork esql : pool)
+         esql.cleanup();
+   }//end main
+
+}//end Workload
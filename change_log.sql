@@ -0,0 +1,69 @@
+CREATE SEQUENCE change_seq;
+
+CREATE TABLE CHANGE_LOG(
+	seq bigint PRIMARY KEY DEFAULT nextval('change_seq'),
+	tbl char(1) NOT NULL,
+	userId char(30) NOT NULL,
+	otherId char(30),
+	msgId integer,
+	changed timestamp with time zone NOT NULL DEFAULT now());
+
+CREATE INDEX changed_id ON CHANGE_LOG  USING BTREE (changed);
+
+CREATE OR REPLACE FUNCTION logUserChange()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'DELETE' THEN
+INSERT INTO CHANGE_LOG (tbl, userId) VALUES (TG_ARGV[0], OLD.userId);
+RETURN OLD;
+END IF;
+INSERT INTO CHANGE_LOG (tbl, userId) VALUES (TG_ARGV[0], NEW.userId);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION logConnectionChange()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'DELETE' THEN
+INSERT INTO CHANGE_LOG (tbl, userId, otherId) VALUES ('C', OLD.userId, OLD.connectionId);
+RETURN OLD;
+END IF;
+INSERT INTO CHANGE_LOG (tbl, userId, otherId) VALUES ('C', NEW.userId, NEW.connectionId);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION logMessage()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+INSERT INTO CHANGE_LOG (tbl, userId, otherId, msgId) VALUES ('M', NEW.senderId, NEW.receiverId, NEW.msgId);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER usrLog AFTER INSERT OR UPDATE OR DELETE
+ON USR FOR EACH ROW
+EXECUTE PROCEDURE logUserChange('U');
+
+CREATE TRIGGER workLog AFTER INSERT OR UPDATE OR DELETE
+ON WORK_EXPR FOR EACH ROW
+EXECUTE PROCEDURE logUserChange('W');
+
+CREATE TRIGGER eduLog AFTER INSERT OR UPDATE OR DELETE
+ON EDUCATIONAL_DETAILS FOR EACH ROW
+EXECUTE PROCEDURE logUserChange('E');
+
+CREATE TRIGGER connectionLog AFTER INSERT OR UPDATE OR DELETE
+ON CONNECTION_USR FOR EACH ROW
+EXECUTE PROCEDURE logConnectionChange();
+
+CREATE TRIGGER messageLog AFTER INSERT
+ON MESSAGE FOR EACH ROW
+EXECUTE PROCEDURE logMessage();
@@ -5,4 +5,6 @@ psql -h localhost -p $PGPORT $USER"_DB" < create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < load_data.sql
 echo "Creating sequence..."
 cat <(echo 'CREATE SEQUENCE msgId_seq  START WITH 27812;')|psql -h localhost -p $PGPORT $USER"_DB"
-psql -h localhost -p $PGPORT $USER"_DB" < triggers.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < triggers.sql
+psql -h localhost -p $PGPORT $USER"_DB" < change_log.sql
+psql -h localhost -p $PGPORT $USER"_DB" < stats.sql
\ No newline at end of file
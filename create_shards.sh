@@ -0,0 +1,28 @@
+#!/bin/bash
+# usage: create_shards.sh <csvdir> <port> [port ...]
+# Every port must already run an instance (startPostgreSQL.sh <port>).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+csv=$1
+shift
+n=$#
+java -cp $DIR ShardRouter split $csv $n /tmp/$USER-shards
+i=0
+for port in "$@"; do
+  echo "creating shard $i on port $port"
+  createdb -h localhost -p $port $USER"_DB"
+  psql -h localhost -p $port $USER"_DB" < $DIR/create_tables.sql
+  psql -h localhost -p $port $USER"_DB" < $DIR/shard_setup.sql
+  psql -h localhost -p $port $USER"_DB" < $DIR/create_indexes.sql
+  for t in "USR USR" "WORK_EXPR Work_Ex" "EDUCATIONAL_DETAILS Edu_Det" "MESSAGE Message" "CONNECTION_USR Connection"; do
+    set -- $t
+    if [ -f /tmp/$USER-shards/shard$i/$2.csv ]; then
+      echo "\\copy $1 FROM '/tmp/$USER-shards/shard$i/$2.csv' WITH DELIMITER ',' CSV HEADER" | psql -h localhost -p $port $USER"_DB"
+    fi
+  done
+  # interleaved sequences keep msgIds unique across shards.
+  echo "CREATE SEQUENCE msgId_seq START WITH $((27812 + i)) INCREMENT BY $n;" | psql -h localhost -p $port $USER"_DB"
+  psql -h localhost -p $port $USER"_DB" < $DIR/triggers.sql
+  psql -h localhost -p $port $USER"_DB" < $DIR/change_log.sql
+  psql -h localhost -p $port $USER"_DB" < $DIR/stats.sql
+  i=$((i + 1))
+done
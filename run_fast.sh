@@ -0,0 +1,21 @@
+#!/bin/sh
+# usage: run_fast.sh [dbname] [port] [user]
+# Starts the client with --fast-start from a jar, with an application
+# class-data archive (JDK 13 or later). The archive is made on first use,
+# and again after a rebuild, by a training start that exits before the
+# menu. CDS only archives classes from jars, and not the driver's, which
+# are older than Java 6.
+db=${1:-$USER"_DB"}
+port=${2:-$PGPORT}
+user=${3:-$USER}
+export CLASSPATH=$PWD/ProfNetwork.jar:$PWD/pg73jdbc3.jar
+ARCHIVE=$PWD/ProfNetwork.jsa
+
+if [ ! -f ProfNetwork.jar ] || [ -n "$(find . -maxdepth 1 -name '*.class' -newer ProfNetwork.jar)" ]; then
+  jar cf ProfNetwork.jar *.class
+  rm -f $ARCHIVE
+fi
+if [ ! -f $ARCHIVE ]; then
+  java -XX:ArchiveClassesAtExit=$ARCHIVE -Xlog:cds=off Startup --fast-start $db $port $user
+fi
+java -XX:SharedArchiveFile=$ARCHIVE ProfNetwork --fast-start $db $port $user
@@ -0,0 +1,7 @@
+-- Run on every shard after create_tables.sql. Messages and connections are
+-- stored on the shards of both users, so the other user's USR row is
+-- usually on another shard and cannot be referenced locally.
+ALTER TABLE MESSAGE DROP CONSTRAINT message_senderid_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT message_receiverid_fkey;
+ALTER TABLE CONNECTION_USR DROP CONSTRAINT connection_usr_userid_fkey;
+ALTER TABLE CONNECTION_USR DROP CONSTRAINT connection_usr_connectionid_fkey;
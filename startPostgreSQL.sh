@@ -1,5 +1,10 @@
 #! /bin/bash
+# usage: startPostgreSQL.sh [port]   (one instance per port, e.g. per shard)
+port=${1:-5555}
 folder=/tmp/$USER
+if [ "$port" != "5555" ]; then
+  folder=/tmp/$USER-$port
+fi
 export PGDATA=$folder/myDB/data
 export PGSOCKETS=$folder/myDB/sockets
 
@@ -20,6 +25,6 @@ initdb
 
 sleep 1
 #Start folder
-export PGPORT=5555
+export PGPORT=$port
 pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile start
 
@@ -0,0 +1,225 @@
+CREATE TABLE USER_STATS(
+	userId varchar(30) PRIMARY KEY,
+	connections integer NOT NULL DEFAULT 0,
+	requestsSent integer NOT NULL DEFAULT 0,
+	requestsReceived integer NOT NULL DEFAULT 0);
+
+CREATE TABLE ORG_STATS(
+	kind char(1) NOT NULL,
+	name varchar(50) NOT NULL,
+	members integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(kind,name));
+
+CREATE TABLE ORG_MEMBER(
+	kind char(1) NOT NULL,
+	userId varchar(30) NOT NULL,
+	name varchar(50) NOT NULL,
+	nrows integer NOT NULL,
+	PRIMARY KEY(kind,userId,name));
+
+CREATE INDEX members_id ON ORG_STATS  USING BTREE (kind,members);
+
+CREATE OR REPLACE FUNCTION bumpUser(p_user varchar, p_conn integer, p_sent integer, p_recv integer)
+RETURNS integer AS
+$BODY$
+BEGIN
+<<upsert>>
+LOOP
+UPDATE USER_STATS SET connections = connections + p_conn, requestsSent = requestsSent + p_sent,
+	requestsReceived = requestsReceived + p_recv WHERE userId = p_user;
+EXIT upsert WHEN FOUND;
+BEGIN
+INSERT INTO USER_STATS VALUES (p_user, p_conn, p_sent, p_recv);
+EXIT upsert;
+EXCEPTION WHEN unique_violation THEN
+NULL;
+END;
+END LOOP;
+RETURN 0;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION bumpOrg(p_kind char, p_name varchar, p_delta integer)
+RETURNS integer AS
+$BODY$
+BEGIN
+<<upsert>>
+LOOP
+UPDATE ORG_STATS SET members = members + p_delta WHERE kind = p_kind AND name = p_name;
+EXIT upsert WHEN FOUND;
+BEGIN
+INSERT INTO ORG_STATS VALUES (p_kind, p_name, p_delta);
+EXIT upsert;
+EXCEPTION WHEN unique_violation THEN
+NULL;
+END;
+END LOOP;
+DELETE FROM ORG_STATS WHERE kind = p_kind AND name = p_name AND members = 0;
+RETURN 0;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION bumpMember(p_kind char, p_user varchar, p_name varchar, p_delta integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+n integer;
+BEGIN
+<<upsert>>
+LOOP
+UPDATE ORG_MEMBER SET nrows = nrows + p_delta WHERE kind = p_kind AND userId = p_user AND name = p_name;
+EXIT upsert WHEN FOUND;
+BEGIN
+INSERT INTO ORG_MEMBER VALUES (p_kind, p_user, p_name, p_delta);
+EXIT upsert;
+EXCEPTION WHEN unique_violation THEN
+NULL;
+END;
+END LOOP;
+SELECT nrows INTO n FROM ORG_MEMBER WHERE kind = p_kind AND userId = p_user AND name = p_name;
+IF p_delta > 0 AND n = p_delta THEN
+PERFORM bumpOrg(p_kind, p_name, 1);
+ELSIF p_delta < 0 AND n = 0 THEN
+PERFORM bumpOrg(p_kind, p_name, -1);
+DELETE FROM ORG_MEMBER WHERE kind = p_kind AND userId = p_user AND name = p_name;
+END IF;
+RETURN 0;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION connectionStats()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP <> 'INSERT' THEN
+IF trim(OLD.status) = 'Accept' THEN
+PERFORM bumpUser(trim(OLD.userId), -1, 0, 0);
+PERFORM bumpUser(trim(OLD.connectionId), -1, 0, 0);
+ELSIF trim(OLD.status) = 'Request' THEN
+PERFORM bumpUser(trim(OLD.userId), 0, -1, 0);
+PERFORM bumpUser(trim(OLD.connectionId), 0, 0, -1);
+END IF;
+END IF;
+IF TG_OP = 'DELETE' THEN
+RETURN OLD;
+END IF;
+IF trim(NEW.status) = 'Accept' THEN
+PERFORM bumpUser(trim(NEW.userId), 1, 0, 0);
+PERFORM bumpUser(trim(NEW.connectionId), 1, 0, 0);
+ELSIF trim(NEW.status) = 'Request' THEN
+PERFORM bumpUser(trim(NEW.userId), 0, 1, 0);
+PERFORM bumpUser(trim(NEW.connectionId), 0, 0, 1);
+END IF;
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION workStats()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'UPDATE' AND OLD.userId = NEW.userId AND OLD.company = NEW.company THEN
+RETURN NEW;
+END IF;
+IF TG_OP <> 'INSERT' THEN
+PERFORM bumpMember('C', trim(OLD.userId), trim(OLD.company), -1);
+END IF;
+IF TG_OP = 'DELETE' THEN
+RETURN OLD;
+END IF;
+PERFORM bumpMember('C', trim(NEW.userId), trim(NEW.company), 1);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION eduStats()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'UPDATE' AND OLD.userId = NEW.userId AND OLD.instituitionName = NEW.instituitionName THEN
+RETURN NEW;
+END IF;
+IF TG_OP <> 'INSERT' THEN
+PERFORM bumpMember('I', trim(OLD.userId), trim(OLD.instituitionName), -1);
+END IF;
+IF TG_OP = 'DELETE' THEN
+RETURN OLD;
+END IF;
+PERFORM bumpMember('I', trim(NEW.userId), trim(NEW.instituitionName), 1);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION workStatsDim()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'UPDATE' AND OLD.userId = NEW.userId AND OLD.companyId = NEW.companyId THEN
+RETURN NEW;
+END IF;
+IF TG_OP <> 'INSERT' THEN
+PERFORM bumpMember('C', trim(OLD.userId), (SELECT trim(name) FROM COMPANY WHERE id = OLD.companyId), -1);
+END IF;
+IF TG_OP = 'DELETE' THEN
+RETURN OLD;
+END IF;
+PERFORM bumpMember('C', trim(NEW.userId), (SELECT trim(name) FROM COMPANY WHERE id = NEW.companyId), 1);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION eduStatsDim()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+IF TG_OP = 'UPDATE' AND OLD.userId = NEW.userId AND OLD.instituitionId = NEW.instituitionId THEN
+RETURN NEW;
+END IF;
+IF TG_OP <> 'INSERT' THEN
+PERFORM bumpMember('I', trim(OLD.userId), (SELECT trim(name) FROM INSTITUTION WHERE id = OLD.instituitionId), -1);
+END IF;
+IF TG_OP = 'DELETE' THEN
+RETURN OLD;
+END IF;
+PERFORM bumpMember('I', trim(NEW.userId), (SELECT trim(name) FROM INSTITUTION WHERE id = NEW.instituitionId), 1);
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER connectionStats AFTER INSERT OR UPDATE OR DELETE
+ON CONNECTION_USR FOR EACH ROW
+EXECUTE PROCEDURE connectionStats();
+
+CREATE TRIGGER workStats AFTER INSERT OR UPDATE OR DELETE
+ON WORK_EXPR FOR EACH ROW
+EXECUTE PROCEDURE workStats();
+
+CREATE TRIGGER eduStats AFTER INSERT OR UPDATE OR DELETE
+ON EDUCATIONAL_DETAILS FOR EACH ROW
+EXECUTE PROCEDURE eduStats();
+
+INSERT INTO USER_STATS (userId, connections, requestsSent, requestsReceived)
+SELECT id, sum(c), sum(s), sum(r) FROM (
+	SELECT trim(userId) AS id, CASE WHEN trim(status) = 'Accept' THEN 1 ELSE 0 END AS c,
+		CASE WHEN trim(status) = 'Request' THEN 1 ELSE 0 END AS s, 0 AS r FROM CONNECTION_USR
+	UNION ALL
+	SELECT trim(connectionId), CASE WHEN trim(status) = 'Accept' THEN 1 ELSE 0 END,
+		0, CASE WHEN trim(status) = 'Request' THEN 1 ELSE 0 END FROM CONNECTION_USR) e
+GROUP BY id;
+
+INSERT INTO ORG_MEMBER (kind, userId, name, nrows)
+SELECT 'C', trim(userId), trim(company), count(*) FROM WORK_EXPR GROUP BY trim(userId), trim(company);
+
+INSERT INTO ORG_MEMBER (kind, userId, name, nrows)
+SELECT 'I', trim(userId), trim(instituitionName), count(*) FROM EDUCATIONAL_DETAILS GROUP BY trim(userId), trim(instituitionName);
+
+INSERT INTO ORG_STATS (kind, name, members)
+SELECT kind, name, count(*) FROM ORG_MEMBER GROUP BY kind, name;
@@ -4,7 +4,9 @@ CREATE OR REPLACE FUNCTION intsertNum()
 RETURNS "trigger" AS
 $BODY$
 BEGIN
+IF NEW.msgId IS NULL THEN
 NEW.msgId := nextval('msgId_seq');
+END IF;
 RETURN NEW;
 END;
 $BODY$
@@ -14,4 +16,16 @@ CREATE TRIGGER checker BEFORE INSERT
 ON MESSAGE FOR EACH ROW
 EXECUTE PROCEDURE intsertNum();
 
+CREATE OR REPLACE FUNCTION notifyReceiver()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+EXECUTE 'NOTIFY ' || quote_ident('msg_' || trim(NEW.receiverId));
+RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
 
+CREATE TRIGGER notifier AFTER INSERT
+ON MESSAGE FOR EACH ROW
+EXECUTE PROCEDURE notifyReceiver();